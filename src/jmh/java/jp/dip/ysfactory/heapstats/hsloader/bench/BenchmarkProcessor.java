@@ -0,0 +1,111 @@
+/*
+ * BenchmarkProcessor.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bench;
+
+import jp.dip.ysfactory.heapstats.hsloader.Option;
+import jp.dip.ysfactory.heapstats.hsloader.Processor;
+import jp.dip.ysfactory.heapstats.hsloader.bulk.BulkSender;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Processor for benchmarks and load tests.
+ * Documents are published by benchmarks directly.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class BenchmarkProcessor extends Processor{
+
+    /**
+     * Constructor of BenchmarkProcessor.
+     * Documents are sent to Elasticsearch (or output file) in the same way
+     * as HSLoader.
+     * 
+     * @param opt Commandline option.
+     */
+    public BenchmarkProcessor(Option opt){
+        super(opt);
+    }
+
+    /**
+     * Constructor of BenchmarkProcessor.
+     * 
+     * @param opt Commandline option.
+     * @param bulkSender Sender of bulk requests.
+     */
+    public BenchmarkProcessor(Option opt, BulkSender bulkSender){
+        super(opt, bulkSender);
+    }
+
+    /**
+     * Create Option from space-separated options.
+     * 
+     * @param options Space-separated options. It might be empty.
+     * @param files Input files.
+     * @return Commandline option.
+     */
+    public static Option createOption(String options, String... files){
+        List<String> args = new ArrayList<>();
+        for(String arg : options.split(" ")){
+            if(!arg.isEmpty()){
+                args.add(arg);
+            }
+        }
+        args.addAll(Arrays.asList(files));
+
+        return new Option(args.toArray(new String[0]));
+    }
+
+    /**
+     * Discard standard output.
+     * Handlers print progress of each snapshot, and it should not be
+     * measured.
+     * 
+     * @return Original standard output.
+     */
+    public static PrintStream silence(){
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return original;
+    }
+
+    /**
+     * Wait until published documents are passed to the bulk sender.
+     * 
+     * @throws InterruptedException Thrown when current thread is interrupted.
+     */
+    public void sync() throws InterruptedException{
+        syncPublisher();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(){
+        // Do nothing
+    }
+
+}
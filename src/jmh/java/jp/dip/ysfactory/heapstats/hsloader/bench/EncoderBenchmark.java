@@ -0,0 +1,142 @@
+/*
+ * EncoderBenchmark.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bench;
+
+import jp.co.ntt.oss.heapstats.container.log.DiffData;
+import jp.co.ntt.oss.heapstats.container.log.LogData;
+import jp.co.ntt.oss.heapstats.container.snapshot.ObjectData;
+import jp.dip.ysfactory.heapstats.hsloader.encode.JsonEncoder;
+import jp.dip.ysfactory.heapstats.hsloader.log.LogEncoder;
+import jp.dip.ysfactory.heapstats.hsloader.log.LogRecordReader;
+import jp.dip.ysfactory.heapstats.hsloader.snapshot.SnapShotEncoder;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of document encoding.
+ * 
+ * @author Yasumasa Suenaga
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncoderBenchmark{
+
+    private static final String TIMESTAMP = "2018-04-01T00:00:00Z";
+
+    private byte[] encodedTimestamp;
+
+    private ObjectData[] objects;
+
+    private LogData[] logs;
+
+    private DiffData[] diffs;
+
+    private int position;
+
+    @Setup
+    public void setup() throws IOException{
+        encodedTimestamp = JsonEncoder.encodeString(TIMESTAMP);
+        objects = new SyntheticSnapShot(1024, 0, 1, 42).getObjects(0);
+
+        Path log = Files.createTempFile("hsloader-bench", ".csv");
+        try{
+            new SyntheticResourceLog(1025, 0, 42).write(log);
+            List<String> lines = Files.readAllLines(log);
+            logs = new LogData[lines.size()];
+            for(int idx = 0; idx < logs.length; idx++){
+                logs[idx] = LogRecordReader.parse(lines.get(idx));
+            }
+        }
+        finally{
+            Files.delete(log);
+        }
+
+        diffs = new DiffData[logs.length - 1];
+        for(int idx = 0; idx < diffs.length; idx++){
+            diffs[idx] = new DiffData(logs[idx], logs[idx + 1]);
+        }
+
+        position = 0;
+    }
+
+    private int next(int length){
+        position = (position + 1) % length;
+        return position;
+    }
+
+    @Benchmark
+    public byte[] encodeObject(){
+        return SnapShotEncoder.encodeObject(encodedTimestamp, objects[next(objects.length)]);
+    }
+
+    @Benchmark
+    public XContentBuilder encodeObjectWithXContent() throws IOException{
+        ObjectData data = objects[next(objects.length)];
+        return XContentFactory.jsonBuilder()
+                              .startObject()
+                              .field("@timestamp", TIMESTAMP)
+                              .field("tag", data.getTag())
+                              .field("name", data.getName())
+                              .field("classLoader", data.getClassLoader())
+                              .field("classLoaderTag", data.getClassLoaderTag())
+                              .field("count", data.getCount())
+                              .field("totalSize", data.getTotalSize())
+                              .endObject();
+    }
+
+    @Benchmark
+    public byte[] encodeReference(){
+        ObjectData parent = objects[next(objects.length)];
+        ObjectData child = objects[(position * 31) % objects.length];
+        return SnapShotEncoder.encodeReference(encodedTimestamp, parent.getTag(), parent.getName(), child.getTag(), child.getName(), 10, 160);
+    }
+
+    @Benchmark
+    public byte[] encodeLog(){
+        return LogEncoder.encodeLog(TIMESTAMP, logs[next(logs.length)], null, false);
+    }
+
+    @Benchmark
+    public byte[] encodeDiff(){
+        return LogEncoder.encodeDiff(TIMESTAMP, diffs[next(diffs.length)], null, false);
+    }
+
+}
@@ -0,0 +1,289 @@
+/*
+ * LoadTest.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bench;
+
+import jp.dip.ysfactory.heapstats.hsloader.IngestMetrics;
+import jp.dip.ysfactory.heapstats.hsloader.Option;
+import jp.dip.ysfactory.heapstats.hsloader.Processor;
+import jp.dip.ysfactory.heapstats.hsloader.log.LogProcessor;
+import jp.dip.ysfactory.heapstats.hsloader.snapshot.SnapShotProcessor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * End-to-end load test against StubBulkServer.
+ * Synthetic snapshots or resource log are loaded through HSLoader
+ * Processor, and throughput, bulk latency and heap usage are reported.
+ * Several stub servers can be started to test load balancing and node
+ * failover. Stalled nodes never respond until HSLoader times out.
+ * Synthetic snapshots are written to a file, and it is parsed by
+ * SnapShotProcessor with the reader which is given by --reader.
+ * 
+ * Usage: LoadTest [load test options] [HSLoader options]
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class LoadTest{
+
+    /**
+     * Latency of stalled node in milliseconds.
+     */
+    private static final long STALLED_LATENCY = 3_600_000L;
+
+    private String mode = "snapshot";
+
+    private int classes = 10000;
+
+    private int edges = 4;
+
+    private int snapshots = 10;
+
+    private int records = 100000;
+
+    private long latency = 0;
+
+    private double rejectRate = 0.0d;
+
+    private int maxInFlight = 0;
+
+    private int nodes = 1;
+
+    private int stalledNodes = 0;
+
+    /**
+     * Options which are passed to HSLoader.
+     */
+    private final List<String> hsloaderArgs = new ArrayList<>();
+
+    /**
+     * Print help strings.
+     */
+    public static void printOptions(){
+        System.out.println("Usage:");
+        System.out.println("  LoadTest [options] [HSLoader options]");
+        System.out.println();
+        System.out.println("Options:");
+        System.out.println("  --mode <snapshot|log>: Input type. (default: snapshot)");
+        System.out.println("  --classes <num>: Number of classes per snapshot. (default: 10000)");
+        System.out.println("  --edges <num>: Number of references per class. (default: 4)");
+        System.out.println("  --snapshots <num>: Number of snapshots. (default: 10)");
+        System.out.println("  --records <num>: Number of resource log records. (default: 100000)");
+        System.out.println("  --latency <ms>: Latency of each bulk request on stub server. (default: 0)");
+        System.out.println("  --reject-rate <ratio>: Ratio of items which are rejected with 429. (default: 0.0)");
+        System.out.println("  --max-in-flight <num>: Bulk requests over this number are throttled with 429. 0 means unlimited. (default: 0)");
+        System.out.println("  --nodes <num>: Number of stub servers. (default: 1)");
+        System.out.println("  --stalled-nodes <num>: Number of stub servers which never respond. Use with --timeout. (default: 0)");
+        System.out.println("Other options are passed to HSLoader.");
+    }
+
+    private LoadTest(String[] args){
+        Iterator<String> itr = Arrays.asList(args).iterator();
+
+        while(itr.hasNext()){
+            String str = itr.next();
+
+            switch(str){
+
+                case "--mode":
+                    mode = itr.next();
+                    break;
+
+                case "--classes":
+                    classes = Integer.parseInt(itr.next());
+                    break;
+
+                case "--edges":
+                    edges = Integer.parseInt(itr.next());
+                    break;
+
+                case "--snapshots":
+                    snapshots = Integer.parseInt(itr.next());
+                    break;
+
+                case "--records":
+                    records = Integer.parseInt(itr.next());
+                    break;
+
+                case "--latency":
+                    latency = Long.parseLong(itr.next());
+                    break;
+
+                case "--reject-rate":
+                    rejectRate = Double.parseDouble(itr.next());
+                    break;
+
+                case "--max-in-flight":
+                    maxInFlight = Integer.parseInt(itr.next());
+                    break;
+
+                case "--nodes":
+                    nodes = Integer.parseInt(itr.next());
+                    break;
+
+                case "--stalled-nodes":
+                    stalledNodes = Integer.parseInt(itr.next());
+                    break;
+
+                default:
+                    hsloaderArgs.add(str);
+
+            }
+
+        }
+
+        if(!mode.equals("snapshot") && !mode.equals("log")){
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        if((nodes < 1) || (stalledNodes < 0) || (stalledNodes >= nodes)){
+            throw new IllegalArgumentException("--stalled-nodes must be less than --nodes");
+        }
+
+    }
+
+    private static long getPeakHeapUsage(){
+        long peak = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP){
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private Option createOption(List<StubBulkServer> servers, Path deadLetter, Path input){
+        String hosts = servers.stream()
+                              .map(s -> "localhost:" + s.getPort())
+                              .collect(Collectors.joining(","));
+        List<String> args = new ArrayList<>(hsloaderArgs);
+        args.addAll(Arrays.asList("--mode", mode,
+                                  "--host", hosts,
+                                  "--dead-letter", deadLetter.toString(),
+                                  input.toString()));
+        return new Option(args.toArray(new String[0]));
+    }
+
+    private Processor load(Option opt) throws Exception{
+        if(mode.equals("log")){
+            LogProcessor processor = new LogProcessor(opt);
+            try(processor){
+                processor.process();
+            }
+            return processor;
+        }
+
+        SnapShotProcessor processor = new SnapShotProcessor(opt);
+        try(processor){
+            processor.process();
+        }
+        return processor;
+    }
+
+    private void run() throws Exception{
+        Path input = Files.createTempFile("hsloader-loadtest", mode.equals("log") ? ".csv" : ".dat");
+        Path deadLetter = Files.createTempFile("hsloader-loadtest", ".ndjson");
+
+        List<StubBulkServer> servers = new ArrayList<>();
+
+        try{
+            for(int idx = 0; idx < nodes; idx++){
+                servers.add((idx < stalledNodes) ? new StubBulkServer(0, STALLED_LATENCY, 0.0d, 0)
+                                                 : new StubBulkServer(0, latency, rejectRate, maxInFlight));
+            }
+            Option opt = createOption(servers, deadLetter, input);
+            if(mode.equals("log")){
+                new SyntheticResourceLog(records, 0, 42).write(input);
+            }
+            else{
+                new SyntheticSnapShot(classes, edges, snapshots, 42).write(input, opt.getZoneId());
+            }
+
+            ManagementFactory.getMemoryPoolMXBeans()
+                             .stream()
+                             .filter(p -> p.getType() == MemoryType.HEAP)
+                             .forEach(MemoryPoolMXBean::resetPeakUsage);
+            long start = System.nanoTime();
+            Processor processor = load(opt);
+            long elapsed = (System.nanoTime() - start) / 1_000_000L;
+            IngestMetrics metrics = processor.getIngestMetrics();
+            long documents = servers.stream().mapToLong(StubBulkServer::getDocuments).sum();
+
+            System.out.println();
+            System.out.println("Load test result:");
+            System.out.println("  Mode: " + mode);
+            System.out.println("  Succeeded: " + processor.isSucceeded());
+            System.out.println("  Elapsed time (ms): " + elapsed);
+            System.out.println("  Published documents: " + metrics.getDocuments());
+            System.out.println("  Indexed documents: " + documents);
+            System.out.println("  Throughput (docs/s): " + ((elapsed == 0) ? 0 : (documents * 1000L / elapsed)));
+            for(int idx = 0; idx < servers.size(); idx++){
+                StubBulkServer server = servers.get(idx);
+                System.out.println("  Node " + idx + ((idx < stalledNodes) ? " (stalled)" : "") + ":");
+                System.out.println("    Indexed documents: " + server.getDocuments());
+                System.out.println("    Bulk requests: " + server.getRequests() + " (throttled: " + server.getThrottledRequests() + ")");
+                System.out.println("    Rejected items: " + server.getRejectedDocuments());
+                System.out.println("    Bytes received: " + server.getBytesReceived());
+            }
+            System.out.println("  Bulk latency p50 / p99 / max (ms): " + metrics.getBulkLatencyP50() + " / " + metrics.getBulkLatencyP99() + " / " + metrics.getBulkLatencyMax());
+            System.out.println("  Peak heap usage (loader and stub): " + getPeakHeapUsage());
+            System.out.println("  GC time (ms): " + metrics.getGCTime());
+        }
+        finally{
+            servers.forEach(StubBulkServer::close);
+            Files.deleteIfExists(input);
+            if(Files.size(deadLetter) == 0){
+                Files.delete(deadLetter);
+            }
+            else{
+                System.out.println("  Dead letters: " + deadLetter);
+            }
+        }
+
+    }
+
+    /**
+     * @param args the command line arguments
+     * @throws Exception Thrown when the load test is failed.
+     */
+    public static void main(String[] args) throws Exception{
+        LoadTest loadTest;
+        try{
+            loadTest = new LoadTest(args);
+        }
+        catch(RuntimeException e){
+            System.err.println(e.getLocalizedMessage());
+            printOptions();
+            System.exit(1);
+            return;
+        }
+
+        loadTest.run();
+    }
+
+}
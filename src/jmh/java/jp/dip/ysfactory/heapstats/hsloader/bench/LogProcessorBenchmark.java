@@ -0,0 +1,96 @@
+/*
+ * LogProcessorBenchmark.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bench;
+
+import jp.dip.ysfactory.heapstats.hsloader.Option;
+import jp.dip.ysfactory.heapstats.hsloader.log.LogProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of LogProcessor.
+ * One operation processes whole resource log, and documents are
+ * published to NullBulkSender.
+ * 
+ * @author Yasumasa Suenaga
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LogProcessorBenchmark{
+
+    @Param({"10000", "100000"})
+    public int records;
+
+    @Param({"", "--encoder xcontent"})
+    public String options;
+
+    private Path log;
+
+    private Option opt;
+
+    private PrintStream stdout;
+
+    @Setup
+    public void setup() throws IOException{
+        stdout = BenchmarkProcessor.silence();
+        log = Files.createTempFile("hsloader-bench", ".csv");
+        new SyntheticResourceLog(records, records / 4, 42).write(log);
+        opt = BenchmarkProcessor.createOption("--mode log " + options, log.toString());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+        Files.deleteIfExists(log);
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public long process() throws Exception{
+        NullBulkSender sender = new NullBulkSender();
+
+        try(LogProcessor processor = new LogProcessor(opt, sender)){
+            processor.process();
+        }
+
+        return sender.getDocuments();
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * NullBulkSender.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bench;
+
+import jp.dip.ysfactory.heapstats.hsloader.bulk.BulkSender;
+import org.elasticsearch.action.index.IndexRequest;
+
+/**
+ * BulkSender which discards all requests.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class NullBulkSender implements BulkSender{
+
+    private volatile long documents;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void add(IndexRequest request){
+        documents++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush(){
+        // Do nothing
+    }
+
+    /**
+     * Get number of discarded documents.
+     * 
+     * @return Number of documents.
+     */
+    public long getDocuments(){
+        return documents;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close(){
+        // Do nothing
+    }
+
+}
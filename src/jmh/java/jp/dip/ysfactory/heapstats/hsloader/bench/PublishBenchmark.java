@@ -0,0 +1,93 @@
+/*
+ * PublishBenchmark.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bench;
+
+import jp.dip.ysfactory.heapstats.hsloader.Option;
+import jp.dip.ysfactory.heapstats.hsloader.encode.JsonEncoder;
+import jp.dip.ysfactory.heapstats.hsloader.snapshot.SnapShotEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of Processor.publish() with NullBulkSender.
+ * Documents are pre-encoded, so this measures the publish queue and the
+ * contention among producer threads.
+ * 
+ * @author Yasumasa Suenaga
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishBenchmark{
+
+    private static final String INDEX = "heapstats-snapshot-objects-201804";
+
+    private static final String TYPE = "heapstats-snapshot-objects";
+
+    @Param({"", "--publish-stats"})
+    public String options;
+
+    private byte[] document;
+
+    private BenchmarkProcessor processor;
+
+    @Setup
+    public void setup(){
+        Option opt = BenchmarkProcessor.createOption(options, SyntheticSnapShot.FILE_NAME);
+        processor = new BenchmarkProcessor(opt, new NullBulkSender());
+        document = SnapShotEncoder.encodeObject(JsonEncoder.encodeString("2018-04-01T00:00:00Z"),
+                                                new SyntheticSnapShot(1, 0, 1, 42).getObjects(0)[0]);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception{
+        processor.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void publish(){
+        processor.publish(INDEX, TYPE, document);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void publishContended(){
+        processor.publish(INDEX, TYPE, document);
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * SnapShotHandlerBenchmark.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bench;
+
+import jp.dip.ysfactory.heapstats.hsloader.Option;
+import jp.dip.ysfactory.heapstats.hsloader.snapshot.LeakSuspectTracker;
+import jp.dip.ysfactory.heapstats.hsloader.snapshot.SnapShotHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of SnapShotHandler callbacks.
+ * One operation is a whole file: all snapshots are replayed to a new
+ * handler, and documents are published to NullBulkSender.
+ * 
+ * @author Yasumasa Suenaga
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SnapShotHandlerBenchmark{
+
+    @Param({"1000", "10000"})
+    public int classes;
+
+    @Param({"0", "4"})
+    public int edges;
+
+    @Param({"10"})
+    public int snapshots;
+
+    @Param({"", "--encoder xcontent", "--delta", "--top-classes 100 --top-refs-per-parent 5", "--rollup --suspects 10", "--encode-threads 2"})
+    public String options;
+
+    private SyntheticSnapShot snapShot;
+
+    private Option opt;
+
+    private BenchmarkProcessor processor;
+
+    private PrintStream stdout;
+
+    @Setup
+    public void setup(){
+        stdout = BenchmarkProcessor.silence();
+        snapShot = new SyntheticSnapShot(classes, edges, snapshots, 42);
+        opt = BenchmarkProcessor.createOption(options, SyntheticSnapShot.FILE_NAME);
+        processor = new BenchmarkProcessor(opt, new NullBulkSender());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception{
+        processor.close();
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public int replay() throws IOException, InterruptedException{
+        LeakSuspectTracker suspectTracker = (opt.getSuspects() > 0) ? new LeakSuspectTracker(opt.getSuspectWindow(), opt.getSuspects()) : null;
+        int count;
+
+        try(SnapShotHandler handler = new SnapShotHandler(processor, ZoneId.of("UTC"), SyntheticSnapShot.FILE_NAME, suspectTracker)){
+            count = snapShot.replay(handler);
+        }
+
+        /* Documents are encoded on encoder threads, so wait for them. */
+        if(opt.getEncodeThreads() > 0){
+            processor.sync();
+        }
+        return count;
+    }
+
+}
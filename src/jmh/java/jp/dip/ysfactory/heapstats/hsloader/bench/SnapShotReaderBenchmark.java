@@ -0,0 +1,115 @@
+/*
+ * SnapShotReaderBenchmark.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bench;
+
+import jp.dip.ysfactory.heapstats.hsloader.Option;
+import jp.dip.ysfactory.heapstats.hsloader.snapshot.MappedSnapShotReader;
+import jp.dip.ysfactory.heapstats.hsloader.snapshot.SnapShotProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of SnapShot readers.
+ * Synthetic snapshots are written to a file in HeapStats snapshot format,
+ * and one operation processes the whole file through SnapShotProcessor.
+ * Documents are published to NullBulkSender.
+ * 
+ * @author Yasumasa Suenaga
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SnapShotReaderBenchmark{
+
+    @Param({"10000"})
+    public int classes;
+
+    @Param({"4"})
+    public int edges;
+
+    @Param({"20"})
+    public int snapshots;
+
+    /**
+     * Synthetic snapshots begin at 2018-04-01T00:00:00, and are taken every minute.
+     */
+    @Param({"--reader stream", "--reader mmap", "--from 2018-04-01T00:05:00 --to 2018-04-01T00:09:00", "--segments 4"})
+    public String options;
+
+    private Path file;
+
+    private Option opt;
+
+    private PrintStream stdout;
+
+    @Setup
+    public void setup() throws IOException{
+        stdout = BenchmarkProcessor.silence();
+        file = Files.createTempFile("hsloader-bench", ".dat");
+        new SyntheticSnapShot(classes, edges, snapshots, 42).write(file, ZoneId.of("UTC"));
+        opt = BenchmarkProcessor.createOption("--timezone UTC " + options, file.toString());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+        Files.deleteIfExists(file);
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public int index() throws IOException{
+        try(MappedSnapShotReader reader = new MappedSnapShotReader(file, 0, ZoneId.of("UTC"))){
+            return reader.buildIndex().size();
+        }
+    }
+
+    @Benchmark
+    public long process() throws Exception{
+        NullBulkSender sender = new NullBulkSender();
+
+        try(SnapShotProcessor processor = new SnapShotProcessor(opt, sender)){
+            processor.process();
+        }
+
+        return sender.getDocuments();
+    }
+
+}
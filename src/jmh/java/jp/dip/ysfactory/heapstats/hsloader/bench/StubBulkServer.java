@@ -0,0 +1,329 @@
+/*
+ * StubBulkServer.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jp.dip.ysfactory.heapstats.hsloader.bulk.BulkNdjson;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Lightweight stand-in of Elasticsearch for load tests.
+ * It implements _bulk with configurable latency, item rejection rate and
+ * throttling. Other APIs (templates, settings, refresh and force merge)
+ * are accepted without any effect.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class StubBulkServer implements AutoCloseable{
+
+    private static final String THROTTLED = "{\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"throttled by stub\"},\"status\":429}";
+
+    /**
+     * InputStream which counts bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream{
+
+        private long count;
+
+        private CountingInputStream(InputStream in){
+            super(in);
+            count = 0;
+        }
+
+        @Override
+        public int read() throws IOException{
+            int b = super.read();
+            if(b != -1){
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException{
+            int n = super.read(b, off, len);
+            if(n > 0){
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException{
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        private long getCount(){
+            return count;
+        }
+
+    }
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final long latency;
+
+    private final double rejectRate;
+
+    private final int maxInFlight;
+
+    private final AtomicInteger inFlight;
+
+    /* Statistics */
+    private final LongAdder requests;
+
+    private final LongAdder documents;
+
+    private final LongAdder rejectedDocuments;
+
+    private final LongAdder throttledRequests;
+
+    private final LongAdder bytesReceived;
+
+    /**
+     * Constructor of StubBulkServer.
+     * The server is started in this constructor.
+     * 
+     * @param port Port number. 0 means ephemeral port.
+     * @param latency Latency of each bulk request in milliseconds.
+     * @param rejectRate Ratio of items which are rejected with 429 (0.0 - 1.0).
+     * @param maxInFlight Bulk requests over this number are throttled with 429. 0 means unlimited.
+     * @throws IOException Thrown when the server could not be started.
+     */
+    public StubBulkServer(int port, long latency, double rejectRate, int maxInFlight) throws IOException{
+        this.latency = latency;
+        this.rejectRate = rejectRate;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new AtomicInteger();
+        this.requests = new LongAdder();
+        this.documents = new LongAdder();
+        this.rejectedDocuments = new LongAdder();
+        this.throttledRequests = new LongAdder();
+        this.bytesReceived = new LongAdder();
+
+        this.executor = Executors.newCachedThreadPool(r -> {
+                                                        Thread thread = new Thread(r, "stub-bulk-server");
+                                                        thread.setDaemon(true);
+                                                        return thread;
+                                                      });
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 128);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException{
+        byte[] response = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+
+        if("HEAD".equals(exchange.getRequestMethod())){
+            exchange.sendResponseHeaders(status, -1);
+        }
+        else{
+            exchange.sendResponseHeaders(status, response.length);
+            try(OutputStream out = exchange.getResponseBody()){
+                out.write(response);
+            }
+        }
+
+        exchange.close();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException{
+        try{
+            String path = exchange.getRequestURI().getPath();
+
+            if(path.endsWith("/_bulk")){
+                handleBulk(exchange);
+            }
+            else if(path.endsWith("/_settings") && "GET".equals(exchange.getRequestMethod())){
+                String index = path.substring(1, path.length() - "/_settings".length());
+                respond(exchange, 200, "{\"" + index + "\":{\"settings\":{}}}");
+            }
+            else{
+                exchange.getRequestBody().readAllBytes();
+                respond(exchange, 200, "{\"acknowledged\":true}");
+            }
+        }
+        catch(IOException | RuntimeException e){
+            if(Boolean.getBoolean("debug")){
+                e.printStackTrace();
+            }
+            exchange.close();
+        }
+    }
+
+    private void handleBulk(HttpExchange exchange) throws IOException{
+        requests.increment();
+
+        try{
+            if((maxInFlight > 0) && (inFlight.incrementAndGet() > maxInFlight)){
+                exchange.getRequestBody().readAllBytes();
+                throttledRequests.increment();
+                respond(exchange, 429, THROTTLED);
+                return;
+            }
+
+            InputStream body = exchange.getRequestBody();
+            if("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))){
+                body = new GZIPInputStream(body, 65536);
+            }
+            CountingInputStream counter = new CountingInputStream(body);
+
+            StringBuilder response = new StringBuilder(65536);
+            boolean errors = false;
+            response.append("{\"took\":").append(latency).append(",\"items\":[");
+
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(counter, StandardCharsets.UTF_8), 65536)){
+                String action;
+                int items = 0;
+
+                while((action = reader.readLine()) != null){
+                    if(action.isEmpty()){
+                        continue;
+                    }
+                    String source = reader.readLine();
+
+                    String[] target = BulkNdjson.parseActionLine(action);
+                    if(items++ > 0){
+                        response.append(',');
+                    }
+                    response.append("{\"index\":{\"_index\":\"").append(target[0])
+                            .append("\",\"_type\":\"").append(target[1])
+                            .append("\",\"_id\":\"").append(items);
+
+                    if((rejectRate > 0.0d) && (ThreadLocalRandom.current().nextDouble() < rejectRate)){
+                        errors = true;
+                        rejectedDocuments.increment();
+                        response.append("\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected by stub\"}}}");
+                    }
+                    else{
+                        documents.increment();
+                        response.append("\",\"_version\":1,\"result\":\"created\",\"_shards\":{\"total\":1,\"successful\":1,\"failed\":0}")
+                                .append(",\"_seq_no\":0,\"_primary_term\":1,\"status\":201}}");
+                    }
+                }
+
+            }
+            bytesReceived.add(counter.getCount());
+            response.append("],\"errors\":").append(errors).append('}');
+
+            if(latency > 0){
+                Thread.sleep(latency);
+            }
+
+            respond(exchange, 200, response.toString());
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            exchange.close();
+        }
+        finally{
+            if(maxInFlight > 0){
+                inFlight.decrementAndGet();
+            }
+        }
+
+    }
+
+    /**
+     * Get port number of this server.
+     * 
+     * @return Port number.
+     */
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Get number of bulk requests.
+     * 
+     * @return Number of bulk requests including throttled ones.
+     */
+    public long getRequests(){
+        return requests.sum();
+    }
+
+    /**
+     * Get number of indexed documents.
+     * 
+     * @return Number of documents.
+     */
+    public long getDocuments(){
+        return documents.sum();
+    }
+
+    /**
+     * Get number of rejected documents.
+     * 
+     * @return Number of documents.
+     */
+    public long getRejectedDocuments(){
+        return rejectedDocuments.sum();
+    }
+
+    /**
+     * Get number of throttled bulk requests.
+     * 
+     * @return Number of requests.
+     */
+    public long getThrottledRequests(){
+        return throttledRequests.sum();
+    }
+
+    /**
+     * Get size of received _bulk bodies in bytes (uncompressed).
+     * 
+     * @return Bytes received.
+     */
+    public long getBytesReceived(){
+        return bytesReceived.sum();
+    }
+
+    /**
+     * Stop this server.
+     */
+    @Override
+    public void close(){
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+}
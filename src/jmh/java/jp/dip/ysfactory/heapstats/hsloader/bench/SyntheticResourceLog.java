@@ -0,0 +1,107 @@
+/*
+ * SyntheticResourceLog.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Random;
+
+/**
+ * Generator of synthetic HeapStats resource log (CSV).
+ * Columns are the same as the resource log of HeapStats agent: date in
+ * milliseconds, cause, Java user / sys time, VSZ, RSS, CPU user / nice /
+ * sys / idle / iowait / irq / softirq / steal / guest time, SyncPark,
+ * safepoint time, safepoints and live threads.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class SyntheticResourceLog{
+
+    /**
+     * Interval of records in milliseconds.
+     */
+    private static final long INTERVAL = 1000;
+
+    private final int records;
+
+    private final int rebootInterval;
+
+    private final long seed;
+
+    /**
+     * Constructor of SyntheticResourceLog.
+     * 
+     * @param records Number of records.
+     * @param rebootInterval Counters are reset every this number of records. 0 means no reboot.
+     * @param seed Seed of random numbers.
+     */
+    public SyntheticResourceLog(int records, int rebootInterval, long seed){
+        this.records = records;
+        this.rebootInterval = rebootInterval;
+        this.seed = seed;
+    }
+
+    /**
+     * Write records to the file.
+     * 
+     * @param path Path to resource log.
+     * @throws IOException Thrown when the file could not be written.
+     */
+    public void write(Path path) throws IOException{
+        Random random = new Random(seed);
+        long time = LocalDateTime.of(2018, 4, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long[] counters = new long[14];
+
+        try(BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)){
+            for(int idx = 0; idx < records; idx++){
+                if((rebootInterval > 0) && (idx > 0) && ((idx % rebootInterval) == 0)){
+                    counters = new long[counters.length];
+                }
+
+                for(int counter = 0; counter < counters.length; counter++){
+                    counters[counter] += random.nextInt(100);
+                }
+
+                StringBuilder line = new StringBuilder(256);
+                line.append(time + (idx * INTERVAL))
+                    .append(",Interval,")
+                    .append(counters[0]).append(',')
+                    .append(counters[1]).append(',')
+                    .append(1_000_000_000L + random.nextInt(1_000_000)).append(',')
+                    .append(500_000_000L + random.nextInt(1_000_000));
+                for(int counter = 2; counter < counters.length; counter++){
+                    line.append(',').append(counters[counter]);
+                }
+                line.append(',').append(50 + random.nextInt(10));
+
+                writer.write(line.toString());
+                writer.newLine();
+            }
+        }
+
+    }
+
+}
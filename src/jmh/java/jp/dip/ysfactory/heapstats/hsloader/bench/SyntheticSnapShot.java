@@ -0,0 +1,288 @@
+/*
+ * SyntheticSnapShot.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bench;
+
+import jp.co.ntt.oss.heapstats.container.snapshot.ChildObjectData;
+import jp.co.ntt.oss.heapstats.container.snapshot.ObjectData;
+import jp.co.ntt.oss.heapstats.container.snapshot.SnapShotHeader;
+import jp.co.ntt.oss.heapstats.parser.SnapShotParserEventHandler;
+import jp.co.ntt.oss.heapstats.parser.SnapShotParserEventHandler.ParseResult;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generator of synthetic HeapStats snapshots.
+ * All snapshots are generated in memory, and they are replayed to
+ * SnapShotParserEventHandler in the same order as SnapShotParser:
+ * onNewSnapShot(), onEntry() of each class followed by onChildEntry() of
+ * its references, and onFinish().
+ * They can be written to a file in HeapStats snapshot format, too.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class SyntheticSnapShot{
+
+    /**
+     * File name which is passed to handlers.
+     */
+    public static final String FILE_NAME = "synthetic.dat";
+
+    private static final String[] PACKAGES = {"java.lang", "java.util", "java.util.concurrent", "java.io",
+                                              "org.example.app.service", "org.example.app.model",
+                                              "org.example.app.web", "com.example.lib.cache"};
+
+    /**
+     * Interval of snapshots in seconds.
+     */
+    private static final int INTERVAL = 60;
+
+    /**
+     * Ratio of classes which grow in every snapshot.
+     */
+    private static final int LEAKY_RATIO = 100;
+
+    /**
+     * Magic number of HeapStats 2.0 format with reference tree.
+     */
+    private static final byte MAGIC = (byte)(51 | 0x80);
+
+    private static final int GC_CAUSE_LENGTH = 80;
+
+    private final SnapShotHeader[] headers;
+
+    private final ObjectData[][] objects;
+
+    private final ChildObjectData[][][] children;
+
+    private final int edges;
+
+    /**
+     * Constructor of SyntheticSnapShot.
+     * 
+     * @param classes Number of classes in each snapshot.
+     * @param edges Number of references per class.
+     * @param snapshots Number of snapshots.
+     * @param seed Seed of random numbers.
+     */
+    public SyntheticSnapShot(int classes, int edges, int snapshots, long seed){
+        Random random = new Random(seed);
+        String[] names = new String[classes];
+        long[] counts = new long[classes];
+        long[] instanceSizes = new long[classes];
+
+        for(int idx = 0; idx < classes; idx++){
+            String name = PACKAGES[idx % PACKAGES.length] + ".Class" + idx;
+            names[idx] = ((idx % 10) == 9) ? ("[L" + name + ";") : name;
+            counts[idx] = 1 + random.nextInt(1000);
+            instanceSizes[idx] = 16 + (8 * random.nextInt(16));
+        }
+
+        this.edges = edges;
+        this.headers = new SnapShotHeader[snapshots];
+        this.objects = new ObjectData[snapshots][classes];
+        this.children = new ChildObjectData[snapshots][classes][edges];
+        LocalDateTime date = LocalDateTime.of(2018, 4, 1, 0, 0);
+
+        for(int snapshot = 0; snapshot < snapshots; snapshot++){
+            long totalInstances = 0;
+            long totalSize = 0;
+
+            for(int idx = 0; idx < classes; idx++){
+                if((idx % LEAKY_RATIO) == 0){
+                    counts[idx] += (counts[idx] / 20) + 1;
+                }
+                else{
+                    counts[idx] = Math.max(1, counts[idx] + random.nextInt(21) - 10);
+                }
+
+                ObjectData data = new ObjectData();
+                data.setTag(getTag(idx));
+                data.setName(names[idx]);
+                data.setClassLoader(((idx % 4) == 0) ? 0 : (0x1000 + (idx % 8)));
+                data.setClassLoaderTag(((idx % 4) == 0) ? 0 : getTag(idx % 8));
+                data.setCount(counts[idx]);
+                data.setTotalSize(counts[idx] * instanceSizes[idx]);
+                objects[snapshot][idx] = data;
+                totalInstances += data.getCount();
+                totalSize += data.getTotalSize();
+
+                for(int edge = 0; edge < edges; edge++){
+                    int child = random.nextInt(classes);
+                    long instances = 1 + random.nextInt(100);
+                    children[snapshot][idx][edge] = new ChildObjectData(getTag(child), instances, instances * instanceSizes[child]);
+                }
+
+            }
+
+            SnapShotHeader header = new SnapShotHeader();
+            header.setSnapShotDate(date.plusSeconds((long)snapshot * INTERVAL));
+            header.setNumEntries(classes);
+            header.setNumInstances(totalInstances);
+            header.setGcCause("Allocation Failure");
+            header.setNewHeap(totalSize / 4);
+            header.setOldHeap(totalSize - (totalSize / 4));
+            header.setTotalCapacity(totalSize * 2);
+            headers[snapshot] = header;
+        }
+
+    }
+
+    private static long getTag(int idx){
+        return 0x7f0000000000L + (idx * 8L);
+    }
+
+    /**
+     * Get classes in the snapshot.
+     * 
+     * @param snapshot Index of snapshot.
+     * @return Classes in the snapshot.
+     */
+    public ObjectData[] getObjects(int snapshot){
+        return objects[snapshot];
+    }
+
+    /**
+     * Get number of documents which are published without any filter.
+     * 
+     * @return Number of summary, objects and refs documents.
+     */
+    public long getDocuments(){
+        return (long)headers.length * (1 + objects[0].length + ((long)objects[0].length * edges));
+    }
+
+    /**
+     * Convert Java style class name to JVM class signature.
+     * 
+     * @param name Class name.
+     * @return Class signature.
+     */
+    private static String toSignature(String name){
+        return name.startsWith("[") ? name.replace('.', '/') : ("L" + name.replace('.', '/') + ";");
+    }
+
+    /**
+     * Write all snapshots to the file in HeapStats snapshot format
+     * (little endian, with reference tree).
+     * 
+     * @param file Output file.
+     * @param zoneId ZoneId of SnapShot.
+     * @throws IOException Thrown when the file could not be written.
+     */
+    public void write(Path file, ZoneId zoneId) throws IOException{
+        ByteBuffer buf = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+        try(FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+            for(int snapshot = 0; snapshot < headers.length; snapshot++){
+                SnapShotHeader header = headers[snapshot];
+                byte[] gcCause = header.getGcCause().getBytes(StandardCharsets.US_ASCII);
+                buf.put(MAGIC)
+                   .put((byte)'L')
+                   .putLong(header.getSnapShotDate().atZone(zoneId).toInstant().toEpochMilli())
+                   .putLong(header.getNumEntries())
+                   .putInt(1)
+                   .putLong(gcCause.length)
+                   .put(Arrays.copyOf(gcCause, GC_CAUSE_LENGTH))
+                   .putLong(header.getFullCount())
+                   .putLong(header.getYngCount())
+                   .putLong(header.getGcTime())
+                   .putLong(header.getNewHeap())
+                   .putLong(header.getOldHeap())
+                   .putLong(header.getTotalCapacity())
+                   .putLong(header.getMetaspaceUsage())
+                   .putLong(header.getMetaspaceCapacity());
+
+                ObjectData[] entries = objects[snapshot];
+                for(int idx = 0; idx < entries.length; idx++){
+                    byte[] name = toSignature(entries[idx].getName()).getBytes(StandardCharsets.UTF_8);
+                    if(buf.remaining() < (name.length + 44 + ((edges + 1) * 24))){
+                        flush(ch, buf);
+                    }
+
+                    buf.putLong(entries[idx].getTag())
+                       .putInt(name.length)
+                       .put(name)
+                       .putLong(entries[idx].getClassLoader())
+                       .putLong(entries[idx].getClassLoaderTag())
+                       .putLong(entries[idx].getCount())
+                       .putLong(entries[idx].getTotalSize());
+                    for(ChildObjectData child : children[snapshot][idx]){
+                        buf.putLong(child.getTag())
+                           .putLong(child.getInstances())
+                           .putLong(child.getTotalSize());
+                    }
+                    buf.putLong(-1);
+                }
+
+                flush(ch, buf);
+            }
+        }
+
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer buf) throws IOException{
+        buf.flip();
+        while(buf.hasRemaining()){
+            ch.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Replay all snapshots to the handler.
+     * 
+     * @param handler Handler of parser events.
+     * @return Number of snapshots which are replayed.
+     */
+    public int replay(SnapShotParserEventHandler handler){
+        handler.onStart(0);
+
+        for(int snapshot = 0; snapshot < headers.length; snapshot++){
+            if(handler.onNewSnapShot(headers[snapshot], FILE_NAME) == ParseResult.HEAPSTATS_PARSE_ABORT){
+                return snapshot;
+            }
+
+            ObjectData[] entries = objects[snapshot];
+            for(int idx = 0; idx < entries.length; idx++){
+                handler.onEntry(entries[idx]);
+
+                long tag = entries[idx].getTag();
+                for(ChildObjectData child : children[snapshot][idx]){
+                    handler.onChildEntry(tag, child);
+                }
+            }
+
+            handler.onFinish(snapshot + 1);
+        }
+
+        return headers.length;
+    }
+
+}
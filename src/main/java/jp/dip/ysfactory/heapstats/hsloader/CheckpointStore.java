@@ -0,0 +1,181 @@
+/*
+ * CheckpointStore.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * CheckpointStore.java
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * CheckpointStore.java
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * CheckpointStore.java
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Store of ingestion checkpoints per input file.
+ * Each entry is keyed by absolute path, and holds file key (inode on
+ * POSIX), file size and offset which has been published completely.
+ * The checkpoint is valid while the file key is same and the file is not
+ * shrunk, so rotated or truncated files are loaded from the beginning.
+ * 
+ * The store is written to a small text file (one tab separated entry per
+ * line) by save(). If the path is null, checkpoints are kept in memory
+ * only (for follow mode without checkpoint file).
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class CheckpointStore{
+
+    /**
+     * Checkpoint of one file.
+     */
+    private static class Entry{
+
+        final String fileKey;
+
+        final long size;
+
+        final long offset;
+
+        Entry(String fileKey, long size, long offset){
+            this.fileKey = fileKey;
+            this.size = size;
+            this.offset = offset;
+        }
+
+    }
+
+    private final Path path;
+
+    private final Map<String, Entry> entries;
+
+    /**
+     * Constructor of CheckpointStore.
+     * Checkpoints are loaded from the file if it exists.
+     * 
+     * @param path Path to checkpoint file, or null.
+     */
+    public CheckpointStore(Path path){
+        this.path = path;
+        this.entries = new ConcurrentHashMap<>();
+
+        if((path != null) && Files.exists(path)){
+            try(BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)){
+                String line;
+                while((line = reader.readLine()) != null){
+                    String[] values = line.split("\t");
+                    if(values.length == 4){
+                        entries.put(values[0], new Entry(values[1], Long.parseLong(values[2]), Long.parseLong(values[3])));
+                    }
+                }
+            }
+            catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+
+    }
+
+    private static String getKey(Path file){
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    private static String getFileKey(BasicFileAttributes attrs){
+        Object fileKey = attrs.fileKey();
+        return (fileKey == null) ? "-" : fileKey.toString();
+    }
+
+    /**
+     * Get offset to resume ingestion of the file.
+     * 
+     * @param file Input file.
+     * @return Offset which has been published, or 0 if the file should be loaded from the beginning.
+     * @throws IOException Thrown when the attributes of the file could not be read.
+     */
+    public long getOffset(Path file) throws IOException{
+        Entry entry = entries.get(getKey(file));
+        if(entry == null){
+            return 0;
+        }
+
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        if(!entry.fileKey.equals(getFileKey(attrs)) || (attrs.size() < entry.size)){
+            return 0;
+        }
+
+        return entry.offset;
+    }
+
+    /**
+     * Record offset which has been published.
+     * 
+     * @param file Input file.
+     * @param offset Offset which has been published completely.
+     * @throws IOException Thrown when the attributes of the file could not be read.
+     */
+    public void update(Path file, long offset) throws IOException{
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        entries.put(getKey(file), new Entry(getFileKey(attrs), attrs.size(), offset));
+    }
+
+    /**
+     * Write all checkpoints to the file.
+     * The file is replaced atomically.
+     * 
+     * @throws IOException Thrown when the checkpoint file could not be written.
+     */
+    public void save() throws IOException{
+        if(path == null){
+            return;
+        }
+
+        Path parent = path.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+
+        try{
+            try(BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)){
+                for(Map.Entry<String, Entry> e : entries.entrySet()){
+                    Entry entry = e.getValue();
+                    writer.write(e.getKey() + "\t" + entry.fileKey + "\t" + entry.size + "\t" + entry.offset);
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally{
+            Files.deleteIfExists(tmp);
+        }
+
+    }
+
+    /**
+     * Get path to checkpoint file.
+     * 
+     * @return Path to checkpoint file, or null.
+     */
+    public Path getPath(){
+        return path;
+    }
+
+}
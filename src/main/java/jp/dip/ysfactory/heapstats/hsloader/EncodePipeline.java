@@ -0,0 +1,387 @@
+/*
+ * EncodePipeline.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Encode stage between parser threads and PublishQueue.
+ * Parser threads pass lightweight records which encode the document on
+ * demand. Records are batched per parser thread, and encoded by a pool
+ * of encoder threads. The queue of batches is bounded, so parser threads
+ * wait when encoder threads fall behind, and encoder threads wait when
+ * the publisher falls behind.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class EncodePipeline implements AutoCloseable{
+
+    /**
+     * Number of records in one batch.
+     */
+    public static final int BATCH_SIZE = PublishQueue.DEFAULT_STAGING_SIZE;
+
+    /**
+     * Per-thread batch of records.
+     */
+    private class Batch{
+
+        private final String[] indices;
+
+        private final String[] types;
+
+        private final Object[] encoders;
+
+        private int count;
+
+        /**
+         * Time which the producer waited for encoder threads.
+         */
+        private long waitNanos;
+
+        private Batch(){
+            indices = new String[BATCH_SIZE];
+            types = new String[BATCH_SIZE];
+            encoders = new Object[BATCH_SIZE];
+            count = 0;
+            waitNanos = 0;
+        }
+
+        private void add(String index, String type, Supplier<byte[]> encoder){
+            indices[count] = index;
+            types[count] = type;
+            encoders[count] = encoder;
+            count++;
+
+            if(count == BATCH_SIZE){
+                flush();
+            }
+
+        }
+
+        private void flush(){
+            if(count == 0){
+                return;
+            }
+
+            Batch full = new Batch();
+            System.arraycopy(indices, 0, full.indices, 0, count);
+            System.arraycopy(types, 0, full.types, 0, count);
+            System.arraycopy(encoders, 0, full.encoders, 0, count);
+            full.count = count;
+            waitNanos += handoff(full);
+
+            for(int idx = 0; idx < count; idx++){
+                encoders[idx] = null;
+            }
+            count = 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void encode(){
+            for(int idx = 0; idx < count; idx++){
+                byte[] source = ((Supplier<byte[]>)encoders[idx]).get();
+                publishQueue.add(new IndexRequest(indices[idx], types[idx]).source(source, XContentType.JSON));
+            }
+        }
+
+    }
+
+    private final PublishQueue publishQueue;
+
+    private final BlockingQueue<Batch> queue;
+
+    private final ThreadLocal<Batch> staging;
+
+    /**
+     * All staging batches. They are flushed at close().
+     */
+    private final ConcurrentLinkedQueue<Batch> stagings;
+
+    private final Thread[] workers;
+
+    /**
+     * Number of records which are handed to encoder threads.
+     */
+    private final AtomicLong submitted;
+
+    /**
+     * Number of records which are encoded and handed to the publisher.
+     */
+    private final LongAdder flushed;
+
+    private volatile boolean closed;
+
+    private volatile Throwable failure;
+
+    /* Statistics */
+    private final LongAdder producerWaits;
+
+    private final LongAdder producerWaitNanos;
+
+    private final LongAdder encodeNanos;
+
+    private final long startTime;
+
+    /**
+     * Time when encoder threads are finished. 0 means they are running.
+     */
+    private volatile long endTime;
+
+    /**
+     * Constructor of EncodePipeline.
+     * 
+     * @param publishQueue Queue of encoded documents (send stage).
+     * @param threads Number of encoder threads.
+     * @param queueSize Number of batches which can be queued before producers wait.
+     */
+    public EncodePipeline(PublishQueue publishQueue, int threads, int queueSize){
+        this.publishQueue = publishQueue;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.stagings = new ConcurrentLinkedQueue<>();
+        this.staging = ThreadLocal.withInitial(() -> {
+                                                       Batch b = new Batch();
+                                                       stagings.add(b);
+                                                       return b;
+                                                     });
+        this.submitted = new AtomicLong();
+        this.flushed = new LongAdder();
+        this.closed = false;
+        this.failure = null;
+        this.producerWaits = new LongAdder();
+        this.producerWaitNanos = new LongAdder();
+        this.encodeNanos = new LongAdder();
+        this.startTime = System.nanoTime();
+        this.endTime = 0;
+
+        this.workers = new Thread[threads];
+        for(int idx = 0; idx < threads; idx++){
+            workers[idx] = new Thread(this::work, "hsloader-encoder-" + idx);
+            workers[idx].setDaemon(true);
+            workers[idx].start();
+        }
+
+    }
+
+    private void work(){
+        long unflushed = 0;
+
+        while(true){
+            Batch batch;
+            try{
+                batch = queue.poll(1, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e){
+                break;
+            }
+
+            if(batch == null){
+                if(unflushed > 0){
+                    publishQueue.flush();
+                    flushed.add(unflushed);
+                    unflushed = 0;
+                }
+                if(closed && queue.isEmpty()){
+                    break;
+                }
+                continue;
+            }
+
+            long start = System.nanoTime();
+            long waitedAtStart = publishQueue.getCurrentThreadBackpressureNanos();
+            try{
+                batch.encode();
+            }
+            catch(Throwable t){
+                failure = t;
+            }
+            encodeNanos.add((System.nanoTime() - start) - (publishQueue.getCurrentThreadBackpressureNanos() - waitedAtStart));
+            unflushed += batch.count;
+        }
+
+        publishQueue.flush();
+        flushed.add(unflushed);
+    }
+
+    /**
+     * Hand the batch to encoder threads.
+     * 
+     * @param batch Batch of records.
+     * @return Time which current thread waited for encoder threads in nanoseconds.
+     */
+    private long handoff(Batch batch){
+        if(queue.offer(batch)){
+            submitted.addAndGet(batch.count);
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        producerWaits.increment();
+        try{
+            while(!queue.offer(batch, 1, TimeUnit.MILLISECONDS)){
+                if(failure != null){
+                    throw new IllegalStateException("Encoder thread is failed.", failure);
+                }
+            }
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for encoder threads.", e);
+        }
+
+        long waited = System.nanoTime() - start;
+        producerWaitNanos.add(waited);
+        submitted.addAndGet(batch.count);
+        return waited;
+    }
+
+    /**
+     * Add the record which encodes the document.
+     * The encoder is called on encoder thread, so it must not refer mutable
+     * state of the producer.
+     * 
+     * @param index Index name.
+     * @param type Type name.
+     * @param encoder Encoder of the document.
+     */
+    public void add(String index, String type, Supplier<byte[]> encoder){
+        if(closed){
+            throw new IllegalStateException("EncodePipeline is already closed.");
+        }
+
+        staging.get().add(index, type, encoder);
+    }
+
+    /**
+     * Hand staged records of current thread to encoder threads.
+     * Producer threads should call this method when they finish their work.
+     */
+    public void flush(){
+        staging.get().flush();
+    }
+
+    /**
+     * Hand staged records of current thread to encoder threads, and wait
+     * until all records which are handed so far are passed to the publisher.
+     * 
+     * @throws InterruptedException Thrown when interrupted while waiting for encoder threads.
+     */
+    public void sync() throws InterruptedException{
+        flush();
+        long target = submitted.get();
+
+        while(flushed.sum() < target){
+            if(failure != null){
+                throw new IllegalStateException("Encoder thread is failed.", failure);
+            }
+            if(Thread.interrupted()){
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(this, 100_000L);
+        }
+
+    }
+
+    /**
+     * Get the exception which is thrown from encoder threads.
+     * 
+     * @return Exception from encoder threads, or null.
+     */
+    public Throwable getFailure(){
+        return failure;
+    }
+
+    /**
+     * Get total time which producers waited for encoder threads.
+     * 
+     * @return Backpressure time in nanoseconds.
+     */
+    public long getBackpressureNanos(){
+        return producerWaitNanos.sum();
+    }
+
+    /**
+     * Get total time which current thread waited for encoder threads.
+     * 
+     * @return Backpressure time of current thread in nanoseconds.
+     */
+    public long getCurrentThreadBackpressureNanos(){
+        return staging.get().waitNanos;
+    }
+
+    /**
+     * Get utilization of encoder threads (encode stage).
+     * It is the ratio of time in encoding, excluding waiting for the
+     * publisher, to the lifetime of all encoder threads.
+     * 
+     * @return Utilization between 0.0 and 1.0.
+     */
+    public double getUtilization(){
+        long end = (endTime == 0) ? System.nanoTime() : endTime;
+        long lifetime = (end - startTime) * workers.length;
+        return (lifetime <= 0) ? 0.0d : Math.min((double)encodeNanos.sum() / lifetime, 1.0d);
+    }
+
+    /**
+     * Print statistics of this pipeline.
+     * 
+     * @param out Output stream.
+     */
+    public void printStatistics(PrintStream out){
+        out.println("Encode pipeline statistics:");
+        out.println("  Encoder threads: " + workers.length);
+        out.println("  Encoded documents: " + flushed.sum());
+        out.println("  Backpressure waits of parsers: " + producerWaits.sum() + " (" + (producerWaitNanos.sum() / 1_000_000L) + " ms)");
+        out.println(String.format("  Encoder thread utilization: %.1f %%", getUtilization() * 100.0d));
+    }
+
+    /**
+     * Flush all staging batches, and wait for encoder threads.
+     * All producers must finish before calling this method.
+     * 
+     * @throws InterruptedException Thrown when interrupted while waiting for encoder threads.
+     */
+    @Override
+    public void close() throws InterruptedException{
+        if(closed){
+            return;
+        }
+
+        stagings.forEach(Batch::flush);
+        closed = true;
+        for(Thread worker : workers){
+            worker.join();
+        }
+        endTime = System.nanoTime();
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * FileFollower.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watcher for input files in follow mode.
+ * The directories of the input files are watched by WatchService, and
+ * the listener is called when the file is not modified for the delay
+ * (it means that HeapStats agent finished writing). The listener is called
+ * within 4 times of the delay even if the file is modified continuously.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class FileFollower implements AutoCloseable{
+
+    /**
+     * Listener for modified files.
+     */
+    @FunctionalInterface
+    public static interface Listener{
+
+        /**
+         * Called when the file is created or appended.
+         * 
+         * @param file Modified file.
+         * @throws Exception Thrown when the file could not be processed.
+         */
+        public void onModified(Path file) throws Exception;
+
+    }
+
+    private final WatchService watchService;
+
+    private final Set<Path> files;
+
+    /**
+     * Modified files. Value is the time of {first event, last event} in nanos.
+     */
+    private final Map<Path, long[]> modified;
+
+    private final long delayNanos;
+
+    /**
+     * Constructor of FileFollower.
+     * 
+     * @param files Files to follow.
+     * @param delay Quiet period in milliseconds before the file is processed.
+     * @throws IOException Thrown when the directories could not be watched.
+     */
+    public FileFollower(List<String> files, long delay) throws IOException{
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.files = new HashSet<>();
+        this.modified = new LinkedHashMap<>();
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delay);
+
+        Set<Path> dirs = new HashSet<>();
+        for(String file : files){
+            Path path = Paths.get(file).toAbsolutePath().normalize();
+            this.files.add(path);
+            dirs.add(path.getParent());
+        }
+
+        for(Path dir : dirs){
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+
+    }
+
+    private void markModified(Path file, long now){
+        long[] times = modified.get(file);
+        if(times == null){
+            modified.put(file, new long[]{now, now});
+        }
+        else{
+            times[1] = now;
+        }
+    }
+
+    /**
+     * Watch files until current thread is interrupted.
+     * Exceptions from the listener are reported, and the file will be
+     * processed again at the next modification.
+     * 
+     * @param listener Listener for modified files.
+     * @throws InterruptedException Thrown when current thread is interrupted.
+     */
+    public void run(Listener listener) throws InterruptedException{
+        long pollMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(delayNanos) / 4, 10);
+
+        while(true){
+            WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+            long now = System.nanoTime();
+
+            if(key != null){
+                Path dir = (Path)key.watchable();
+                for(WatchEvent<?> event : key.pollEvents()){
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+                        files.forEach(f -> markModified(f, now));
+                    }
+                    else{
+                        Path file = dir.resolve((Path)event.context());
+                        if(files.contains(file)){
+                            markModified(file, now);
+                        }
+                    }
+                }
+                key.reset();
+            }
+
+            Iterator<Map.Entry<Path, long[]>> itr = modified.entrySet().iterator();
+            while(itr.hasNext()){
+                Map.Entry<Path, long[]> entry = itr.next();
+                long[] times = entry.getValue();
+
+                if(((now - times[1]) >= delayNanos) || ((now - times[0]) >= (delayNanos * 4))){
+                    itr.remove();
+
+                    try{
+                        listener.onModified(entry.getKey());
+                    }
+                    catch(InterruptedException e){
+                        throw e;
+                    }
+                    catch(Exception e){
+                        System.err.println("Failed " + entry.getKey() + ": " + e.getLocalizedMessage());
+
+                        if(Boolean.getBoolean("debug")){
+                            e.printStackTrace();
+                        }
+
+                    }
+
+                }
+
+            }
+
+        }
+
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException{
+        watchService.close();
+    }
+
+}
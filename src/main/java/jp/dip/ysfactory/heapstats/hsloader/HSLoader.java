@@ -21,6 +21,7 @@
 package jp.dip.ysfactory.heapstats.hsloader;
 
 import jp.dip.ysfactory.heapstats.hsloader.log.LogProcessor;
+import jp.dip.ysfactory.heapstats.hsloader.replay.ReplayProcessor;
 import jp.dip.ysfactory.heapstats.hsloader.snapshot.SnapShotProcessor;
 
 
@@ -59,17 +60,65 @@ public class HSLoader {
             opt = new Option(args);
         }
         catch(Exception e){
+            System.err.println(e.getLocalizedMessage());
             Option.printOptions();
             return;
         }
         
         Thread.setDefaultUncaughtExceptionHandler(new ExceptionHandler());
 
-        try(Processor processor = (opt.getParserMode() == Option.ParserMode.log) ? new LogProcessor(opt) : new SnapShotProcessor(opt)) {
+        Processor processor;
+        switch(opt.getParserMode()){
+            case log:
+                processor = new LogProcessor(opt);
+                break;
+
+            case replay:
+                processor = new ReplayProcessor(opt);
+                break;
+
+            default:
+                processor = new SnapShotProcessor(opt);
+        }
+
+        /*
+         * Follow mode runs until the process is terminated (e.g. Ctrl-C).
+         * Main thread is interrupted at shutdown so that remaining documents
+         * and checkpoints are flushed in close().
+         */
+        if(opt.isFollow()){
+            Thread mainThread = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                                                                      mainThread.interrupt();
+                                                                      try{
+                                                                          mainThread.join(opt.getTimeout() * 1000L);
+                                                                      }
+                                                                      catch(InterruptedException e){
+                                                                          // Do nothing
+                                                                      }
+                                                                  }));
+        }
+
+        /*
+         * Result should be checked after close() because failed documents
+         * are retried until close() returns.
+         */
+        try(processor){
+            /*
+             * Allocations on the main thread are measured only here,
+             * including all files in follow mode. Segment workers measure
+             * their own threads.
+             */
+            long allocatedAtStart = MemoryReport.getCurrentThreadAllocatedBytes();
             processor.process();
+            processor.getMemoryReport().addAllocatedBytes(allocatedAtStart, MemoryReport.getCurrentThreadAllocatedBytes());
+        }
+
+        System.out.println();
+        System.out.println(processor.isSucceeded() ? "Succeeded" : "Failed");
 
-            System.out.println();
-            System.out.println(processor.isSucceeded() ? "Succeeded" : "Failed");
+        if(opt.isMemoryReport()){
+            processor.getMemoryReport().print(System.out);
         }
 
     }
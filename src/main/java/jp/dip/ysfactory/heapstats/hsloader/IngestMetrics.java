@@ -0,0 +1,512 @@
+/*
+ * IngestMetrics.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader;
+
+import jp.dip.ysfactory.heapstats.hsloader.encode.JsonEncoder;
+import jp.dip.ysfactory.heapstats.hsloader.encode.JsonField;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ingestion metrics of HSLoader.
+ * Metrics are exposed through JMX, periodic progress line, and JSON
+ * summary at exit.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class IngestMetrics implements IngestMetricsMXBean, AutoCloseable{
+
+    /**
+     * Object name of the MBean.
+     */
+    public static final String OBJECT_NAME = "jp.dip.ysfactory.heapstats.hsloader:type=IngestMetrics";
+
+    /**
+     * Upper bounds of latency buckets in milliseconds.
+     * The last bucket (+Inf) is not included.
+     */
+    private static final long[] LATENCY_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+
+    /* Fields for summary */
+    private static final JsonField SUCCEEDED = new JsonField("succeeded");
+    private static final JsonField ELAPSED_TIME = new JsonField("elapsedTime");
+    private static final JsonField DOCUMENTS = new JsonField("documents");
+    private static final JsonField DOCUMENTS_PER_SECOND = new JsonField("documentsPerSecond");
+    private static final JsonField DOCUMENTS_BY_TYPE = new JsonField("documentsByType");
+    private static final JsonField DOCUMENTS_PER_SECOND_BY_TYPE = new JsonField("documentsPerSecondByType");
+    private static final JsonField BULK_REQUESTS = new JsonField("bulkRequests");
+    private static final JsonField FAILED_BULK_REQUESTS = new JsonField("failedBulkRequests");
+    private static final JsonField BYTES_SENT = new JsonField("bytesSent");
+    private static final JsonField BULK_LATENCY = new JsonField("bulkLatency");
+    private static final JsonField P50 = new JsonField("p50");
+    private static final JsonField P99 = new JsonField("p99");
+    private static final JsonField MAX = new JsonField("max");
+    private static final JsonField HISTOGRAM = new JsonField("histogram");
+    private static final JsonField TIME = new JsonField("time");
+    private static final JsonField PARSE = new JsonField("parse");
+    private static final JsonField ENCODE = new JsonField("encode");
+    private static final JsonField PUBLISH = new JsonField("publish");
+    private static final JsonField SEND = new JsonField("send");
+    private static final JsonField GC = new JsonField("gc");
+    private static final JsonField STAGE_UTILIZATION = new JsonField("stageUtilization");
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+
+    private final long startTime;
+
+    private final long startGCTime;
+
+    /**
+     * Number of documents by type.
+     */
+    private final Map<String, LongAdder> documents;
+
+    private final LongAdder bulkRequests;
+
+    private final LongAdder failedBulkRequests;
+
+    private final LongAdder bytesSent;
+
+    private final AtomicInteger inFlight;
+
+    private final AtomicLongArray latencyHistogram;
+
+    private final AtomicLong maxLatency;
+
+    private final LongAdder sendNanos;
+
+    /**
+     * Time of producer threads in nanoseconds.
+     */
+    private final LongAdder processNanos;
+
+    /**
+     * Start time of bulk requests from BulkProcessor.Listener.
+     */
+    private final Map<Long, Long> bulkStartTimes;
+
+    private volatile PublishQueue publishQueue;
+
+    private volatile EncodePipeline encodePipeline;
+
+    private ScheduledExecutorService progressReporter;
+
+    private ObjectName objectName;
+
+    /**
+     * Constructor of IngestMetrics.
+     */
+    public IngestMetrics(){
+        this.startTime = System.nanoTime();
+        this.startGCTime = getTotalGCTime();
+        this.documents = new ConcurrentHashMap<>();
+        this.bulkRequests = new LongAdder();
+        this.failedBulkRequests = new LongAdder();
+        this.bytesSent = new LongAdder();
+        this.inFlight = new AtomicInteger();
+        this.latencyHistogram = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+        this.maxLatency = new AtomicLong();
+        this.sendNanos = new LongAdder();
+        this.processNanos = new LongAdder();
+        this.bulkStartTimes = new ConcurrentHashMap<>();
+        this.publishQueue = null;
+        this.encodePipeline = null;
+        this.progressReporter = null;
+        this.objectName = null;
+    }
+
+    private static long getTotalGCTime(){
+        long time = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            time += Math.max(gc.getCollectionTime(), 0);
+        }
+        return time;
+    }
+
+    /**
+     * Set publish queue to observe its depth and backpressure.
+     * 
+     * @param publishQueue Publish queue.
+     */
+    public void setPublishQueue(PublishQueue publishQueue){
+        this.publishQueue = publishQueue;
+    }
+
+    /**
+     * Set encode pipeline to observe its backpressure and utilization.
+     * 
+     * @param encodePipeline Encode pipeline.
+     */
+    public void setEncodePipeline(EncodePipeline encodePipeline){
+        this.encodePipeline = encodePipeline;
+    }
+
+    /**
+     * Count published document.
+     * 
+     * @param type Type name of the document.
+     */
+    public void addDocument(String type){
+        documents.computeIfAbsent(type, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Add time of producer thread.
+     * 
+     * @param nanos Time in nanoseconds.
+     */
+    public void addProcessTime(long nanos){
+        processNanos.add(nanos);
+    }
+
+    /**
+     * Record start of bulk request.
+     * 
+     * @param bytes Size of the request.
+     * @return Start time which should be passed to onBulkEnd().
+     */
+    public long onBulkStart(long bytes){
+        inFlight.incrementAndGet();
+        bytesSent.add(bytes);
+        return System.nanoTime();
+    }
+
+    /**
+     * Record end of bulk request.
+     * 
+     * @param start Start time from onBulkStart().
+     * @param failed true if the request is failed as a whole.
+     */
+    public void onBulkEnd(long start, boolean failed){
+        long nanos = System.nanoTime() - start;
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+
+        int bucket = 0;
+        while((bucket < LATENCY_BOUNDS.length) && (millis > LATENCY_BOUNDS[bucket])){
+            bucket++;
+        }
+
+        latencyHistogram.incrementAndGet(bucket);
+        maxLatency.accumulateAndGet(millis, Math::max);
+        sendNanos.add(nanos);
+        bulkRequests.increment();
+        if(failed){
+            failedBulkRequests.increment();
+        }
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Record start of bulk request from BulkProcessor.Listener.
+     * 
+     * @param executionId Execution ID of the request.
+     * @param bytes Size of the request.
+     */
+    public void beforeBulk(long executionId, long bytes){
+        bulkStartTimes.put(executionId, onBulkStart(bytes));
+    }
+
+    /**
+     * Record end of bulk request from BulkProcessor.Listener.
+     * 
+     * @param executionId Execution ID of the request.
+     * @param failed true if the request is failed as a whole.
+     */
+    public void afterBulk(long executionId, boolean failed){
+        Long start = bulkStartTimes.remove(executionId);
+        if(start != null){
+            onBulkEnd(start, failed);
+        }
+    }
+
+    /**
+     * Register this instance to platform MBean server.
+     * 
+     * @throws JMException Thrown when the MBean could not be registered.
+     */
+    public void register() throws JMException{
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        server.registerMBean(this, name);
+        objectName = name;
+    }
+
+    /**
+     * Print progress line periodically.
+     * 
+     * @param out Output stream.
+     * @param interval Interval in seconds.
+     */
+    public void startProgress(PrintStream out, int interval){
+        progressReporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                                                                          Thread thread = new Thread(r, "hsloader-progress");
+                                                                          thread.setDaemon(true);
+                                                                          return thread;
+                                                                        });
+        progressReporter.scheduleAtFixedRate(() -> out.println(getProgressLine()), interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get one-line progress summary.
+     * 
+     * @return Progress summary.
+     */
+    public String getProgressLine(){
+        return String.format("Progress: %d s, %d docs (%.1f docs/s), %d bytes sent, %d in flight, queue %d, bulk p50 %d ms / p99 %d ms, GC %d ms",
+                             getElapsedTime() / 1000, getDocuments(), getDocumentsPerSecond(), getBytesSent(), getInFlightRequests(),
+                             getQueueDepth(), getBulkLatencyP50(), getBulkLatencyP99(), getGCTime());
+    }
+
+    private long getPercentile(double quantile){
+        long total = 0;
+        for(int idx = 0; idx < latencyHistogram.length(); idx++){
+            total += latencyHistogram.get(idx);
+        }
+        if(total == 0){
+            return 0;
+        }
+
+        long target = (long)Math.ceil(total * quantile);
+        long count = 0;
+        for(int idx = 0; idx < LATENCY_BOUNDS.length; idx++){
+            count += latencyHistogram.get(idx);
+            if(count >= target){
+                return LATENCY_BOUNDS[idx];
+            }
+        }
+
+        return getBulkLatencyMax();
+    }
+
+    /**
+     * Write machine-readable summary in JSON.
+     * 
+     * @param path Path to summary file.
+     * @param succeeded true if HSLoader is succeeded.
+     * @throws IOException Thrown when the file could not be written.
+     */
+    public void writeSummary(Path path, boolean succeeded) throws IOException{
+        long elapsed = getElapsedTime();
+        JsonEncoder encoder = new JsonEncoder().startObject()
+                                               .rawField(SUCCEEDED, succeeded ? TRUE : FALSE)
+                                               .field(ELAPSED_TIME, elapsed)
+                                               .field(DOCUMENTS, getDocuments())
+                                               .field(DOCUMENTS_PER_SECOND, getDocumentsPerSecond());
+
+        Map<String, Long> byType = getDocumentsByType();
+        encoder.startObject(DOCUMENTS_BY_TYPE);
+        byType.forEach((k, v) -> encoder.field(new JsonField(k), v));
+        encoder.endObject()
+               .startObject(DOCUMENTS_PER_SECOND_BY_TYPE);
+        byType.forEach((k, v) -> encoder.field(new JsonField(k), (elapsed == 0) ? 0.0d : (v * 1000.0d / elapsed)));
+        encoder.endObject()
+               .field(BULK_REQUESTS, getBulkRequests())
+               .field(FAILED_BULK_REQUESTS, getFailedBulkRequests())
+               .field(BYTES_SENT, getBytesSent())
+               .startObject(BULK_LATENCY)
+               .field(P50, getBulkLatencyP50())
+               .field(P99, getBulkLatencyP99())
+               .field(MAX, getBulkLatencyMax())
+               .startObject(HISTOGRAM);
+        getBulkLatencyHistogram().forEach((k, v) -> encoder.field(new JsonField(k), v));
+        encoder.endObject()
+               .endObject()
+               .startObject(TIME)
+               .field(PARSE, getParseTime())
+               .field(ENCODE, getEncodeTime())
+               .field(PUBLISH, getPublishTime())
+               .field(SEND, getSendTime())
+               .field(GC, getGCTime())
+               .endObject()
+               .startObject(STAGE_UTILIZATION);
+        getStageUtilization().forEach((k, v) -> encoder.field(new JsonField(k), v));
+        encoder.endObject()
+               .endObject();
+
+        Files.write(path, (new String(encoder.toByteArray(), StandardCharsets.UTF_8) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public long getElapsedTime(){
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    @Override
+    public long getDocuments(){
+        long total = 0;
+        for(LongAdder adder : documents.values()){
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public double getDocumentsPerSecond(){
+        long elapsed = getElapsedTime();
+        return (elapsed == 0) ? 0.0d : (getDocuments() * 1000.0d / elapsed);
+    }
+
+    @Override
+    public Map<String, Long> getDocumentsByType(){
+        Map<String, Long> result = new TreeMap<>();
+        documents.forEach((k, v) -> result.put(k, v.sum()));
+        return result;
+    }
+
+    @Override
+    public long getBulkRequests(){
+        return bulkRequests.sum();
+    }
+
+    @Override
+    public long getFailedBulkRequests(){
+        return failedBulkRequests.sum();
+    }
+
+    @Override
+    public long getBytesSent(){
+        return bytesSent.sum();
+    }
+
+    @Override
+    public int getInFlightRequests(){
+        return inFlight.get();
+    }
+
+    @Override
+    public int getQueueDepth(){
+        PublishQueue queue = publishQueue;
+        return (queue == null) ? 0 : queue.getPendingChunks();
+    }
+
+    @Override
+    public Map<String, Long> getBulkLatencyHistogram(){
+        Map<String, Long> result = new LinkedHashMap<>();
+        for(int idx = 0; idx < LATENCY_BOUNDS.length; idx++){
+            result.put(Long.toString(LATENCY_BOUNDS[idx]), latencyHistogram.get(idx));
+        }
+        result.put("+Inf", latencyHistogram.get(LATENCY_BOUNDS.length));
+        return result;
+    }
+
+    @Override
+    public long getBulkLatencyP50(){
+        return getPercentile(0.5d);
+    }
+
+    @Override
+    public long getBulkLatencyP99(){
+        return getPercentile(0.99d);
+    }
+
+    @Override
+    public long getBulkLatencyMax(){
+        return maxLatency.get();
+    }
+
+    @Override
+    public long getParseTime(){
+        EncodePipeline pipeline = encodePipeline;
+        if(pipeline != null){
+            /* Documents are encoded and published on encoder threads. */
+            return Math.max(getProcessTime() - TimeUnit.NANOSECONDS.toMillis(pipeline.getBackpressureNanos()), 0);
+        }
+        return Math.max(getProcessTime() - getEncodeTime() - getPublishTime(), 0);
+    }
+
+    private long getProcessTime(){
+        return TimeUnit.NANOSECONDS.toMillis(processNanos.sum());
+    }
+
+    @Override
+    public long getEncodeTime(){
+        return TimeUnit.NANOSECONDS.toMillis(JsonEncoder.getEncodeNanos());
+    }
+
+    @Override
+    public long getPublishTime(){
+        PublishQueue queue = publishQueue;
+        return (queue == null) ? 0 : TimeUnit.NANOSECONDS.toMillis(queue.getBackpressureNanos());
+    }
+
+    @Override
+    public long getSendTime(){
+        return TimeUnit.NANOSECONDS.toMillis(sendNanos.sum());
+    }
+
+    @Override
+    public Map<String, Double> getStageUtilization(){
+        Map<String, Double> result = new LinkedHashMap<>();
+        EncodePipeline pipeline = encodePipeline;
+        PublishQueue queue = publishQueue;
+
+        long process = processNanos.sum();
+        long waited = (pipeline != null) ? pipeline.getBackpressureNanos()
+                                         : ((queue == null) ? 0 : queue.getBackpressureNanos());
+        result.put("parse", (process == 0) ? 0.0d : (Math.max(process - waited, 0) / (double)process));
+        if(pipeline != null){
+            result.put("encode", pipeline.getUtilization());
+        }
+        result.put("send", (queue == null) ? 0.0d : queue.getUtilization());
+        return result;
+    }
+
+    @Override
+    public long getGCTime(){
+        return getTotalGCTime() - startGCTime;
+    }
+
+    /**
+     * Stop progress line, and unregister the MBean.
+     * 
+     * @throws JMException Thrown when the MBean could not be unregistered.
+     */
+    @Override
+    public void close() throws JMException{
+        if(progressReporter != null){
+            progressReporter.shutdownNow();
+        }
+        if(objectName != null){
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * IngestMetricsMXBean.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader;
+
+import java.util.Map;
+
+/**
+ * JMX interface of ingestion metrics.
+ * Times are in milliseconds unless otherwise noted.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public interface IngestMetricsMXBean{
+
+    /**
+     * Get elapsed time since HSLoader started.
+     * 
+     * @return Elapsed time.
+     */
+    public long getElapsedTime();
+
+    /**
+     * Get number of published documents.
+     * 
+     * @return Number of documents.
+     */
+    public long getDocuments();
+
+    /**
+     * Get number of published documents per second since HSLoader started.
+     * 
+     * @return Documents per second.
+     */
+    public double getDocumentsPerSecond();
+
+    /**
+     * Get number of published documents by type.
+     * 
+     * @return Map of type name and number of documents.
+     */
+    public Map<String, Long> getDocumentsByType();
+
+    /**
+     * Get number of bulk requests which are finished.
+     * 
+     * @return Number of bulk requests.
+     */
+    public long getBulkRequests();
+
+    /**
+     * Get number of bulk requests which are failed as a whole.
+     * 
+     * @return Number of failed bulk requests.
+     */
+    public long getFailedBulkRequests();
+
+    /**
+     * Get size of bulk requests which are sent to Elasticsearch.
+     * 
+     * @return Bytes sent.
+     */
+    public long getBytesSent();
+
+    /**
+     * Get number of bulk requests in flight.
+     * 
+     * @return Number of in-flight requests.
+     */
+    public int getInFlightRequests();
+
+    /**
+     * Get number of buffers which are waiting for the publisher thread.
+     * 
+     * @return Queue depth.
+     */
+    public int getQueueDepth();
+
+    /**
+     * Get histogram of bulk latency.
+     * 
+     * @return Map of upper bound of the bucket ("+Inf" for the last) and number of requests.
+     */
+    public Map<String, Long> getBulkLatencyHistogram();
+
+    /**
+     * Get estimated median of bulk latency.
+     * 
+     * @return Upper bound of the bucket which contains the median.
+     */
+    public long getBulkLatencyP50();
+
+    /**
+     * Get estimated 99th percentile of bulk latency.
+     * 
+     * @return Upper bound of the bucket which contains the 99th percentile.
+     */
+    public long getBulkLatencyP99();
+
+    /**
+     * Get max bulk latency.
+     * 
+     * @return Max latency.
+     */
+    public long getBulkLatencyMax();
+
+    /**
+     * Get time of producer threads except encoding and publishing.
+     * 
+     * @return Parse time.
+     */
+    public long getParseTime();
+
+    /**
+     * Get time of document encoding.
+     * 
+     * @return Encode time.
+     */
+    public long getEncodeTime();
+
+    /**
+     * Get time which producers waited for the publisher thread.
+     * 
+     * @return Publish time.
+     */
+    public long getPublishTime();
+
+    /**
+     * Get total latency of bulk requests.
+     * 
+     * @return Send time.
+     */
+    public long getSendTime();
+
+    /**
+     * Get utilization of each stage (parse, encode and send).
+     * Parse is the ratio of producer time which is not blocked by the next
+     * stage. Encode and send are the ratio of busy time to the lifetime of
+     * their threads. Encode is included only if encoder threads are enabled.
+     * The stage which is close to 1.0 is the bottleneck.
+     * 
+     * @return Utilization between 0.0 and 1.0 by stage.
+     */
+    public Map<String, Double> getStageUtilization();
+
+    /**
+     * Get GC time since HSLoader started.
+     * 
+     * @return GC time.
+     */
+    public long getGCTime();
+
+}
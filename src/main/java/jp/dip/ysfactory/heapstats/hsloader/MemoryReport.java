@@ -0,0 +1,151 @@
+/*
+ * MemoryReport.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memory and allocation statistics of HSLoader.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class MemoryReport{
+
+    private final long startGCCount;
+
+    private final long startGCTime;
+
+    private final long startTime;
+
+    /**
+     * Bytes which are allocated by the main thread and segment workers.
+     */
+    private final LongAdder allocatedBytes;
+
+    /**
+     * Additional counters. They will be shown in the report.
+     */
+    private final Map<String, LongAdder> counters;
+
+    /**
+     * Constructor of MemoryReport.
+     * Peak usage of heap pools is reset in this constructor.
+     */
+    public MemoryReport(){
+        long count = 0;
+        long time = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            count += Math.max(gc.getCollectionCount(), 0);
+            time += Math.max(gc.getCollectionTime(), 0);
+        }
+        startGCCount = count;
+        startGCTime = time;
+        startTime = System.nanoTime();
+
+        ManagementFactory.getMemoryPoolMXBeans()
+                         .stream()
+                         .filter(p -> p.getType() == MemoryType.HEAP)
+                         .forEach(MemoryPoolMXBean::resetPeakUsage);
+
+        allocatedBytes = new LongAdder();
+        counters = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Get allocated bytes by current thread.
+     * 
+     * @return Allocated bytes, or -1 if the JVM does not support it.
+     */
+    public static long getCurrentThreadAllocatedBytes(){
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        if(threadMXBean instanceof com.sun.management.ThreadMXBean){
+            com.sun.management.ThreadMXBean mxbean = (com.sun.management.ThreadMXBean)threadMXBean;
+            if(mxbean.isThreadAllocatedMemorySupported() && mxbean.isThreadAllocatedMemoryEnabled()){
+                return mxbean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Add allocated bytes which are measured by getCurrentThreadAllocatedBytes().
+     * 
+     * @param start Allocated bytes at the beginning.
+     * @param end Allocated bytes at the end.
+     */
+    public void addAllocatedBytes(long start, long end){
+        if((start >= 0) && (end >= 0)){
+            allocatedBytes.add(end - start);
+        }
+    }
+
+    /**
+     * Add value to the counter.
+     * 
+     * @param name Name of the counter.
+     * @param value Value to add.
+     */
+    public void addCounter(String name, long value){
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(value);
+    }
+
+    /**
+     * Print this report.
+     * 
+     * @param out Output stream.
+     */
+    public void print(PrintStream out){
+        long gcCount = 0;
+        long gcTime = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            gcCount += Math.max(gc.getCollectionCount(), 0);
+            gcTime += Math.max(gc.getCollectionTime(), 0);
+        }
+
+        long peakHeap = 0;
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        for(MemoryPoolMXBean pool : pools){
+            if(pool.getType() == MemoryType.HEAP){
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        out.println("Memory report:");
+        out.println("  Elapsed time (ms): " + ((System.nanoTime() - startTime) / 1_000_000L));
+        out.println("  Allocated bytes: " + allocatedBytes.sum());
+        out.println("  Peak heap usage: " + peakHeap);
+        out.println("  GC count: " + (gcCount - startGCCount));
+        out.println("  GC time (ms): " + (gcTime - startGCTime));
+        counters.forEach((k, v) -> out.println("  " + k + ": " + v.sum()));
+    }
+
+}
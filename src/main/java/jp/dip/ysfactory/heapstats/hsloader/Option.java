@@ -20,6 +20,12 @@
  */
 package jp.dip.ysfactory.heapstats.hsloader;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.Arrays;
 import java.util.List;
@@ -34,15 +40,55 @@ public class Option{
      */
     public static enum ParserMode{
         snapshot,
-        log
+        log,
+        replay
     }
     
+    /**
+     * Document encoder.
+     */
+    public static enum Encoder{
+        direct,
+        xcontent
+    }
+
+    /**
+     * Transport of bulk requests.
+     */
+    public static enum Transport{
+        client,
+        raw
+    }
+
+    /**
+     * Reader of SnapShot files.
+     */
+    public static enum SnapShotReader{
+        stream,
+        mmap
+    }
+
+    /**
+     * Selector of Elasticsearch nodes for raw transport.
+     */
+    public static enum NodeSelector{
+        round_robin,
+        least_outstanding
+    }
+
     /**
      * Default value of parser mode.
      */
     public static final ParserMode DEFAULT_PARSER_MODE = ParserMode.snapshot;
     
     private ParserMode parserMode;
+
+    /**
+     * Default value of document encoder.
+     */
+    public static final Encoder DEFAULT_ENCODER = Encoder.direct;
+
+    private Encoder encoder;
     
     /**
      * Default value of target hostname.
@@ -74,6 +120,108 @@ public class Option{
      */
     private int bulkRequests;
     
+    /**
+     * Default size of bulk request in MB.
+     */
+    public static final int DEFAULT_BULK_SIZE = 5;
+
+    /**
+     * Size of bulk request in bytes.
+     */
+    private long bulkSize;
+
+    /**
+     * Default flush interval in second. 0 means disabled.
+     */
+    public static final int DEFAULT_FLUSH_INTERVAL = 0;
+
+    /**
+     * Flush interval of bulk request in second.
+     */
+    private int flushInterval;
+
+    /**
+     * Default number of concurrent bulk requests.
+     */
+    public static final int DEFAULT_CONCURRENT_REQUESTS = 1;
+
+    /**
+     * Number of concurrent bulk requests.
+     */
+    private int concurrentRequests;
+
+    /**
+     * Default number of retries for rejected bulk request.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 8;
+
+    /**
+     * Initial delay of retry in milliseconds.
+     */
+    public static final long DEFAULT_RETRY_DELAY = 50;
+
+    /**
+     * Number of retries for rejected bulk request.
+     */
+    private int maxRetries;
+
+    /**
+     * Default transport of bulk requests.
+     */
+    public static final Transport DEFAULT_TRANSPORT = Transport.client;
+
+    private Transport transport;
+
+    /**
+     * Compress bulk requests with gzip.
+     */
+    private boolean gzip;
+
+    /**
+     * Prefix of output files. null means documents are sent to Elasticsearch.
+     */
+    private String output;
+
+    /**
+     * Default size of output chunk file in MB. 0 means no split.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 0;
+
+    /**
+     * Size of output chunk file in bytes.
+     */
+    private long chunkSize;
+
+    /**
+     * Path to checkpoint file. null means checkpoints are disabled.
+     */
+    private String checkpointFile;
+
+    /**
+     * Default path to dead-letter file.
+     */
+    public static final String DEFAULT_DEAD_LETTER_FILE = "hsloader-dead-letter.ndjson";
+
+    /**
+     * Path to dead-letter file.
+     */
+    private String deadLetterFile;
+
+    /**
+     * Tune bulk size and concurrency adaptively.
+     */
+    private boolean adaptive;
+
+    /**
+     * Default target latency of bulk request in milliseconds.
+     */
+    public static final long DEFAULT_TARGET_LATENCY = 1000;
+
+    /**
+     * Target latency of bulk request in milliseconds.
+     */
+    private long targetLatency;
+    
     /**
      * Default timezone.
      */
@@ -96,6 +244,270 @@ public class Option{
      */
     private int timeout;
 
+    /**
+     * Default number of parallel workers.
+     */
+    public static final int DEFAULT_PARALLEL = 1;
+
+    /**
+     * Number of files which are processed in parallel.
+     */
+    private int parallel;
+
+    /**
+     * Print memory and allocation report at the end.
+     */
+    private boolean memoryReport;
+
+    /**
+     * Print statistics of publish queue at the end.
+     */
+    private boolean publishStats;
+
+    /**
+     * Number of classes to publish per snapshot. 0 means all classes.
+     */
+    private int topClasses;
+
+    /**
+     * Entries which are smaller than this size (in bytes) are summed into "other".
+     */
+    private long minSize;
+
+    /**
+     * Number of reference edges to publish per parent class. 0 means all edges.
+     */
+    private int topRefsPerParent;
+
+    /**
+     * Publish rollups by class loader and package.
+     */
+    private boolean rollup;
+
+    /**
+     * Default depth of package prefix for rollups.
+     */
+    public static final int DEFAULT_ROLLUP_DEPTH = 2;
+
+    /**
+     * Depth of package prefix for rollups.
+     */
+    private int rollupDepth;
+
+    /**
+     * Number of leak suspects to publish per snapshot. 0 means disabled.
+     */
+    private int suspects;
+
+    /**
+     * Default number of snapshots in sliding window for leak suspects.
+     */
+    public static final int DEFAULT_SUSPECT_WINDOW = 10;
+
+    /**
+     * Number of snapshots in sliding window for leak suspects.
+     */
+    private int suspectWindow;
+
+    /**
+     * Publish only changed objects.
+     */
+    private boolean delta;
+
+    /**
+     * Default interval of keyframe snapshots in delta mode.
+     */
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 10;
+
+    /**
+     * Interval of keyframe snapshots in delta mode.
+     */
+    private int keyframeInterval;
+
+    /**
+     * Follow input files after processing them.
+     */
+    private boolean follow;
+
+    /**
+     * Default quiet period of followed files in milliseconds.
+     */
+    public static final long DEFAULT_FOLLOW_DELAY = 500;
+
+    /**
+     * Quiet period of followed files in milliseconds.
+     */
+    private long followDelay;
+
+    /**
+     * Install index templates before loading.
+     */
+    private boolean bootstrap;
+
+    /**
+     * Disable refresh and replicas of touched indices while loading.
+     */
+    private boolean loadSettings;
+
+    /**
+     * Max number of segments for force merge at the end. 0 means disabled.
+     */
+    private int forceMerge;
+
+    /**
+     * Default timeout of force merge in seconds.
+     */
+    public static final int DEFAULT_FORCE_MERGE_TIMEOUT = 3600;
+
+    /**
+     * Timeout of force merge in seconds.
+     */
+    private int forceMergeTimeout;
+
+    /**
+     * Expose ingestion metrics through JMX.
+     */
+    private boolean metrics;
+
+    /**
+     * Interval of progress line in seconds. 0 means disabled.
+     */
+    private int progress;
+
+    /**
+     * File for ingestion metrics summary in JSON.
+     */
+    private String metricsFile;
+
+    /**
+     * Elasticsearch nodes which are parsed from host and port.
+     */
+    private List<InetSocketAddress> hosts;
+
+    /**
+     * Default value of node selector.
+     */
+    public static final NodeSelector DEFAULT_NODE_SELECTOR = NodeSelector.round_robin;
+
+    /**
+     * Selector of Elasticsearch nodes.
+     */
+    private NodeSelector nodeSelector;
+
+    /**
+     * Default time in seconds to mark failed node as dead.
+     */
+    public static final int DEFAULT_DEAD_NODE_TIMEOUT = 30;
+
+    /**
+     * Time in seconds to mark failed node as dead.
+     */
+    private int deadNodeTimeout;
+
+    /**
+     * Number of encoder threads. 0 means documents are encoded on parser thread.
+     */
+    private int encodeThreads;
+
+    /**
+     * Default number of batches which can be queued for encoder threads.
+     */
+    public static final int DEFAULT_ENCODE_QUEUE = 64;
+
+    /**
+     * Number of batches which can be queued for encoder threads.
+     */
+    private int encodeQueue;
+
+    /**
+     * Default value of SnapShot reader.
+     */
+    public static final SnapShotReader DEFAULT_SNAPSHOT_READER = SnapShotReader.stream;
+
+    /**
+     * Reader of SnapShot files.
+     */
+    private SnapShotReader snapShotReader;
+
+    /**
+     * Snapshots before this time are skipped. null means unlimited.
+     */
+    private LocalDateTime from;
+
+    /**
+     * Snapshots after this time are skipped. null means unlimited.
+     */
+    private LocalDateTime to;
+
+    /**
+     * Default number of segments per SnapShot file.
+     */
+    public static final int DEFAULT_SEGMENTS = 1;
+
+    /**
+     * Number of segments which each SnapShot file is split into.
+     * Segments are parsed in parallel.
+     */
+    private int segments;
+
+    /**
+     * Check whether two paths point to the same file.
+     * 
+     * @param path1 Path to the file.
+     * @param path2 Path to the file.
+     * @return true if they are the same file.
+     */
+    private static boolean isSameFile(Path path1, Path path2){
+        if(Files.exists(path1) && Files.exists(path2)){
+            try{
+                return Files.isSameFile(path1, path2);
+            }
+            catch(IOException e){
+                // Compare paths below
+            }
+        }
+
+        return path1.toAbsolutePath().normalize().equals(path2.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Parse the node in --host.
+     * IPv6 address can be specified with port as [addr]:port . Address
+     * which has more than one colon without brackets is regarded as IPv6
+     * address without port.
+     * 
+     * @param node Node in --host: host, host:port, [addr] or [addr]:port
+     * @param defaultPort Port if it is omitted.
+     * @return Address of the node.
+     * @throws IllegalArgumentException Thrown when the node is invalid.
+     */
+    private static InetSocketAddress parseHost(String node, int defaultPort) throws IllegalArgumentException{
+        if(node.startsWith("[")){
+            int end = node.indexOf(']');
+            if(end == -1){
+                throw new IllegalArgumentException("--host has unclosed bracket: " + node);
+            }
+
+            String address = node.substring(1, end);
+            if(end == (node.length() - 1)){
+                return InetSocketAddress.createUnresolved(address, defaultPort);
+            }
+            else if(node.charAt(end + 1) == ':'){
+                return InetSocketAddress.createUnresolved(address, Integer.parseInt(node.substring(end + 2)));
+            }
+            else{
+                throw new IllegalArgumentException("--host should be [addr]:port for IPv6 address with port: " + node);
+            }
+        }
+
+        int separator = node.lastIndexOf(':');
+        if((separator == -1) || (node.indexOf(':') != separator)){
+            return InetSocketAddress.createUnresolved(node, defaultPort);
+        }
+
+        return InetSocketAddress.createUnresolved(node.substring(0, separator), Integer.parseInt(node.substring(separator + 1)));
+    }
+
     /**
      * Print help strings.
      */
@@ -108,12 +520,54 @@ public class Option{
       System.out.println();
       System.out.println("Options:");
       System.out.println("  --help: This help.");
-      System.out.println("  --mode <snapshot|log>: Parser mode. (default: snapshot)");
-      System.out.println("  --host <hostname>: Hostname of Elasticsearch. (default: localhost)");
+      System.out.println("  --mode <snapshot|log|replay>: Parser mode. (default: snapshot)");
+      System.out.println("  --encoder <direct|xcontent>: Document encoder. (default: direct)");
+      System.out.println("  --host <hostname[:port],...>: Hostname of Elasticsearch. Comma-separated list is accepted. IPv6 address with port should be [addr]:port . (default: localhost)");
       System.out.println("  --port <num>: HTTP port of Elasticsearch. (default: 9200)");
       System.out.println("  --bulk <num>: Number of bulk requests to Elasticsearch. (default: 1000)");
+      System.out.println("  --bulk-size <MB>: Size of bulk requests to Elasticsearch. (default: 5)");
+      System.out.println("  --flush-interval <num>: Flush interval of bulk requests in seconds. 0 means disabled. (default: 0)");
+      System.out.println("  --concurrent-requests <num>: Number of concurrent bulk requests. 0 means synchronous. (default: 1)");
+      System.out.println("  --retries <num>: Number of retries for rejected bulk requests. 0 means no retry. (default: 8)");
+      System.out.println("  --transport <client|raw>: Transport of bulk requests. (default: client)");
+      System.out.println("  --gzip: Compress bulk requests (raw transport) or output files with gzip.");
+      System.out.println("  --output <prefix>: Write documents to files in _bulk format instead of Elasticsearch.");
+      System.out.println("  --chunk-size <MB>: Size of each output file. 0 means no split. (default: 0)");
+      System.out.println("  --checkpoint <file>: Resume snapshot files from the offset which is recorded in the file.");
+      System.out.println("  --dead-letter <file>: File for documents which could not be indexed. (default: hsloader-dead-letter.ndjson)");
+      System.out.println("  --adaptive: Tune bulk size and concurrent requests toward target latency.");
+      System.out.println("  --target-latency <ms>: Target latency of bulk requests in adaptive mode. (default: 1000)");
       System.out.println("  --timezone <zone id>: Timezone of SnapShot. (default: System Default)");
       System.out.println("  --timeout <num>: Timeout in seconds (default: 60)");
+      System.out.println("  --parallel <num>: Number of files to process in parallel. (default: 1)");
+      System.out.println("  --encode-threads <num>: Number of threads to encode snapshot documents. 0 means encoding on parser thread. (default: 0)");
+      System.out.println("  --encode-queue <num>: Number of document batches which can be queued for encoder threads. (default: 64)");
+      System.out.println("  --reader <stream|mmap>: Reader of SnapShot files. (default: stream)");
+      System.out.println("  --from <yyyy-MM-ddTHH:mm:ss>: Skip snapshots before this time. It implies --reader mmap.");
+      System.out.println("  --to <yyyy-MM-ddTHH:mm:ss>: Skip snapshots after this time. It implies --reader mmap.");
+      System.out.println("  --segments <num>: Split each SnapShot file into <num> segments at snapshot boundaries, and parse them in parallel. It implies --reader mmap. It cannot be used with --suspects and --delta. (default: 1)");
+      System.out.println("  --memory-report: Print memory and allocation report at the end.");
+      System.out.println("  --publish-stats: Print contention statistics of publishing at the end.");
+      System.out.println("  --top-classes <num>: Publish the largest <num> classes per snapshot. 0 means all. (default: 0)");
+      System.out.println("  --min-size <bytes>: Sum up classes and references smaller than <bytes> into \"(other)\". (default: 0)");
+      System.out.println("  --top-refs-per-parent <num>: Publish the largest <num> references per parent class. 0 means all. (default: 0)");
+      System.out.println("  --rollup: Publish rollups by class loader and package to heapstats-snapshot-rollup index.");
+      System.out.println("  --rollup-depth <num>: Depth of package prefix for rollups. (default: 2)");
+      System.out.println("  --suspects <num>: Publish the top <num> growing classes per snapshot to heapstats-snapshot-suspects index. (default: 0)");
+      System.out.println("  --suspect-window <num>: Number of snapshots for growth regression of suspects. (default: 10)");
+      System.out.println("  --delta: Publish only new, changed and removed classes in objects index.");
+      System.out.println("  --keyframe-interval <num>: Publish all classes every <num> snapshots in delta mode. (default: 10)");
+      System.out.println("  --node-selector <round-robin|least-outstanding>: Selector of Elasticsearch nodes for raw transport. (default: round-robin)");
+      System.out.println("  --dead-node-timeout <sec>: Time to avoid the node after it fails. It is doubled on each consecutive failure. (default: 30)");
+      System.out.println("  --metrics: Expose ingestion metrics through JMX.");
+      System.out.println("  --progress <sec>: Print progress line every <sec> seconds. 0 means disabled. (default: 0)");
+      System.out.println("  --metrics-file <file>: Write ingestion metrics summary in JSON at the end.");
+      System.out.println("  --bootstrap: Install index templates for HeapStats indices before loading.");
+      System.out.println("  --load-settings: Disable refresh and replicas of indices while loading, and restore them at the end.");
+      System.out.println("  --force-merge <num>: Force merge loaded indices into <num> segments at the end. 0 means disabled. (default: 0)");
+      System.out.println("  --force-merge-timeout <sec>: Timeout of force merge request. (default: 3600)");
+      System.out.println("  --follow: Keep watching files, and process appended snapshots or log lines.");
+      System.out.println("  --follow-delay <ms>: Quiet period before appended data is processed in follow mode. (default: 500)");
     }
 
     /**
@@ -124,12 +578,54 @@ public class Option{
      */
     public Option(String[] args) throws IllegalArgumentException{
         parserMode = DEFAULT_PARSER_MODE;
+        encoder = DEFAULT_ENCODER;
         host = DEFAULT_HOST;
         port = DEFAULT_PORT;
         bulkRequests = DEFAULT_BULK_REQUESTS;
+        bulkSize = DEFAULT_BULK_SIZE * 1024L * 1024L;
+        flushInterval = DEFAULT_FLUSH_INTERVAL;
+        concurrentRequests = DEFAULT_CONCURRENT_REQUESTS;
+        maxRetries = DEFAULT_MAX_RETRIES;
+        transport = DEFAULT_TRANSPORT;
+        gzip = false;
+        output = null;
+        chunkSize = DEFAULT_CHUNK_SIZE;
+        checkpointFile = null;
+        deadLetterFile = DEFAULT_DEAD_LETTER_FILE;
+        adaptive = false;
+        targetLatency = DEFAULT_TARGET_LATENCY;
         zoneId = DEFAULT_TIMEZONE;
         files = new ArrayList<>();
         timeout = DEFAULT_TIMEOUT;
+        parallel = DEFAULT_PARALLEL;
+        memoryReport = false;
+        publishStats = false;
+        topClasses = 0;
+        minSize = 0;
+        topRefsPerParent = 0;
+        rollup = false;
+        rollupDepth = DEFAULT_ROLLUP_DEPTH;
+        suspects = 0;
+        suspectWindow = DEFAULT_SUSPECT_WINDOW;
+        delta = false;
+        keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+        follow = false;
+        followDelay = DEFAULT_FOLLOW_DELAY;
+        bootstrap = false;
+        loadSettings = false;
+        forceMerge = 0;
+        forceMergeTimeout = DEFAULT_FORCE_MERGE_TIMEOUT;
+        metrics = false;
+        progress = 0;
+        metricsFile = null;
+        nodeSelector = DEFAULT_NODE_SELECTOR;
+        deadNodeTimeout = DEFAULT_DEAD_NODE_TIMEOUT;
+        encodeThreads = 0;
+        encodeQueue = DEFAULT_ENCODE_QUEUE;
+        snapShotReader = DEFAULT_SNAPSHOT_READER;
+        segments = DEFAULT_SEGMENTS;
+        from = null;
+        to = null;
 
         Iterator<String> itr = Arrays.asList(args).iterator();
 
@@ -150,6 +646,10 @@ public class Option{
                     parserMode = ParserMode.valueOf(itr.next());
                     break;
 
+                case "--encoder":
+                    encoder = Encoder.valueOf(itr.next());
+                    break;
+
                 case "--host":
                     host = itr.next();
                     break;
@@ -160,6 +660,75 @@ public class Option{
 
                 case "--bulk":
                     bulkRequests = Integer.parseInt(itr.next());
+                    if(bulkRequests <= 0){
+                        throw new IllegalArgumentException("--bulk should be greater than 0.");
+                    }
+                    break;
+
+                case "--bulk-size":
+                    bulkSize = Long.parseLong(itr.next()) * 1024L * 1024L;
+                    if(bulkSize <= 0){
+                        throw new IllegalArgumentException("--bulk-size should be greater than 0.");
+                    }
+                    break;
+
+                case "--flush-interval":
+                    flushInterval = Integer.parseInt(itr.next());
+                    if(flushInterval < 0){
+                        throw new IllegalArgumentException("--flush-interval should not be negative.");
+                    }
+                    break;
+
+                case "--concurrent-requests":
+                    concurrentRequests = Integer.parseInt(itr.next());
+                    if(concurrentRequests < 0){
+                        throw new IllegalArgumentException("--concurrent-requests should not be negative.");
+                    }
+                    break;
+
+                case "--retries":
+                    maxRetries = Integer.parseInt(itr.next());
+                    if(maxRetries < 0){
+                        throw new IllegalArgumentException("--retries should not be negative.");
+                    }
+                    break;
+
+                case "--transport":
+                    transport = Transport.valueOf(itr.next());
+                    break;
+
+                case "--gzip":
+                    gzip = true;
+                    break;
+
+                case "--output":
+                    output = itr.next();
+                    break;
+
+                case "--chunk-size":
+                    chunkSize = Long.parseLong(itr.next()) * 1024L * 1024L;
+                    if(chunkSize < 0){
+                        throw new IllegalArgumentException("--chunk-size should not be negative.");
+                    }
+                    break;
+
+                case "--checkpoint":
+                    checkpointFile = itr.next();
+                    break;
+
+                case "--dead-letter":
+                    deadLetterFile = itr.next();
+                    break;
+
+                case "--adaptive":
+                    adaptive = true;
+                    break;
+
+                case "--target-latency":
+                    targetLatency = Long.parseLong(itr.next());
+                    if(targetLatency <= 0){
+                        throw new IllegalArgumentException("--target-latency should be greater than 0.");
+                    }
                     break;
                     
                 case "--timezone":
@@ -169,12 +738,217 @@ public class Option{
                 case "--timeout":
                     timeout = Integer.parseInt(itr.next());
                     break;
-                    
-                default:
-                    files.add(str);
 
+                case "--parallel":
+                    parallel = Integer.parseInt(itr.next());
+                    if(parallel < 1){
+                        throw new IllegalArgumentException("--parallel should be greater than 0.");
+                    }
+                    break;
+
+                case "--encode-threads":
+                    encodeThreads = Integer.parseInt(itr.next());
+                    if(encodeThreads < 0){
+                        throw new IllegalArgumentException("--encode-threads should not be negative.");
+                    }
+                    break;
+
+                case "--reader":
+                    snapShotReader = SnapShotReader.valueOf(itr.next());
+                    break;
+
+                case "--from":
+                    from = LocalDateTime.parse(itr.next());
+                    break;
+
+                case "--to":
+                    to = LocalDateTime.parse(itr.next());
+                    break;
+
+                case "--segments":
+                    segments = Integer.parseInt(itr.next());
+                    if(segments < 1){
+                        throw new IllegalArgumentException("--segments should be greater than 0.");
+                    }
+                    break;
+
+                case "--encode-queue":
+                    encodeQueue = Integer.parseInt(itr.next());
+                    if(encodeQueue < 1){
+                        throw new IllegalArgumentException("--encode-queue should be greater than 0.");
+                    }
+                    break;
+
+                case "--memory-report":
+                    memoryReport = true;
+                    break;
+
+                case "--publish-stats":
+                    publishStats = true;
+                    break;
+
+                case "--top-classes":
+                    topClasses = Integer.parseInt(itr.next());
+                    if(topClasses < 0){
+                        throw new IllegalArgumentException("--top-classes should not be negative.");
+                    }
+                    break;
+
+                case "--min-size":
+                    minSize = Long.parseLong(itr.next());
+                    if(minSize < 0){
+                        throw new IllegalArgumentException("--min-size should not be negative.");
+                    }
+                    break;
+
+                case "--top-refs-per-parent":
+                    topRefsPerParent = Integer.parseInt(itr.next());
+                    if(topRefsPerParent < 0){
+                        throw new IllegalArgumentException("--top-refs-per-parent should not be negative.");
+                    }
+                    break;
+
+                case "--rollup":
+                    rollup = true;
+                    break;
+
+                case "--rollup-depth":
+                    rollupDepth = Integer.parseInt(itr.next());
+                    if(rollupDepth < 1){
+                        throw new IllegalArgumentException("--rollup-depth should be greater than 0.");
+                    }
+                    break;
+
+                case "--suspects":
+                    suspects = Integer.parseInt(itr.next());
+                    break;
+
+                case "--suspect-window":
+                    suspectWindow = Integer.parseInt(itr.next());
+                    if(suspectWindow < 3){
+                        throw new IllegalArgumentException("--suspect-window should be 3 or greater.");
+                    }
+                    break;
+
+                case "--delta":
+                    delta = true;
+                    break;
+
+                case "--keyframe-interval":
+                    keyframeInterval = Integer.parseInt(itr.next());
+                    if(keyframeInterval < 1){
+                        throw new IllegalArgumentException("--keyframe-interval should be greater than 0.");
+                    }
+                    break;
+
+                case "--node-selector":
+                    nodeSelector = NodeSelector.valueOf(itr.next().replace('-', '_'));
+                    break;
+
+                case "--dead-node-timeout":
+                    deadNodeTimeout = Integer.parseInt(itr.next());
+                    break;
+
+                case "--metrics":
+                    metrics = true;
+                    break;
+
+                case "--progress":
+                    progress = Integer.parseInt(itr.next());
+                    break;
+
+                case "--metrics-file":
+                    metricsFile = itr.next();
+                    break;
+
+                case "--bootstrap":
+                    bootstrap = true;
+                    break;
+
+                case "--load-settings":
+                    loadSettings = true;
+                    break;
+
+                case "--force-merge":
+                    forceMerge = Integer.parseInt(itr.next());
+                    break;
+
+                case "--force-merge-timeout":
+                    forceMergeTimeout = Integer.parseInt(itr.next());
+                    if(forceMergeTimeout < 1){
+                        throw new IllegalArgumentException("--force-merge-timeout should be greater than 0.");
+                    }
+                    break;
+
+                case "--follow":
+                    follow = true;
+                    break;
+
+                case "--follow-delay":
+                    followDelay = Long.parseLong(itr.next());
+                    break;
+                    
+                default:
+                    files.add(str);
+
+            }
+
+        }
+
+        hosts = new ArrayList<>();
+        for(String node : host.split(",")){
+            hosts.add(parseHost(node.trim(), port));
+        }
+
+        if(delta && ((topClasses > 0) || (minSize > 0))){
+            throw new IllegalArgumentException("--delta cannot be used with --top-classes or --min-size.");
+        }
+
+        if(follow && (parserMode == ParserMode.replay)){
+            throw new IllegalArgumentException("--follow is not supported on replay mode.");
+        }
+
+        /*
+         * Dead-letter file is opened in append mode, so replay mode would
+         * read documents which fail again while replaying.
+         */
+        if(parserMode == ParserMode.replay){
+            for(String file : files){
+                if(isSameFile(Paths.get(file), Paths.get(deadLetterFile))){
+                    throw new IllegalArgumentException("--dead-letter should be different from the file to replay: " + file);
+                }
             }
+        }
 
+        if(follow && (loadSettings || (forceMerge > 0))){
+            throw new IllegalArgumentException("--load-settings and --force-merge cannot be used with --follow.");
+        }
+
+        if((from != null) || (to != null)){
+            if(parserMode != ParserMode.snapshot){
+                throw new IllegalArgumentException("--from and --to are supported on snapshot mode only.");
+            }
+            if((from != null) && (to != null) && from.isAfter(to)){
+                throw new IllegalArgumentException("--from should not be after --to.");
+            }
+            snapShotReader = SnapShotReader.mmap;
+        }
+
+        if(segments > 1){
+            if(parserMode != ParserMode.snapshot){
+                throw new IllegalArgumentException("--segments is supported on snapshot mode only.");
+            }
+            if(suspects > 0){
+                throw new IllegalArgumentException("--segments cannot be used with --suspects.");
+            }
+            if(delta){
+                throw new IllegalArgumentException("--segments cannot be used with --delta.");
+            }
+            snapShotReader = SnapShotReader.mmap;
+        }
+
+        if((encodeThreads > 0) && (encoder == Encoder.xcontent)){
+            throw new IllegalArgumentException("--encode-threads cannot be used with --encoder xcontent.");
         }
 
     }
@@ -188,6 +962,15 @@ public class Option{
         return parserMode;
     }
 
+    /**
+     * Get document encoder.
+     * 
+     * @return Document encoder.
+     */
+    public Encoder getEncoder(){
+        return encoder;
+    }
+
     /**
      * Get hostname.
      * 
@@ -206,6 +989,89 @@ public class Option{
         return port;
     }
 
+    /**
+     * Get Elasticsearch nodes.
+     * Port number of each node is the value of --port unless it is
+     * specified in --host.
+     * 
+     * @return List of nodes.
+     */
+    public List<InetSocketAddress> getHosts(){
+        return hosts;
+    }
+
+    /**
+     * Get selector of Elasticsearch nodes.
+     * 
+     * @return Node selector.
+     */
+    public NodeSelector getNodeSelector(){
+        return nodeSelector;
+    }
+
+    /**
+     * Get time to mark failed node as dead.
+     * 
+     * @return Time in seconds.
+     */
+    public int getDeadNodeTimeout(){
+        return deadNodeTimeout;
+    }
+
+    /**
+     * Get number of encoder threads.
+     * 
+     * @return Number of threads. 0 means documents are encoded on parser thread.
+     */
+    public int getEncodeThreads(){
+        return encodeThreads;
+    }
+
+    /**
+     * Get reader of SnapShot files.
+     * 
+     * @return SnapShot reader.
+     */
+    public SnapShotReader getSnapShotReader(){
+        return snapShotReader;
+    }
+
+    /**
+     * Get start of time range of snapshots.
+     * 
+     * @return Start time in the timezone of SnapShot, or null.
+     */
+    public LocalDateTime getFrom(){
+        return from;
+    }
+
+    /**
+     * Get end of time range of snapshots.
+     * 
+     * @return End time in the timezone of SnapShot, or null.
+     */
+    public LocalDateTime getTo(){
+        return to;
+    }
+
+    /**
+     * Get number of segments which each SnapShot file is split into.
+     * 
+     * @return Number of segments.
+     */
+    public int getSegments(){
+        return segments;
+    }
+
+    /**
+     * Get number of batches which can be queued for encoder threads.
+     * 
+     * @return Number of batches.
+     */
+    public int getEncodeQueue(){
+        return encodeQueue;
+    }
+
     /**
      * Get number of bulk requests.
      * @return Number of bulk requests.
@@ -214,6 +1080,115 @@ public class Option{
         return bulkRequests;
     }
 
+    /**
+     * Get size of bulk request.
+     * 
+     * @return Size of bulk request in bytes.
+     */
+    public long getBulkSize(){
+        return bulkSize;
+    }
+
+    /**
+     * Get flush interval of bulk request.
+     * 
+     * @return Flush interval in second. 0 means disabled.
+     */
+    public int getFlushInterval(){
+        return flushInterval;
+    }
+
+    /**
+     * Get number of concurrent bulk requests.
+     * In adaptive mode, this is the upper limit of in-flight requests.
+     * 
+     * @return Number of concurrent bulk requests.
+     */
+    public int getConcurrentRequests(){
+        return concurrentRequests;
+    }
+
+    /**
+     * Get number of retries for rejected bulk request.
+     * 
+     * @return Number of retries.
+     */
+    public int getMaxRetries(){
+        return maxRetries;
+    }
+
+    /**
+     * Get transport of bulk requests.
+     * 
+     * @return Transport of bulk requests.
+     */
+    public Transport getTransport(){
+        return transport;
+    }
+
+    /**
+     * Check whether bulk requests or output files should be compressed.
+     * 
+     * @return true if bulk requests or output files should be compressed with gzip.
+     */
+    public boolean isGzip(){
+        return gzip;
+    }
+
+    /**
+     * Get prefix of output files.
+     * 
+     * @return Prefix of output files, or null if documents are sent to Elasticsearch.
+     */
+    public String getOutput(){
+        return output;
+    }
+
+    /**
+     * Get size of output chunk file.
+     * 
+     * @return Size of chunk file in bytes. 0 means no split.
+     */
+    public long getChunkSize(){
+        return chunkSize;
+    }
+
+    /**
+     * Get path to checkpoint file.
+     * 
+     * @return Path to checkpoint file, or null if checkpoints are disabled.
+     */
+    public String getCheckpointFile(){
+        return checkpointFile;
+    }
+
+    /**
+     * Get path to dead-letter file.
+     * 
+     * @return Path to dead-letter file.
+     */
+    public String getDeadLetterFile(){
+        return deadLetterFile;
+    }
+
+    /**
+     * Check whether adaptive mode is enabled.
+     * 
+     * @return true if bulk size and concurrency should be tuned adaptively.
+     */
+    public boolean isAdaptive(){
+        return adaptive;
+    }
+
+    /**
+     * Get target latency of bulk request.
+     * 
+     * @return Target latency in milliseconds.
+     */
+    public long getTargetLatency(){
+        return targetLatency;
+    }
+
     /**
      * Get timezone.
      * 
@@ -232,6 +1207,195 @@ public class Option{
         return timeout;
     }
 
+    /**
+     * Get number of parallel workers.
+     * 
+     * @return Number of files which are processed in parallel.
+     */
+    public int getParallel(){
+        return parallel;
+    }
+
+    /**
+     * Check whether memory report is enabled.
+     * 
+     * @return true if memory report should be printed.
+     */
+    public boolean isMemoryReport(){
+        return memoryReport;
+    }
+
+    /**
+     * Check whether statistics of publishing is enabled.
+     * 
+     * @return true if statistics of publishing should be printed.
+     */
+    public boolean isPublishStats(){
+        return publishStats;
+    }
+
+    /**
+     * Get number of classes to publish per snapshot.
+     * 
+     * @return Number of classes. 0 means all classes.
+     */
+    public int getTopClasses(){
+        return topClasses;
+    }
+
+    /**
+     * Get threshold of size for "other" document.
+     * 
+     * @return Entries which are smaller than this size (in bytes) are summed into "other".
+     */
+    public long getMinSize(){
+        return minSize;
+    }
+
+    /**
+     * Get number of reference edges to publish per parent class.
+     * 
+     * @return Number of edges. 0 means all edges.
+     */
+    public int getTopRefsPerParent(){
+        return topRefsPerParent;
+    }
+
+    /**
+     * Check whether rollups are enabled.
+     * 
+     * @return true if rollups by class loader and package should be published.
+     */
+    public boolean isRollup(){
+        return rollup;
+    }
+
+    /**
+     * Get depth of package prefix for rollups.
+     * 
+     * @return Depth of package prefix.
+     */
+    public int getRollupDepth(){
+        return rollupDepth;
+    }
+
+    /**
+     * Get number of leak suspects to publish per snapshot.
+     * 
+     * @return Number of suspects. 0 means disabled.
+     */
+    public int getSuspects(){
+        return suspects;
+    }
+
+    /**
+     * Get number of snapshots in sliding window for leak suspects.
+     * 
+     * @return Window size.
+     */
+    public int getSuspectWindow(){
+        return suspectWindow;
+    }
+
+    /**
+     * Check whether delta mode is enabled.
+     * 
+     * @return true if only changed objects should be published.
+     */
+    public boolean isDelta(){
+        return delta;
+    }
+
+    /**
+     * Get interval of keyframe snapshots in delta mode.
+     * 
+     * @return Number of snapshots between keyframes.
+     */
+    public int getKeyframeInterval(){
+        return keyframeInterval;
+    }
+
+    /**
+     * Check whether follow mode is enabled.
+     * 
+     * @return true if files should be watched after processing them.
+     */
+    public boolean isFollow(){
+        return follow;
+    }
+
+    /**
+     * Get quiet period of followed files.
+     * 
+     * @return Quiet period in milliseconds.
+     */
+    public long getFollowDelay(){
+        return followDelay;
+    }
+
+    /**
+     * Check whether index templates should be installed.
+     * 
+     * @return true if index templates are installed before loading.
+     */
+    public boolean isBootstrap(){
+        return bootstrap;
+    }
+
+    /**
+     * Check whether load-time index settings are enabled.
+     * 
+     * @return true if refresh and replicas are disabled while loading.
+     */
+    public boolean isLoadSettings(){
+        return loadSettings;
+    }
+
+    /**
+     * Get max number of segments for force merge.
+     * 
+     * @return Max number of segments. 0 means disabled.
+     */
+    public int getForceMerge(){
+        return forceMerge;
+    }
+
+    /**
+     * Get timeout of force merge.
+     * 
+     * @return Timeout in seconds.
+     */
+    public int getForceMergeTimeout(){
+        return forceMergeTimeout;
+    }
+
+    /**
+     * Check whether ingestion metrics are exposed through JMX.
+     * 
+     * @return true if ingestion metrics are registered as MBean.
+     */
+    public boolean isMetrics(){
+        return metrics;
+    }
+
+    /**
+     * Get interval of progress line.
+     * 
+     * @return Interval in seconds. 0 means disabled.
+     */
+    public int getProgress(){
+        return progress;
+    }
+
+    /**
+     * Get file for ingestion metrics summary.
+     * 
+     * @return Path to summary file, or null.
+     */
+    public String getMetricsFile(){
+        return metricsFile;
+    }
+
     /**
      * Get list of files to process.
      * 
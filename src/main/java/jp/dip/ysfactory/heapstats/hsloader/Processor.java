@@ -18,14 +18,35 @@
  */
 package jp.dip.ysfactory.heapstats.hsloader;
 
+import jp.dip.ysfactory.heapstats.hsloader.bulk.AdaptiveBulkSender;
+import jp.dip.ysfactory.heapstats.hsloader.bulk.BulkSender;
+import jp.dip.ysfactory.heapstats.hsloader.bulk.DeadLetterSpool;
+import jp.dip.ysfactory.heapstats.hsloader.bulk.EndpointPool;
+import jp.dip.ysfactory.heapstats.hsloader.bulk.FileBulkSender;
+import jp.dip.ysfactory.heapstats.hsloader.bulk.RawBulkSender;
+import jp.dip.ysfactory.heapstats.hsloader.bulk.RetryLane;
+import jp.dip.ysfactory.heapstats.hsloader.bulk.StaticBulkSender;
+import jp.dip.ysfactory.heapstats.hsloader.encode.JsonEncoder;
+import jp.dip.ysfactory.heapstats.hsloader.index.IndexBootstrap;
 import org.apache.http.HttpHost;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import javax.management.JMException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Abstract class for file processor.
@@ -41,12 +62,77 @@ public abstract class Processor implements AutoCloseable, BulkProcessor.Listener
     
     /**
      * Elasticsearch REST client.
+     * This is null when documents are written to files (--output).
      */
     protected final RestHighLevelClient client;
 
-    protected final BulkProcessor bulkProcessor;
+    /**
+     * Spool for documents which could not be indexed.
+     */
+    protected final DeadLetterSpool deadLetterSpool;
+
+    /**
+     * Checkpoints of input files.
+     * This is null when neither checkpoint file nor follow mode is enabled.
+     */
+    protected final CheckpointStore checkpointStore;
+
+    /**
+     * Retry lane for failed documents.
+     * This is null when documents are written to files (--output).
+     */
+    protected final RetryLane retryLane;
+
+    /**
+     * Sender of bulk requests.
+     */
+    protected final BulkSender bulkSender;
 
-    private boolean succeeded;
+    /**
+     * Queue for publishing documents from many threads.
+     */
+    protected final PublishQueue publishQueue;
+
+    /**
+     * Encode stage between parser threads and the publish queue.
+     * This is null when documents are encoded on parser threads.
+     */
+    protected final EncodePipeline encodePipeline;
+
+    /**
+     * Bootstrap of indices.
+     * This is null when neither load-time settings nor force merge is
+     * enabled, or documents are written to files (--output).
+     */
+    protected final IndexBootstrap indexBootstrap;
+
+    private volatile boolean succeeded;
+
+    /**
+     * Memory and allocation statistics.
+     */
+    protected final MemoryReport memoryReport;
+
+    /**
+     * Ingestion metrics.
+     */
+    protected final IngestMetrics ingestMetrics;
+
+    /**
+     * Convert the address of Elasticsearch node to HttpHost.
+     * IPv6 literal is enclosed in brackets, because HttpHost builds URI
+     * from the host name as it is.
+     * 
+     * @param address Address of the node.
+     * @return HttpHost of the node.
+     */
+    private static HttpHost toHttpHost(InetSocketAddress address){
+        String host = address.getHostString();
+        if((host.indexOf(':') != -1) && !host.startsWith("[")){
+            host = "[" + host + "]";
+        }
+        return new HttpHost(host, address.getPort(), "http");
+    }
 
     /**
      * Constructor of Processor.
@@ -56,40 +142,307 @@ public abstract class Processor implements AutoCloseable, BulkProcessor.Listener
     public Processor(Option opt){
         this.opt = opt;
         this.succeeded = true;
+        this.memoryReport = new MemoryReport();
+        this.ingestMetrics = new IngestMetrics();
+
+        if(opt.isMetrics()){
+            try{
+                ingestMetrics.register();
+            }
+            catch(JMException e){
+                System.err.println("Could not register ingestion metrics: " + e.getLocalizedMessage());
+            }
+        }
+        JsonEncoder.setTiming(opt.isMetrics() || (opt.getProgress() > 0) || (opt.getMetricsFile() != null));
+        if(opt.getProgress() > 0){
+            ingestMetrics.startProgress(System.out, opt.getProgress());
+        }
 
         int timeoutVal = opt.getTimeout() * 1000;
-        this.client = new RestHighLevelClient(RestClient.builder(new HttpHost(opt.getHost(), opt.getPort(), "http"))
-                                                          .setRequestConfigCallback(b -> b.setConnectTimeout(timeoutVal).setSocketTimeout(timeoutVal))
-                                                          .setMaxRetryTimeoutMillis(timeoutVal));
-        this.bulkProcessor = BulkProcessor.builder(client::bulkAsync, this)
-                                          .setBulkActions(opt.getBulkRequests())
-                                          .build();
+        this.deadLetterSpool = new DeadLetterSpool(Paths.get(opt.getDeadLetterFile()));
+        if(opt.getCheckpointFile() != null){
+            this.checkpointStore = new CheckpointStore(Paths.get(opt.getCheckpointFile()));
+        }
+        else{
+            this.checkpointStore = opt.isFollow() ? new CheckpointStore(null) : null;
+        }
+
+        if(opt.getOutput() != null){
+            this.client = null;
+            this.indexBootstrap = null;
+            this.retryLane = null;
+            this.bulkSender = new FileBulkSender(opt.getOutput(), opt.isGzip(), opt.getChunkSize());
+            this.publishQueue = new PublishQueue(bulkSender::add, opt.isPublishStats());
+            this.encodePipeline = createEncodePipeline(opt, publishQueue, ingestMetrics);
+            ingestMetrics.setPublishQueue(publishQueue);
+            return;
+        }
+
+        /*
+         * REST client spreads requests over all nodes in round-robin, and
+         * avoids failed nodes by itself.
+         */
+        HttpHost[] hosts = opt.getHosts()
+                              .stream()
+                              .map(Processor::toHttpHost)
+                              .toArray(HttpHost[]::new);
+        Function<HttpHost[], RestClientBuilder> clientBuilder = h -> RestClient.builder(h)
+                                                                               .setRequestConfigCallback(b -> b.setConnectTimeout(timeoutVal).setSocketTimeout(timeoutVal))
+                                                                               .setMaxRetryTimeoutMillis(timeoutVal);
+        this.client = new RestHighLevelClient(clientBuilder.apply(hosts));
+        int forceMergeTimeoutVal = opt.getForceMergeTimeout() * 1000;
+        IndexBootstrap bootstrap = new IndexBootstrap(client.getLowLevelClient(),
+                                                      () -> RestClient.builder(hosts)
+                                                                      .setRequestConfigCallback(b -> b.setConnectTimeout(timeoutVal).setSocketTimeout(forceMergeTimeoutVal))
+                                                                      .setMaxRetryTimeoutMillis(forceMergeTimeoutVal)
+                                                                      .build(),
+                                                      opt);
+        if(opt.isBootstrap()){
+            try{
+                bootstrap.installTemplates();
+            }
+            catch(IOException e){
+                /* I/O threads of the client should not keep JVM alive. */
+                try{
+                    client.close();
+                }
+                catch(IOException ce){
+                    e.addSuppressed(ce);
+                }
+                throw new UncheckedIOException(e);
+            }
+        }
+        this.indexBootstrap = bootstrap.isTracking() ? bootstrap : null;
+        this.retryLane = new RetryLane(client, deadLetterSpool, opt.getMaxRetries(), Option.DEFAULT_RETRY_DELAY, opt.getBulkRequests(), timeoutVal);
+        if(opt.getTransport() == Option.Transport.raw){
+            this.bulkSender = new RawBulkSender(new EndpointPool(Arrays.asList(hosts), h -> clientBuilder.apply(new HttpHost[]{h}).build(),
+                                                                  opt.getNodeSelector(), opt.getDeadNodeTimeout()),
+                                                 retryLane, deadLetterSpool, ingestMetrics, opt);
+        }
+        else{
+            this.bulkSender = opt.isAdaptive() ? new AdaptiveBulkSender(client, this, deadLetterSpool, opt)
+                                               : new StaticBulkSender(client, this, deadLetterSpool, opt);
+        }
+        this.publishQueue = new PublishQueue(bulkSender::add, opt.isPublishStats());
+        this.encodePipeline = createEncodePipeline(opt, publishQueue, ingestMetrics);
+        ingestMetrics.setPublishQueue(publishQueue);
+    }
+
+    /**
+     * Constructor of Processor with custom bulk sender.
+     * Documents are passed to the sender without Elasticsearch client, so
+     * they are not retried, and checkpoints are not recorded. This is
+     * intended for benchmarks and load tests.
+     * 
+     * @param opt Commandline option.
+     * @param bulkSender Sender of bulk requests.
+     */
+    protected Processor(Option opt, BulkSender bulkSender){
+        this.opt = opt;
+        this.succeeded = true;
+        this.memoryReport = new MemoryReport();
+        this.ingestMetrics = new IngestMetrics();
+        this.deadLetterSpool = new DeadLetterSpool(Paths.get(opt.getDeadLetterFile()));
+        this.checkpointStore = null;
+        this.client = null;
+        this.indexBootstrap = null;
+        this.retryLane = null;
+        this.bulkSender = bulkSender;
+        this.publishQueue = new PublishQueue(bulkSender::add, opt.isPublishStats());
+        this.encodePipeline = createEncodePipeline(opt, publishQueue, ingestMetrics);
+        ingestMetrics.setPublishQueue(publishQueue);
+    }
+
+    private static EncodePipeline createEncodePipeline(Option opt, PublishQueue publishQueue, IngestMetrics ingestMetrics){
+        if(opt.getEncodeThreads() == 0){
+            return null;
+        }
+
+        EncodePipeline pipeline = new EncodePipeline(publishQueue, opt.getEncodeThreads(), opt.getEncodeQueue());
+        ingestMetrics.setEncodePipeline(pipeline);
+        return pipeline;
+    }
+
+    /**
+     * Publish document to Elasticsearch (or output file).
+     * This method can be called from many threads concurrently.
+     * 
+     * @param index Index name.
+     * @param type Type name.
+     * @param contentBuilder Document.
+     */
+    public void publish(String index, String type, XContentBuilder contentBuilder){
+        if(indexBootstrap != null){
+            indexBootstrap.prepare(index);
+        }
+        ingestMetrics.addDocument(type);
+        publishQueue.add(new IndexRequest(index, type).source(contentBuilder));
+    }
+
+    /**
+     * Publish JSON document to Elasticsearch (or output file).
+     * This method can be called from many threads concurrently.
+     * 
+     * @param index Index name.
+     * @param type Type name.
+     * @param source JSON document.
+     */
+    public void publish(String index, String type, byte[] source){
+        if(indexBootstrap != null){
+            indexBootstrap.prepare(index);
+        }
+        ingestMetrics.addDocument(type);
+        publishQueue.add(new IndexRequest(index, type).source(source, XContentType.JSON));
+    }
+
+    /**
+     * Publish JSON document which is encoded later.
+     * If encoder threads are enabled, the encoder is called on them.
+     * Otherwise it is called immediately on current thread.
+     * This method can be called from many threads concurrently.
+     * 
+     * @param index Index name.
+     * @param type Type name.
+     * @param encoder Encoder of JSON document. It must not refer mutable state of the caller.
+     */
+    public void publish(String index, String type, Supplier<byte[]> encoder){
+        if(encodePipeline == null){
+            publish(index, type, encoder.get());
+            return;
+        }
+
+        if(indexBootstrap != null){
+            indexBootstrap.prepare(index);
+        }
+        ingestMetrics.addDocument(type);
+        encodePipeline.add(index, type, encoder);
     }
 
-    public synchronized void publish(String index, String type, XContentBuilder contentBuilder){
-        bulkProcessor.add(new IndexRequest(index, type).source(contentBuilder));
+    /**
+     * Get commandline option.
+     * 
+     * @return Commandline option.
+     */
+    public Option getOption(){
+        return opt;
     }
 
     public boolean isSucceeded() {
         return succeeded;
     }
 
+    /**
+     * Get memory and allocation statistics.
+     * 
+     * @return Memory report.
+     */
+    public MemoryReport getMemoryReport(){
+        return memoryReport;
+    }
+
+    /**
+     * Get ingestion metrics.
+     * 
+     * @return Ingestion metrics.
+     */
+    public IngestMetrics getIngestMetrics(){
+        return ingestMetrics;
+    }
+
+    /**
+     * Mark this process as failed.
+     * Subclasses should call this method when they could not process the input.
+     */
+    protected void markFailed(){
+        succeeded = false;
+    }
+
     @Override
     public void beforeBulk(long l, BulkRequest bulkRequest) {
-        // Do nothing
+        ingestMetrics.beforeBulk(l, bulkRequest.estimatedSizeInBytes());
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * Failed items in the response are passed to the retry lane.
+     */
     @Override
     public void afterBulk(long l, BulkRequest bulkRequest, BulkResponse bulkResponse) {
-        // Do nothing
+        ingestMetrics.afterBulk(l, false);
+        if(bulkResponse.hasFailures()){
+            retryLane.onItemsFailed(bulkRequest, bulkResponse);
+        }
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * All documents in the request are passed to the retry lane.
+     */
     @Override
     public void afterBulk(long l, BulkRequest bulkRequest, Throwable throwable) {
+        ingestMetrics.afterBulk(l, true);
         if(Boolean.getBoolean("debug")){
             throwable.printStackTrace();
         }
-        succeeded = false;
+        retryLane.onRequestFailed(bulkRequest, throwable);
+    }
+
+    /**
+     * Hand documents which are staged by current thread to the next stage.
+     * Producer threads should call this method when they finish their work.
+     */
+    protected void flushPublisher(){
+        if(encodePipeline != null){
+            encodePipeline.flush();
+        }
+        publishQueue.flush();
+    }
+
+    /**
+     * Wait until all documents which are published by current thread are
+     * passed to the bulk sender, and flush it.
+     * 
+     * @throws InterruptedException Thrown when current thread is interrupted.
+     */
+    protected void syncPublisher() throws InterruptedException{
+        if(encodePipeline != null){
+            encodePipeline.sync();
+        }
+        publishQueue.sync();
+        bulkSender.flush();
+    }
+
+    /**
+     * Watch input files until current thread is interrupted.
+     * Documents are flushed after each call of the listener, so they are
+     * sent within the quiet period and the flush time.
+     * 
+     * @param listener Listener for modified files.
+     */
+    protected void follow(FileFollower.Listener listener){
+        System.out.println("Following " + opt.getFiles().size() + " file(s)...");
+
+        try(FileFollower follower = new FileFollower(opt.getFiles(), opt.getFollowDelay())){
+            follower.run(file -> {
+                                   listener.onModified(file);
+                                   syncPublisher();
+                                 });
+        }
+        catch(InterruptedException e){
+            System.out.println("Follow mode is stopped.");
+        }
+        catch(IOException e){
+            System.err.println(e.getLocalizedMessage());
+
+            if(Boolean.getBoolean("debug")){
+                e.printStackTrace();
+            }
+
+            markFailed();
+        }
+
     }
 
     /**
@@ -99,12 +452,96 @@ public abstract class Processor implements AutoCloseable, BulkProcessor.Listener
 
     @Override
     public void close() throws Exception {
+        boolean delivered = true;
+
+        if(encodePipeline != null){
+            encodePipeline.close();
+            if(encodePipeline.getFailure() != null){
+                delivered = false;
+                markFailed();
+            }
+        }
+        publishQueue.close();
+        if(publishQueue.getFailure() != null){
+            delivered = false;
+            markFailed();
+        }
+
+        /*
+         * Senders throw exception when documents are still in flight at the
+         * timeout. They might not be indexed, so checkpoints must not be
+         * moved past them.
+         */
         try{
-            bulkProcessor.close();
+            bulkSender.close();
         }
         catch(Exception e){
-            // Do nothing
+            System.err.println(e.getLocalizedMessage());
+            if(Boolean.getBoolean("debug")){
+                e.printStackTrace();
+            }
+            delivered = false;
+            markFailed();
+        }
+        if(retryLane != null){
+            try{
+                retryLane.close();
+            }
+            catch(Exception e){
+                System.err.println(e.getLocalizedMessage());
+                if(Boolean.getBoolean("debug")){
+                    e.printStackTrace();
+                }
+                delivered = false;
+                markFailed();
+            }
+        }
+        if((indexBootstrap != null) && !indexBootstrap.finish()){
+            markFailed();
+        }
+        if(client != null){
+            client.close();
+        }
+        deadLetterSpool.close();
+
+        /*
+         * Documents in dead-letter file can be sent again through replay
+         * mode, so checkpoints are saved unless the publisher itself failed
+         * or some requests are not finished in time.
+         */
+        if((checkpointStore != null) && (checkpointStore.getPath() != null)){
+            if(delivered){
+                checkpointStore.save();
+            }
+            else{
+                System.err.println("Checkpoints are not updated: " + checkpointStore.getPath());
+            }
+        }
+
+        if(deadLetterSpool.getCount() > 0){
+            System.err.println(deadLetterSpool.getCount() + " document(s) could not be indexed. They are written to " + deadLetterSpool.getPath());
+            markFailed();
+        }
+
+        if(opt.isPublishStats()){
+            if(encodePipeline != null){
+                encodePipeline.printStatistics(System.out);
+            }
+            publishQueue.printStatistics(System.out);
+            if(retryLane != null){
+                System.out.println("  Retried documents: " + retryLane.getRetriedCount() + " (recovered: " + retryLane.getRecoveredCount() + ")");
+            }
+            if(bulkSender instanceof AdaptiveBulkSender){
+                System.out.println("  Adaptive bulk: " + ((AdaptiveBulkSender)bulkSender).getController());
+            }
+            if(bulkSender instanceof RawBulkSender){
+                ((RawBulkSender)bulkSender).getEndpointPool().printStatistics(System.out);
+            }
+        }
+
+        ingestMetrics.close();
+        if(opt.getMetricsFile() != null){
+            ingestMetrics.writeSummary(Paths.get(opt.getMetricsFile()), isSucceeded());
         }
-        client.close();
     }
 }
@@ -0,0 +1,437 @@
+/*
+ * PublishQueue.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader;
+
+import org.elasticsearch.action.index.IndexRequest;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Multi-producer queue for index requests.
+ * Each producer thread stages requests in its own buffer without any lock,
+ * and hands full buffers to a lock-free queue. A single drainer thread
+ * passes them to the sink, so the sink is never called concurrently.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class PublishQueue implements AutoCloseable{
+
+    /**
+     * Default number of requests in one staging buffer.
+     */
+    public static final int DEFAULT_STAGING_SIZE = 256;
+
+    /**
+     * Default number of buffers which can be queued before producers wait.
+     */
+    public static final int DEFAULT_MAX_PENDING_CHUNKS = 64;
+
+    /**
+     * Per-thread staging buffer.
+     */
+    private class Staging{
+
+        private IndexRequest[] requests;
+
+        private int count;
+
+        private final long threadId;
+
+        private long lastBlockedCount;
+
+        private long lastBlockedTime;
+
+        /**
+         * Time which this producer waited for the drainer.
+         */
+        private long waitNanos;
+
+        private Staging(){
+            requests = new IndexRequest[stagingSize];
+            count = 0;
+            threadId = Thread.currentThread().getId();
+            lastBlockedCount = 0;
+            lastBlockedTime = 0;
+            waitNanos = 0;
+        }
+
+        private void add(IndexRequest request){
+            requests[count++] = request;
+
+            if(count == requests.length){
+                waitNanos += handoff(requests);
+                requests = new IndexRequest[stagingSize];
+                count = 0;
+            }
+
+        }
+
+        private void flush(){
+            if(count > 0){
+                waitNanos += handoff(Arrays.copyOf(requests, count));
+                Arrays.fill(requests, 0, count, null);
+                count = 0;
+            }
+
+            if(contentionMonitoring && (threadId == Thread.currentThread().getId())){
+                ThreadInfo info = threadMXBean.getThreadInfo(threadId);
+                if(info != null){
+                    blockedCount.add(info.getBlockedCount() - lastBlockedCount);
+                    blockedTime.add(info.getBlockedTime() - lastBlockedTime);
+                    lastBlockedCount = info.getBlockedCount();
+                    lastBlockedTime = info.getBlockedTime();
+                }
+            }
+
+        }
+
+    }
+
+    private final Consumer<IndexRequest> sink;
+
+    private final int stagingSize;
+
+    private final int maxPendingChunks;
+
+    private final ThreadLocal<Staging> staging;
+
+    /**
+     * All staging buffers. They are flushed at close().
+     */
+    private final ConcurrentLinkedQueue<Staging> stagings;
+
+    private final ConcurrentLinkedQueue<IndexRequest[]> chunks;
+
+    private final AtomicInteger pendingChunks;
+
+    /**
+     * Number of buffers which are handed to the drainer.
+     */
+    private final AtomicLong handedOffChunks;
+
+    /**
+     * Number of buffers which are passed to the sink completely.
+     * This is updated by the drainer thread only.
+     */
+    private volatile long drainedChunks;
+
+    private final Thread drainer;
+
+    private volatile boolean closed;
+
+    private volatile Throwable failure;
+
+    private final ThreadMXBean threadMXBean;
+
+    private final boolean contentionMonitoring;
+
+    /* Statistics */
+    private final LongAdder published;
+
+    private final LongAdder handoffs;
+
+    private final LongAdder backpressureWaits;
+
+    private final LongAdder backpressureNanos;
+
+    private final LongAdder blockedCount;
+
+    private final LongAdder blockedTime;
+
+    private final AtomicInteger maxPendingObserved;
+
+    /**
+     * Time which the drainer spent in the sink.
+     * This is updated by the drainer thread only.
+     */
+    private volatile long drainNanos;
+
+    private final long startTime;
+
+    /**
+     * Time when the drainer is finished. 0 means it is running.
+     */
+    private volatile long endTime;
+
+    /**
+     * Constructor of PublishQueue.
+     * 
+     * @param sink Consumer of index requests. It is called from the drainer thread only.
+     * @param stagingSize Number of requests in one staging buffer.
+     * @param maxPendingChunks Number of buffers which can be queued before producers wait.
+     * @param contentionMonitoring true if monitor contention of producer threads should be measured.
+     */
+    public PublishQueue(Consumer<IndexRequest> sink, int stagingSize, int maxPendingChunks, boolean contentionMonitoring){
+        this.sink = sink;
+        this.stagingSize = stagingSize;
+        this.maxPendingChunks = maxPendingChunks;
+        this.stagings = new ConcurrentLinkedQueue<>();
+        this.staging = ThreadLocal.withInitial(() -> {
+                                                       Staging s = new Staging();
+                                                       stagings.add(s);
+                                                       return s;
+                                                     });
+        this.chunks = new ConcurrentLinkedQueue<>();
+        this.pendingChunks = new AtomicInteger();
+        this.handedOffChunks = new AtomicLong();
+        this.drainedChunks = 0;
+        this.closed = false;
+        this.failure = null;
+
+        this.published = new LongAdder();
+        this.handoffs = new LongAdder();
+        this.backpressureWaits = new LongAdder();
+        this.backpressureNanos = new LongAdder();
+        this.blockedCount = new LongAdder();
+        this.blockedTime = new LongAdder();
+        this.maxPendingObserved = new AtomicInteger();
+        this.drainNanos = 0;
+        this.startTime = System.nanoTime();
+        this.endTime = 0;
+
+        this.threadMXBean = ManagementFactory.getThreadMXBean();
+        this.contentionMonitoring = contentionMonitoring && threadMXBean.isThreadContentionMonitoringSupported();
+        if(this.contentionMonitoring){
+            threadMXBean.setThreadContentionMonitoringEnabled(true);
+        }
+
+        this.drainer = new Thread(this::drain, "hsloader-publisher");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    /**
+     * Constructor of PublishQueue with default sizes.
+     * 
+     * @param sink Consumer of index requests.
+     * @param contentionMonitoring true if monitor contention of producer threads should be measured.
+     */
+    public PublishQueue(Consumer<IndexRequest> sink, boolean contentionMonitoring){
+        this(sink, DEFAULT_STAGING_SIZE, DEFAULT_MAX_PENDING_CHUNKS, contentionMonitoring);
+    }
+
+    private void drain(){
+        while(true){
+            IndexRequest[] chunk = chunks.poll();
+
+            if(chunk == null){
+                if(closed && chunks.isEmpty()){
+                    break;
+                }
+                LockSupport.parkNanos(this, 1_000_000L);
+                continue;
+            }
+
+            pendingChunks.decrementAndGet();
+
+            long start = System.nanoTime();
+            try{
+                for(IndexRequest request : chunk){
+                    sink.accept(request);
+                }
+            }
+            catch(Throwable t){
+                failure = t;
+            }
+
+            drainNanos += System.nanoTime() - start;
+            drainedChunks++;
+        }
+    }
+
+    /**
+     * Hand the buffer to the drainer.
+     * 
+     * @param chunk Buffer of requests.
+     * @return Time which current thread waited for the drainer in nanoseconds.
+     */
+    private long handoff(IndexRequest[] chunk){
+        long waited = 0;
+
+        if(pendingChunks.get() >= maxPendingChunks){
+            long start = System.nanoTime();
+            backpressureWaits.increment();
+
+            while(pendingChunks.get() >= maxPendingChunks){
+                if(!drainer.isAlive()){
+                    throw new IllegalStateException("Publisher thread is not running.");
+                }
+                LockSupport.unpark(drainer);
+                LockSupport.parkNanos(this, 100_000L);
+            }
+
+            waited = System.nanoTime() - start;
+            backpressureNanos.add(waited);
+        }
+
+        int pending = pendingChunks.incrementAndGet();
+        handedOffChunks.incrementAndGet();
+        chunks.offer(chunk);
+        handoffs.increment();
+        maxPendingObserved.accumulateAndGet(pending, Math::max);
+
+        LockSupport.unpark(drainer);
+        return waited;
+    }
+
+    /**
+     * Publish index request.
+     * This method can be called from many threads concurrently.
+     * 
+     * @param request Index request.
+     */
+    public void add(IndexRequest request){
+        if(closed){
+            throw new IllegalStateException("PublishQueue is already closed.");
+        }
+
+        staging.get().add(request);
+        published.increment();
+    }
+
+    /**
+     * Hand staged requests of current thread to the drainer.
+     * Producer threads should call this method when they finish their work.
+     */
+    public void flush(){
+        staging.get().flush();
+    }
+
+    /**
+     * Hand staged requests of current thread to the drainer, and wait until
+     * all buffers which are handed so far are passed to the sink.
+     * 
+     * @throws InterruptedException Thrown when interrupted while waiting for the drainer.
+     */
+    public void sync() throws InterruptedException{
+        flush();
+        long target = handedOffChunks.get();
+
+        while(drainedChunks < target){
+            if(!drainer.isAlive()){
+                throw new IllegalStateException("Publisher thread is not running.");
+            }
+            if(Thread.interrupted()){
+                throw new InterruptedException();
+            }
+            LockSupport.unpark(drainer);
+            LockSupport.parkNanos(this, 100_000L);
+        }
+
+    }
+
+    /**
+     * Get the exception which is thrown from the sink.
+     * 
+     * @return Exception from the sink, or null.
+     */
+    public Throwable getFailure(){
+        return failure;
+    }
+
+    /**
+     * Get number of buffers which are waiting for the drainer.
+     * 
+     * @return Number of queued buffers.
+     */
+    public int getPendingChunks(){
+        return pendingChunks.get();
+    }
+
+    /**
+     * Get total time which producers waited for the drainer.
+     * 
+     * @return Backpressure time in nanoseconds.
+     */
+    public long getBackpressureNanos(){
+        return backpressureNanos.sum();
+    }
+
+    /**
+     * Get total time which current thread waited for the drainer.
+     * 
+     * @return Backpressure time of current thread in nanoseconds.
+     */
+    public long getCurrentThreadBackpressureNanos(){
+        return staging.get().waitNanos;
+    }
+
+    /**
+     * Get utilization of the drainer (send stage).
+     * It is the ratio of time in the sink, which includes waiting for
+     * in-flight bulk requests, to the lifetime of the drainer.
+     * 
+     * @return Utilization between 0.0 and 1.0.
+     */
+    public double getUtilization(){
+        long end = (endTime == 0) ? System.nanoTime() : endTime;
+        long lifetime = end - startTime;
+        return (lifetime <= 0) ? 0.0d : Math.min((double)drainNanos / lifetime, 1.0d);
+    }
+
+    /**
+     * Print statistics of this queue.
+     * 
+     * @param out Output stream.
+     */
+    public void printStatistics(PrintStream out){
+        out.println("Publish statistics:");
+        out.println("  Published documents: " + published.sum());
+        out.println("  Handoffs to publisher thread: " + handoffs.sum());
+        out.println("  Max queued buffers: " + maxPendingObserved.get());
+        out.println("  Backpressure waits: " + backpressureWaits.sum() + " (" + (backpressureNanos.sum() / 1_000_000L) + " ms)");
+        out.println(String.format("  Publisher thread utilization: %.1f %%", getUtilization() * 100.0d));
+        if(contentionMonitoring){
+            out.println("  Monitor blocked count of producers: " + blockedCount.sum());
+            out.println("  Monitor blocked time of producers (ms): " + blockedTime.sum());
+        }
+    }
+
+    /**
+     * Flush all staging buffers, and wait for the drainer thread.
+     * All producers must finish before calling this method.
+     * 
+     * @throws InterruptedException Thrown when interrupted while waiting for the drainer.
+     */
+    @Override
+    public void close() throws InterruptedException{
+        if(closed){
+            return;
+        }
+
+        stagings.forEach(Staging::flush);
+        closed = true;
+        LockSupport.unpark(drainer);
+        drainer.join();
+        endTime = System.nanoTime();
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * ActionLineCache.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bulk;
+
+import org.elasticsearch.action.index.IndexRequest;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cache of the last encoded action line.
+ * Consecutive documents usually go to the same index, so the action line
+ * is encoded only when the index or type is changed.
+ * This class is not thread-safe.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class ActionLineCache{
+
+    private String lastIndex;
+
+    private String lastType;
+
+    private byte[] lastAction;
+
+    /**
+     * Get encoded action line for the request.
+     * 
+     * @param request Index request.
+     * @return Encoded action line without newline.
+     */
+    public byte[] get(IndexRequest request){
+        if(!request.index().equals(lastIndex) || !request.type().equals(lastType)){
+            lastIndex = request.index();
+            lastType = request.type();
+            lastAction = BulkNdjson.actionLine(lastIndex, lastType).getBytes(StandardCharsets.UTF_8);
+        }
+
+        return lastAction;
+    }
+
+}
@@ -0,0 +1,348 @@
+/*
+ * AdaptiveBulkSender.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bulk;
+
+import jp.dip.ysfactory.heapstats.hsloader.Option;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BulkSender which tunes bulk size and number of in-flight requests
+ * through AdaptiveController.
+ * When Elasticsearch rejects requests (HTTP 429), new requests are paused
+ * for backoff delay. Rejected documents are passed to the listener, and
+ * they are retried by RetryLane. Documents which are still in flight at
+ * the timeout of close are written to DeadLetterSpool.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class AdaptiveBulkSender implements BulkSender{
+
+    private final RestHighLevelClient client;
+
+    private final BulkProcessor.Listener listener;
+
+    private final AdaptiveController controller;
+
+    private final int bulkActions;
+
+    private final int timeout;
+
+    /**
+     * Scheduler for flush interval.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong executionId;
+
+    private final DeadLetterSpool spool;
+
+    /**
+     * Bulk requests which are not finished yet.
+     */
+    private final InFlightRequests inFlightRequests;
+
+    private final Object inFlightLock;
+
+    private int inFlight;
+
+    /**
+     * New requests are not sent until this time (System.nanoTime()).
+     */
+    private long pauseUntil;
+
+    private BulkRequest current;
+
+    /**
+     * Constructor of AdaptiveBulkSender.
+     * 
+     * @param client Elasticsearch REST client.
+     * @param listener Listener of bulk requests.
+     * @param spool Dead-letter spool for documents which are not finished at close.
+     * @param opt Commandline option.
+     */
+    public AdaptiveBulkSender(RestHighLevelClient client, BulkProcessor.Listener listener, DeadLetterSpool spool, Option opt){
+        this.client = client;
+        this.listener = listener;
+        this.controller = new AdaptiveController(opt.getTargetLatency(), opt.getBulkSize(), opt.getConcurrentRequests());
+        this.bulkActions = opt.getBulkRequests();
+        this.timeout = opt.getTimeout();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                                                                       Thread thread = new Thread(r, "hsloader-bulk-scheduler");
+                                                                       thread.setDaemon(true);
+                                                                       return thread;
+                                                                     });
+        this.executionId = new AtomicLong();
+        this.spool = spool;
+        this.inFlightRequests = new InFlightRequests();
+        this.inFlightLock = new Object();
+        this.inFlight = 0;
+        this.pauseUntil = 0;
+        this.current = new BulkRequest();
+
+        if(opt.getFlushInterval() > 0){
+            scheduler.scheduleWithFixedDelay(this::flush, opt.getFlushInterval(), opt.getFlushInterval(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Get controller of this sender.
+     * 
+     * @return Adaptive controller.
+     */
+    public AdaptiveController getController(){
+        return controller;
+    }
+
+    /**
+     * Check whether the exception means rejection by Elasticsearch.
+     * 
+     * @param e Exception to check.
+     * @return true if the request was rejected with HTTP 429.
+     */
+    public static boolean isRejected(Throwable e){
+        if(e instanceof ElasticsearchException){
+            return ((ElasticsearchException)e).status() == RestStatus.TOO_MANY_REQUESTS;
+        }
+        else if(e instanceof ResponseException){
+            return ((ResponseException)e).getResponse().getStatusLine().getStatusCode() == 429;
+        }
+
+        return false;
+    }
+
+    /**
+     * Wait for a slot of in-flight requests, and take it.
+     * 
+     * @throws InterruptedIOException Thrown when interrupted while waiting.
+     *                                The slot is not taken, and the interrupt
+     *                                status is restored.
+     */
+    private void acquire() throws InterruptedIOException{
+        synchronized(inFlightLock){
+            try{
+                long pause;
+                while(((pause = pauseUntil - System.nanoTime()) > 0) || (inFlight >= controller.getMaxInFlight())){
+                    if(pause > 0){
+                        TimeUnit.NANOSECONDS.timedWait(inFlightLock, pause);
+                    }
+                    else{
+                        inFlightLock.wait();
+                    }
+                }
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for in-flight bulk requests");
+            }
+            inFlight++;
+        }
+    }
+
+    private void backoff(long delay){
+        synchronized(inFlightLock){
+            pauseUntil = Math.max(pauseUntil, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+        }
+    }
+
+    private void release(){
+        synchronized(inFlightLock){
+            inFlight--;
+            inFlightLock.notifyAll();
+        }
+    }
+
+    private static boolean hasRejectedItem(BulkResponse response){
+        for(BulkItemResponse item : response.getItems()){
+            if(item.isFailed() && (item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS)){
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void execute(BulkRequest request){
+        long id = executionId.incrementAndGet();
+        long start = System.nanoTime();
+
+        listener.beforeBulk(id, request);
+        inFlightRequests.begin(id, request.requests());
+        client.bulkAsync(request, new ActionListener<BulkResponse>(){
+
+            @Override
+            public void onResponse(BulkResponse response){
+                try{
+                    if(response.hasFailures() && hasRejectedItem(response)){
+                        backoff(controller.onRejected());
+                    }
+                    else{
+                        controller.onSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    }
+
+                    if(inFlightRequests.end(id)){
+                        listener.afterBulk(id, request, response);
+                    }
+                }
+                finally{
+                    release();
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e){
+                try{
+                    if(isRejected(e)){
+                        backoff(controller.onRejected());
+                    }
+
+                    if(inFlightRequests.end(id)){
+                        listener.afterBulk(id, request, e);
+                    }
+                }
+                finally{
+                    release();
+                }
+            }
+
+        });
+    }
+
+    /**
+     * Send the bulk request when a slot of in-flight requests is available.
+     * This method is called outside of the monitor of this sender, so other
+     * producers can fill the next request while waiting.
+     * If current thread is interrupted, documents in the request are
+     * written to dead-letter spool.
+     * 
+     * @param request Bulk request to send.
+     */
+    private void send(BulkRequest request){
+        try{
+            acquire();
+        }
+        catch(InterruptedIOException e){
+            request.requests().forEach(r -> spool.write((IndexRequest)r, e.getMessage()));
+            throw new UncheckedIOException(e);
+        }
+
+        execute(request);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws UncheckedIOException Thrown when interrupted while waiting for
+     *                              in-flight requests.
+     */
+    @Override
+    public void add(IndexRequest request){
+        BulkRequest full = null;
+
+        synchronized(this){
+            current.add(request);
+
+            if((current.numberOfActions() >= bulkActions) || (current.estimatedSizeInBytes() >= controller.getBulkBytes())){
+                full = current;
+                current = new BulkRequest();
+            }
+        }
+
+        if(full != null){
+            send(full);
+        }
+
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws UncheckedIOException Thrown when interrupted while waiting for
+     *                              in-flight requests.
+     */
+    @Override
+    public void flush(){
+        BulkRequest pending;
+
+        synchronized(this){
+            if(current.numberOfActions() == 0){
+                return;
+            }
+            pending = current;
+            current = new BulkRequest();
+        }
+
+        send(pending);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws TimeoutException Thrown when bulk requests are not finished
+     *                          before the timeout. Their documents are
+     *                          written to dead-letter spool.
+     */
+    @Override
+    public void close() throws Exception{
+        /*
+         * Periodic flush might wait for a slot of in-flight requests.
+         * Do not interrupt it unless it is not finished in the timeout,
+         * because interrupted flush writes its documents to dead-letter spool.
+         */
+        scheduler.shutdown();
+        if(!scheduler.awaitTermination(timeout, TimeUnit.SECONDS)){
+            scheduler.shutdownNow();
+
+            int count;
+            synchronized(this){
+                count = current.numberOfActions();
+                current.requests().forEach(r -> spool.write((IndexRequest)r, "Bulk request is not sent before shutdown"));
+                current = new BulkRequest();
+            }
+            count += inFlightRequests.spool(spool, "Bulk request is not finished before shutdown");
+            throw new TimeoutException("Periodic flush is not finished in " + timeout + " seconds: " + count + " document(s) are written to " + spool.getPath());
+        }
+
+        flush();
+
+        if(!inFlightRequests.await(TimeUnit.SECONDS.toMillis(timeout))){
+            int count = inFlightRequests.spool(spool, "Bulk request is not finished before shutdown");
+            throw new TimeoutException("Bulk requests are not finished in " + timeout + " seconds: " + count + " document(s) are written to " + spool.getPath());
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * AdaptiveController.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bulk;
+
+/**
+ * Controller of bulk size and number of in-flight requests.
+ * It uses additive-increase / multiplicative-decrease toward target latency:
+ * bulk size grows while latency is lower than the target, and number of
+ * in-flight requests grows when bulk size reaches its maximum. Both are
+ * halved when Elasticsearch rejects requests.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class AdaptiveController{
+
+    /**
+     * Minimum bulk size in bytes.
+     */
+    public static final long MIN_BULK_BYTES = 256 * 1024;
+
+    /**
+     * Maximum bulk size in bytes.
+     */
+    public static final long MAX_BULK_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Initial delay for backoff in milliseconds.
+     */
+    private static final long MIN_BACKOFF = 50;
+
+    /**
+     * Maximum delay for backoff in milliseconds.
+     */
+    private static final long MAX_BACKOFF = 30_000;
+
+    /**
+     * Weight of the latest sample in smoothed latency.
+     */
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    private final long targetLatency;
+
+    private final int maxInFlightLimit;
+
+    private long bulkBytes;
+
+    private int maxInFlight;
+
+    private double smoothedLatency;
+
+    private long backoff;
+
+    /**
+     * Constructor of AdaptiveController.
+     * 
+     * @param targetLatency Target latency of bulk request in milliseconds.
+     * @param initialBulkBytes Initial bulk size in bytes.
+     * @param maxInFlightLimit Upper limit of in-flight requests.
+     */
+    public AdaptiveController(long targetLatency, long initialBulkBytes, int maxInFlightLimit){
+        this.targetLatency = targetLatency;
+        this.maxInFlightLimit = Math.max(maxInFlightLimit, 1);
+        this.bulkBytes = Math.min(Math.max(initialBulkBytes, MIN_BULK_BYTES), MAX_BULK_BYTES);
+        this.maxInFlight = 1;
+        this.smoothedLatency = -1.0d;
+        this.backoff = 0;
+    }
+
+    /**
+     * Update state with the result of successful bulk request.
+     * 
+     * @param latency Latency of the request in milliseconds.
+     */
+    public synchronized void onSuccess(long latency){
+        smoothedLatency = (smoothedLatency < 0.0d) ? latency
+                                                   : (LATENCY_WEIGHT * latency) + ((1.0d - LATENCY_WEIGHT) * smoothedLatency);
+        backoff = 0;
+
+        if(smoothedLatency < (targetLatency * 0.8d)){
+            if(bulkBytes < MAX_BULK_BYTES){
+                bulkBytes = Math.min(bulkBytes + (bulkBytes / 4), MAX_BULK_BYTES);
+            }
+            else if(maxInFlight < maxInFlightLimit){
+                maxInFlight++;
+            }
+        }
+        else if(smoothedLatency > (targetLatency * 1.2d)){
+            if(maxInFlight > 1){
+                maxInFlight--;
+            }
+            else{
+                bulkBytes = Math.max((bulkBytes * 3) / 4, MIN_BULK_BYTES);
+            }
+        }
+
+    }
+
+    /**
+     * Update state with rejection (HTTP 429) from Elasticsearch.
+     * 
+     * @return Delay in milliseconds before the rejected request is sent again.
+     */
+    public synchronized long onRejected(){
+        maxInFlight = Math.max(maxInFlight / 2, 1);
+        bulkBytes = Math.max(bulkBytes / 2, MIN_BULK_BYTES);
+        backoff = (backoff == 0) ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+        return backoff;
+    }
+
+    /**
+     * Get current bulk size.
+     * 
+     * @return Bulk size in bytes.
+     */
+    public synchronized long getBulkBytes(){
+        return bulkBytes;
+    }
+
+    /**
+     * Get current number of in-flight requests.
+     * 
+     * @return Maximum number of in-flight requests.
+     */
+    public synchronized int getMaxInFlight(){
+        return maxInFlight;
+    }
+
+    /**
+     * Get smoothed latency.
+     * 
+     * @return Smoothed latency in milliseconds, or negative value if no request is completed.
+     */
+    public synchronized double getSmoothedLatency(){
+        return smoothedLatency;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return String.format("bulk size: %d bytes, in-flight: %d, latency: %.1f ms", bulkBytes, maxInFlight, smoothedLatency);
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * BulkNdjson.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bulk;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.index.IndexRequest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Utility for newline delimited JSON which is used by _bulk API.
+ * Each document consists of action line and source line.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class BulkNdjson{
+
+    private static final Pattern INDEX_PATTERN = Pattern.compile("\"_index\"\\s*:\\s*\"([^\"]*)\"");
+
+    private static final Pattern TYPE_PATTERN = Pattern.compile("\"_type\"\\s*:\\s*\"([^\"]*)\"");
+
+    private BulkNdjson(){
+        // Utility class
+    }
+
+    /**
+     * Build action line for index operation.
+     * 
+     * @param index Index name.
+     * @param type Type name.
+     * @return Action line without newline.
+     */
+    public static String actionLine(String index, String type){
+        return "{\"index\":{\"_index\":\"" + index + "\",\"_type\":\"" + type + "\"}}";
+    }
+
+    /**
+     * Write index request as action line and source line.
+     * 
+     * @param out Output stream.
+     * @param request Index request.
+     * @throws IOException Thrown when I/O error happens.
+     */
+    public static void write(OutputStream out, IndexRequest request) throws IOException{
+        out.write(actionLine(request.index(), request.type()).getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+
+        BytesRef source = request.source().toBytesRef();
+        out.write(source.bytes, source.offset, source.length);
+        out.write('\n');
+    }
+
+    /**
+     * Parse action line.
+     * 
+     * @param line Action line.
+     * @return Array of index name and type name.
+     * @throws IllegalArgumentException Thrown when the line does not have index name or type name.
+     */
+    public static String[] parseActionLine(String line) throws IllegalArgumentException{
+        Matcher index = INDEX_PATTERN.matcher(line);
+        Matcher type = TYPE_PATTERN.matcher(line);
+
+        if(!index.find() || !type.find()){
+            throw new IllegalArgumentException("Invalid action line: " + line);
+        }
+
+        return new String[]{index.group(1), type.group(1)};
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * BulkSender.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bulk;
+
+import org.elasticsearch.action.index.IndexRequest;
+
+/**
+ * Interface for sending index requests to Elasticsearch in bulk.
+ * add() is called from the publisher thread only.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public interface BulkSender extends AutoCloseable{
+
+    /**
+     * Add index request to the bulk.
+     * 
+     * @param request Index request.
+     */
+    public void add(IndexRequest request);
+
+    /**
+     * Send requests which are not sent yet.
+     */
+    public void flush();
+
+    /**
+     * Send remaining requests, and wait for all in-flight requests.
+     * 
+     * @throws Exception Thrown when sender could not be closed.
+     */
+    @Override
+    public void close() throws Exception;
+
+}
@@ -0,0 +1,113 @@
+/*
+ * DeadLetterSpool.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bulk;
+
+import org.elasticsearch.action.index.IndexRequest;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * On-disk spool for documents which could not be indexed.
+ * Documents are appended in _bulk format, so they can be sent again
+ * through replay mode.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class DeadLetterSpool implements AutoCloseable{
+
+    private final Path path;
+
+    private OutputStream out;
+
+    private long count;
+
+    /**
+     * Constructor of DeadLetterSpool.
+     * The file is not created until the first document is written.
+     * 
+     * @param path Path to dead-letter file.
+     */
+    public DeadLetterSpool(Path path){
+        this.path = path;
+        this.out = null;
+        this.count = 0;
+    }
+
+    /**
+     * Append document to dead-letter file.
+     * 
+     * @param request Index request which could not be indexed.
+     * @param reason Reason of the failure.
+     */
+    public synchronized void write(IndexRequest request, String reason){
+        try{
+            if(out == null){
+                out = new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+            }
+            BulkNdjson.write(out, request);
+            count++;
+        }
+        catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+
+        if(Boolean.getBoolean("debug")){
+            System.err.println("Dead letter (" + request.index() + "): " + reason);
+        }
+
+    }
+
+    /**
+     * Get path to dead-letter file.
+     * 
+     * @return Path to dead-letter file.
+     */
+    public Path getPath(){
+        return path;
+    }
+
+    /**
+     * Get number of documents in dead-letter file.
+     * 
+     * @return Number of documents which are written by this instance.
+     */
+    public synchronized long getCount(){
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void close() throws IOException{
+        if(out != null){
+            out.close();
+            out = null;
+        }
+    }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * EndpointPool.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bulk;
+
+import jp.dip.ysfactory.heapstats.hsloader.Option;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Pool of Elasticsearch nodes for raw transport.
+ * Each node has its own REST client, and a node is selected for each bulk
+ * request by round-robin or least outstanding requests. A node which
+ * fails with I/O error (e.g. timeout) is avoided for a while. The time is
+ * doubled on each consecutive failure.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class EndpointPool implements AutoCloseable{
+
+    /**
+     * Max shift of dead node timeout (32 times).
+     */
+    private static final int MAX_BACKOFF_SHIFT = 5;
+
+    /**
+     * Elasticsearch node.
+     */
+    public static class Endpoint{
+
+        private final HttpHost host;
+
+        private final RestClient client;
+
+        private final AtomicInteger outstanding;
+
+        private final LongAdder requests;
+
+        private final LongAdder failures;
+
+        /**
+         * The node is not selected until this time (System.nanoTime()).
+         * 0 means alive.
+         */
+        private volatile long deadUntil;
+
+        /**
+         * Number of consecutive failures. Guarded by this.
+         */
+        private int consecutiveFailures;
+
+        private Endpoint(HttpHost host, RestClient client){
+            this.host = host;
+            this.client = client;
+            this.outstanding = new AtomicInteger();
+            this.requests = new LongAdder();
+            this.failures = new LongAdder();
+            this.deadUntil = 0;
+            this.consecutiveFailures = 0;
+        }
+
+        private boolean isAlive(long now){
+            long until = deadUntil;
+            return (until == 0) || ((until - now) <= 0);
+        }
+
+        /**
+         * Get REST client for this node.
+         * 
+         * @return REST client.
+         */
+        public RestClient getClient(){
+            return client;
+        }
+
+        /**
+         * Get host of this node.
+         * 
+         * @return Host.
+         */
+        public HttpHost getHost(){
+            return host;
+        }
+
+    }
+
+    private final Endpoint[] endpoints;
+
+    private final Option.NodeSelector selector;
+
+    private final long deadNodeTimeout;
+
+    private final AtomicInteger next;
+
+    /**
+     * Constructor of EndpointPool.
+     * 
+     * @param hosts Elasticsearch nodes.
+     * @param clientFactory Factory of REST client for each node.
+     * @param selector Node selector.
+     * @param deadNodeTimeout Time in seconds to avoid failed node.
+     */
+    public EndpointPool(List<HttpHost> hosts, Function<HttpHost, RestClient> clientFactory, Option.NodeSelector selector, int deadNodeTimeout){
+        this.endpoints = hosts.stream()
+                              .map(h -> new Endpoint(h, clientFactory.apply(h)))
+                              .toArray(Endpoint[]::new);
+        this.selector = selector;
+        this.deadNodeTimeout = TimeUnit.SECONDS.toNanos(deadNodeTimeout);
+        this.next = new AtomicInteger();
+    }
+
+    /**
+     * Select the node for new request.
+     * If all nodes are dead, the node which will be alive first is
+     * selected. release() must be called when the request is finished.
+     * 
+     * @return Selected node.
+     */
+    public Endpoint acquire(){
+        long now = System.nanoTime();
+        int start = Math.floorMod(next.getAndIncrement(), endpoints.length);
+        Endpoint selected = null;
+
+        for(int idx = 0; idx < endpoints.length; idx++){
+            Endpoint endpoint = endpoints[(start + idx) % endpoints.length];
+            if(!endpoint.isAlive(now)){
+                continue;
+            }
+
+            if(selector == Option.NodeSelector.round_robin){
+                selected = endpoint;
+                break;
+            }
+            else if((selected == null) || (endpoint.outstanding.get() < selected.outstanding.get())){
+                selected = endpoint;
+            }
+
+        }
+
+        if(selected == null){
+            for(Endpoint endpoint : endpoints){
+                if((selected == null) || ((endpoint.deadUntil - selected.deadUntil) < 0)){
+                    selected = endpoint;
+                }
+            }
+        }
+
+        selected.outstanding.incrementAndGet();
+        selected.requests.increment();
+        return selected;
+    }
+
+    /**
+     * Check whether the exception is caused by the node.
+     * Error responses (e.g. 429) mean the node is alive.
+     * 
+     * @param e Exception of the request.
+     * @return true if the node should be marked as dead.
+     */
+    public static boolean isNodeFailure(Exception e){
+        return !(e instanceof ResponseException);
+    }
+
+    /**
+     * Release the node which is selected by acquire().
+     * 
+     * @param endpoint Node.
+     * @param nodeFailure true if the request is failed by I/O error.
+     */
+    public void release(Endpoint endpoint, boolean nodeFailure){
+        endpoint.outstanding.decrementAndGet();
+
+        if(nodeFailure){
+            long timeout;
+            endpoint.failures.increment();
+            synchronized(endpoint){
+                timeout = deadNodeTimeout << Math.min(endpoint.consecutiveFailures, MAX_BACKOFF_SHIFT);
+                endpoint.consecutiveFailures++;
+                endpoint.deadUntil = System.nanoTime() + timeout;
+            }
+            if(endpoints.length > 1){
+                System.err.println("Elasticsearch node " + endpoint.host.toURI() + " is marked as dead for " + TimeUnit.NANOSECONDS.toSeconds(timeout) + " sec.");
+            }
+        }
+        else if(endpoint.deadUntil != 0){
+            synchronized(endpoint){
+                endpoint.consecutiveFailures = 0;
+                endpoint.deadUntil = 0;
+            }
+        }
+
+    }
+
+    /**
+     * Print statistics of each node.
+     * 
+     * @param out Output stream.
+     */
+    public void printStatistics(PrintStream out){
+        for(Endpoint endpoint : endpoints){
+            out.println("  Node " + endpoint.host.toURI() + ": " + endpoint.requests.sum() + " request(s), " + endpoint.failures.sum() + " failure(s)");
+        }
+    }
+
+    /**
+     * Close REST clients of all nodes.
+     * 
+     * @throws IOException Thrown when a client could not be closed.
+     */
+    @Override
+    public void close() throws IOException{
+        IOException exception = null;
+
+        for(Endpoint endpoint : endpoints){
+            try{
+                endpoint.client.close();
+            }
+            catch(IOException e){
+                if(exception == null){
+                    exception = e;
+                }
+                else{
+                    exception.addSuppressed(e);
+                }
+            }
+        }
+
+        if(exception != null){
+            throw exception;
+        }
+    }
+
+}
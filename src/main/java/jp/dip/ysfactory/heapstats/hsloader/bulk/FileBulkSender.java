@@ -0,0 +1,184 @@
+/*
+ * FileBulkSender.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bulk;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.index.IndexRequest;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * BulkSender which writes documents to local files in _bulk format
+ * instead of Elasticsearch. Files can be loaded later through replay mode.
+ * Output is split into chunk files when the chunk size is exceeded.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class FileBulkSender implements BulkSender{
+
+    /**
+     * OutputStream which counts written bytes.
+     */
+    private static class CountingOutputStream extends FilterOutputStream{
+
+        private long count;
+
+        private CountingOutputStream(OutputStream out){
+            super(out);
+            count = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException{
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            out.write(b, off, len);
+            count += len;
+        }
+
+    }
+
+    private final String prefix;
+
+    private final boolean gzip;
+
+    private final long chunkSize;
+
+    private final ActionLineCache actionLineCache;
+
+    private int chunkNumber;
+
+    /**
+     * Bytes which are written to the file (after compression).
+     */
+    private CountingOutputStream counter;
+
+    private OutputStream out;
+
+    private long documents;
+
+    /**
+     * Constructor of FileBulkSender.
+     * 
+     * @param prefix Prefix of output files.
+     * @param gzip true if output should be compressed with gzip.
+     * @param chunkSize Size of chunk file in bytes. 0 means no split.
+     */
+    public FileBulkSender(String prefix, boolean gzip, long chunkSize){
+        this.prefix = prefix;
+        this.gzip = gzip;
+        this.chunkSize = chunkSize;
+        this.actionLineCache = new ActionLineCache();
+        this.chunkNumber = 0;
+        this.documents = 0;
+    }
+
+    private Path nextChunk(){
+        return Paths.get(String.format("%s-%05d.ndjson%s", prefix, chunkNumber++, gzip ? ".gz" : ""));
+    }
+
+    private void open() throws IOException{
+        Path path = nextChunk();
+        System.out.println("Writing " + path);
+
+        counter = new CountingOutputStream(Files.newOutputStream(path));
+        out = gzip ? new GZIPOutputStream(counter, 65536) : new BufferedOutputStream(counter, 65536);
+    }
+
+    private void closeChunk() throws IOException{
+        if(out != null){
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void add(IndexRequest request){
+        try{
+            if(out == null){
+                open();
+            }
+
+            out.write(actionLineCache.get(request));
+            out.write('\n');
+            BytesRef source = request.source().toBytesRef();
+            out.write(source.bytes, source.offset, source.length);
+            out.write('\n');
+            documents++;
+
+            if((chunkSize > 0) && (counter.count >= chunkSize)){
+                closeChunk();
+            }
+
+        }
+        catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void flush(){
+        try{
+            if(out != null){
+                out.flush();
+            }
+        }
+        catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Get number of documents which are written.
+     * 
+     * @return Number of documents.
+     */
+    public synchronized long getDocuments(){
+        return documents;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void close() throws IOException{
+        closeChunk();
+    }
+
+}
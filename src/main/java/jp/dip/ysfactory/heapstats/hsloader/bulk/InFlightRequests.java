@@ -0,0 +1,111 @@
+/*
+ * InFlightRequests.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bulk;
+
+import org.elasticsearch.action.index.IndexRequest;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Documents in bulk requests which are sent but not finished yet.
+ * Requests which are still in flight at the deadline of shutdown are
+ * written to DeadLetterSpool, and their responses which arrive after that
+ * are ignored. So each document is either handled by the response or
+ * written to the spool exactly once.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class InFlightRequests{
+
+    private final Map<Long, List<?>> requests;
+
+    /**
+     * Constructor of InFlightRequests.
+     */
+    public InFlightRequests(){
+        requests = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Register bulk request which is about to be sent.
+     * 
+     * @param id ID of the bulk request.
+     * @param documents Documents in the bulk request.
+     */
+    public void begin(long id, List<?> documents){
+        requests.put(id, documents);
+    }
+
+    /**
+     * Unregister bulk request when its response arrives.
+     * 
+     * @param id ID of the bulk request.
+     * @return true if the caller should handle the response. false means
+     *         the documents are already written to dead-letter spool.
+     */
+    public boolean end(long id){
+        return requests.remove(id) != null;
+    }
+
+    /**
+     * Wait until all bulk requests are finished.
+     * 
+     * @param timeout Timeout in milliseconds.
+     * @return true if all requests are finished before the timeout.
+     * @throws InterruptedException Thrown when interrupted while waiting.
+     */
+    public boolean await(long timeout) throws InterruptedException{
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while(!requests.isEmpty() && (System.nanoTime() < deadline)){
+            Thread.sleep(10);
+        }
+
+        return requests.isEmpty();
+    }
+
+    /**
+     * Write documents in unfinished bulk requests to dead-letter spool.
+     * 
+     * @param spool Dead-letter spool.
+     * @param reason Reason of the failure.
+     * @return Number of documents which are written.
+     */
+    public int spool(DeadLetterSpool spool, String reason){
+        int count = 0;
+        Iterator<Long> itr = requests.keySet().iterator();
+        while(itr.hasNext()){
+            List<?> documents = requests.remove(itr.next());
+            if(documents != null){
+                for(Object document : documents){
+                    spool.write((IndexRequest)document, reason);
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+}
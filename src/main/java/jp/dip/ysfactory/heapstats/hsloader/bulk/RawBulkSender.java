@@ -0,0 +1,453 @@
+/*
+ * RawBulkSender.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bulk;
+
+import jp.dip.ysfactory.heapstats.hsloader.IngestMetrics;
+import jp.dip.ysfactory.heapstats.hsloader.Option;
+import org.apache.http.Header;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHeader;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * BulkSender which writes _bulk body (newline delimited JSON) by itself,
+ * and sends it through low-level REST client.
+ * Sources of documents are copied to the body only once, and the body can
+ * be compressed with gzip. Documents which are still in flight at the
+ * timeout of close are written to DeadLetterSpool.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class RawBulkSender implements BulkSender{
+
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson");
+
+    /**
+     * Response should include status and error of each item only.
+     */
+    private static final Map<String, String> PARAMS = Collections.singletonMap("filter_path", "errors,items.*.status,items.*.error");
+
+    /**
+     * ByteArrayOutputStream which exposes its buffer without copy.
+     */
+    private static class BodyOutputStream extends ByteArrayOutputStream{
+
+        private BodyOutputStream(int size){
+            super(size);
+        }
+
+        private byte[] buffer(){
+            return buf;
+        }
+
+    }
+
+    /**
+     * Documents in one bulk request.
+     */
+    private class Batch{
+
+        private final BodyOutputStream body;
+
+        private final OutputStream out;
+
+        private final List<IndexRequest> requests;
+
+        /**
+         * Uncompressed size of the body.
+         */
+        private long size;
+
+        private Batch(){
+            try{
+                body = new BodyOutputStream(gzip ? (int)Math.min(bulkSize / 4, Integer.MAX_VALUE) : (int)Math.min(bulkSize, Integer.MAX_VALUE));
+                out = gzip ? new GZIPOutputStream(body, 65536) : body;
+            }
+            catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+            requests = new ArrayList<>();
+            size = 0;
+        }
+
+        private void add(IndexRequest request){
+            try{
+                byte[] action = actionLineCache.get(request);
+                out.write(action);
+                out.write('\n');
+
+                BytesRef source = request.source().toBytesRef();
+                out.write(source.bytes, source.offset, source.length);
+                out.write('\n');
+
+                size += action.length + source.length + 2;
+            }
+            catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+            requests.add(request);
+        }
+
+        private ByteArrayEntity finish(){
+            try{
+                out.close();
+            }
+            catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+            return new ByteArrayEntity(body.buffer(), 0, body.size(), NDJSON);
+        }
+
+    }
+
+    private final EndpointPool endpointPool;
+
+    private final RetryLane retryLane;
+
+    private final DeadLetterSpool spool;
+
+    private final IngestMetrics metrics;
+
+    private final boolean gzip;
+
+    private final Header[] headers;
+
+    private final int bulkActions;
+
+    private final long bulkSize;
+
+    private final int timeout;
+
+    private final Semaphore inFlight;
+
+    private final AtomicLong executionId;
+
+    /**
+     * Bulk requests which are not finished yet.
+     */
+    private final InFlightRequests inFlightRequests;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Documents which are not sent yet. It is created at the first document
+     * of the batch, so the buffer is not allocated while idle.
+     */
+    private Batch current;
+
+    private final ActionLineCache actionLineCache;
+
+    /**
+     * Constructor of RawBulkSender.
+     * 
+     * @param endpointPool Elasticsearch nodes. They are closed by this sender.
+     * @param retryLane Retry lane for failed documents.
+     * @param spool Dead-letter spool for documents which are not finished at close.
+     * @param metrics Ingestion metrics.
+     * @param opt Commandline option.
+     */
+    public RawBulkSender(EndpointPool endpointPool, RetryLane retryLane, DeadLetterSpool spool, IngestMetrics metrics, Option opt){
+        this.endpointPool = endpointPool;
+        this.retryLane = retryLane;
+        this.spool = spool;
+        this.metrics = metrics;
+        this.gzip = opt.isGzip();
+        this.headers = gzip ? new Header[]{new BasicHeader("Content-Encoding", "gzip")} : new Header[0];
+        this.bulkActions = opt.getBulkRequests();
+        this.bulkSize = opt.getBulkSize();
+        this.timeout = opt.getTimeout();
+        this.inFlight = new Semaphore(Math.max(opt.getConcurrentRequests(), 1));
+        this.executionId = new AtomicLong();
+        this.inFlightRequests = new InFlightRequests();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                                                                       Thread thread = new Thread(r, "hsloader-bulk-scheduler");
+                                                                       thread.setDaemon(true);
+                                                                       return thread;
+                                                                     });
+        this.actionLineCache = new ActionLineCache();
+        this.current = null;
+
+        if(opt.getFlushInterval() > 0){
+            scheduler.scheduleWithFixedDelay(this::flush, opt.getFlushInterval(), opt.getFlushInterval(), TimeUnit.SECONDS);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handleResponse(Batch batch, Response response) throws IOException{
+        Map<String, Object> result;
+        try(InputStream body = response.getEntity().getContent()){
+            result = XContentHelper.convertToMap(XContentType.JSON.xContent(), body, false);
+        }
+
+        if(!Boolean.TRUE.equals(result.get("errors"))){
+            return;
+        }
+
+        List<Object> items = (List<Object>)result.get("items");
+        for(int idx = 0; idx < items.size(); idx++){
+            Map<String, Object> item = (Map<String, Object>)((Map<String, Object>)items.get(idx)).values().iterator().next();
+            Object error = item.get("error");
+
+            if(error != null){
+                Object reason = (error instanceof Map) ? ((Map<String, Object>)error).get("reason") : error;
+                retryLane.onItemFailed(batch.requests.get(idx), ((Number)item.get("status")).intValue(), String.valueOf(reason));
+            }
+
+        }
+
+    }
+
+    /**
+     * Wait for a slot of in-flight requests, and take it.
+     * 
+     * @throws InterruptedIOException Thrown when interrupted while waiting.
+     *                                The slot is not taken, and the interrupt
+     *                                status is restored.
+     */
+    private void acquire() throws InterruptedIOException{
+        try{
+            inFlight.acquire();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for in-flight bulk requests");
+        }
+    }
+
+    private void execute(Batch batch, ByteArrayEntity entity){
+        long id = executionId.incrementAndGet();
+        inFlightRequests.begin(id, batch.requests);
+        long start = metrics.onBulkStart(batch.body.size());
+        EndpointPool.Endpoint endpoint = null;
+
+        try{
+            endpoint = endpointPool.acquire();
+            EndpointPool.Endpoint target = endpoint;
+            endpoint.getClient().performRequestAsync("POST", "/_bulk", PARAMS, entity, new ResponseListener(){
+
+                @Override
+                public void onSuccess(Response response){
+                    try{
+                        if(inFlightRequests.end(id)){
+                            handleResponse(batch, response);
+                        }
+                    }
+                    catch(IOException | RuntimeException e){
+                        retryLane.onRequestFailed(batch.requests, e);
+                    }
+                    finally{
+                        endpointPool.release(target, false);
+                        metrics.onBulkEnd(start, false);
+                        inFlight.release();
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception e){
+                    try{
+                        if(Boolean.getBoolean("debug")){
+                            e.printStackTrace();
+                        }
+                        if(inFlightRequests.end(id)){
+                            retryLane.onRequestFailed(batch.requests, e);
+                        }
+                    }
+                    finally{
+                        endpointPool.release(target, EndpointPool.isNodeFailure(e));
+                        metrics.onBulkEnd(start, true);
+                        inFlight.release();
+                    }
+                }
+
+            }, headers);
+        }
+        catch(RuntimeException e){
+            /* The request is not submitted, so no callback would be called. */
+            if(Boolean.getBoolean("debug")){
+                e.printStackTrace();
+            }
+            try{
+                if(inFlightRequests.end(id)){
+                    retryLane.onRequestFailed(batch.requests, e);
+                }
+            }
+            finally{
+                if(endpoint != null){
+                    endpointPool.release(endpoint, false);
+                }
+                metrics.onBulkEnd(start, true);
+                inFlight.release();
+            }
+        }
+
+    }
+
+    /**
+     * Send the batch when a slot of in-flight requests is available.
+     * This method is called outside of the monitor of this sender, so other
+     * producers can fill the next batch while waiting.
+     * If current thread is interrupted, documents in the batch are
+     * written to dead-letter spool.
+     * 
+     * @param batch Batch to send.
+     */
+    private void send(Batch batch){
+        ByteArrayEntity entity = batch.finish();
+
+        try{
+            acquire();
+        }
+        catch(InterruptedIOException e){
+            batch.requests.forEach(r -> spool.write(r, e.getMessage()));
+            throw new UncheckedIOException(e);
+        }
+
+        execute(batch, entity);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws UncheckedIOException Thrown when interrupted while waiting for
+     *                              in-flight requests.
+     */
+    @Override
+    public void add(IndexRequest request){
+        Batch full = null;
+
+        synchronized(this){
+            if(current == null){
+                current = new Batch();
+            }
+            current.add(request);
+
+            if((current.requests.size() >= bulkActions) || (current.size >= bulkSize)){
+                full = current;
+                current = null;
+            }
+        }
+
+        if(full != null){
+            send(full);
+        }
+
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws UncheckedIOException Thrown when interrupted while waiting for
+     *                              in-flight requests.
+     */
+    @Override
+    public void flush(){
+        Batch pending;
+
+        synchronized(this){
+            if(current == null){
+                return;
+            }
+            pending = current;
+            current = null;
+        }
+
+        send(pending);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws TimeoutException Thrown when bulk requests are not finished
+     *                          before the timeout. Their documents are
+     *                          written to dead-letter spool.
+     */
+    @Override
+    public void close() throws Exception{
+        try{
+            /*
+             * Periodic flush might wait for a slot of in-flight requests.
+             * Do not interrupt it unless it is not finished in the timeout,
+             * because interrupted flush writes its documents to dead-letter spool.
+             */
+            scheduler.shutdown();
+            if(!scheduler.awaitTermination(timeout, TimeUnit.SECONDS)){
+                scheduler.shutdownNow();
+
+                int count = 0;
+                synchronized(this){
+                    if(current != null){
+                        count = current.requests.size();
+                        current.requests.forEach(r -> spool.write(r, "Bulk request is not sent before shutdown"));
+                        current.finish();
+                        current = null;
+                    }
+                }
+                count += inFlightRequests.spool(spool, "Bulk request is not finished before shutdown");
+                throw new TimeoutException("Periodic flush is not finished in " + timeout + " seconds: " + count + " document(s) are written to " + spool.getPath());
+            }
+
+            flush();
+
+            if(!inFlightRequests.await(TimeUnit.SECONDS.toMillis(timeout))){
+                int count = inFlightRequests.spool(spool, "Bulk request is not finished before shutdown");
+                throw new TimeoutException("Bulk requests are not finished in " + timeout + " seconds: " + count + " document(s) are written to " + spool.getPath());
+            }
+        }
+        finally{
+            endpointPool.close();
+        }
+
+    }
+
+    /**
+     * Get Elasticsearch nodes of this sender.
+     * 
+     * @return Pool of nodes.
+     */
+    public EndpointPool getEndpointPool(){
+        return endpointPool;
+    }
+
+}
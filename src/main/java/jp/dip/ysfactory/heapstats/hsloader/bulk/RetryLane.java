@@ -0,0 +1,416 @@
+/*
+ * RetryLane.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bulk;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Retry lane for documents which are failed in bulk request.
+ * Failed documents are grouped by number of attempts, and they are sent
+ * again with exponential backoff from a dedicated thread, so retries do
+ * not block fresh ingestion. Documents which fail permanently, or fail
+ * more than max retries, are written to DeadLetterSpool.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class RetryLane implements AutoCloseable{
+
+    /**
+     * Maximum delay of retry in milliseconds.
+     */
+    private static final long MAX_DELAY = 30_000;
+
+    /**
+     * Documents which wait for the same attempt.
+     */
+    private static class Slot{
+
+        private final ConcurrentLinkedQueue<IndexRequest> requests = new ConcurrentLinkedQueue<>();
+
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    }
+
+    private final RestHighLevelClient client;
+
+    private final DeadLetterSpool spool;
+
+    private final int maxRetries;
+
+    private final long initialDelay;
+
+    private final int bulkActions;
+
+    /**
+     * Timeout of bulk request in milliseconds.
+     */
+    private final long requestTimeout;
+
+    private final Slot[] slots;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Number of documents which are not finished in this lane.
+     */
+    private final AtomicInteger outstanding;
+
+    private final AtomicLong executionId;
+
+    /**
+     * Retry requests which are sent but not finished yet.
+     */
+    private final InFlightRequests inFlightRequests;
+
+    private final LongAdder retried;
+
+    private final LongAdder recovered;
+
+    /**
+     * Constructor of RetryLane.
+     * 
+     * @param client Elasticsearch REST client.
+     * @param spool Dead-letter spool.
+     * @param maxRetries Number of retries before the document is written to dead-letter spool.
+     * @param initialDelay Delay of the first retry in milliseconds.
+     * @param bulkActions Maximum number of documents in one bulk request.
+     * @param requestTimeout Timeout of bulk request in milliseconds.
+     */
+    public RetryLane(RestHighLevelClient client, DeadLetterSpool spool, int maxRetries, long initialDelay, int bulkActions, long requestTimeout){
+        this.client = client;
+        this.spool = spool;
+        this.maxRetries = maxRetries;
+        this.initialDelay = initialDelay;
+        this.bulkActions = bulkActions;
+        this.requestTimeout = requestTimeout;
+        this.slots = new Slot[maxRetries + 1];
+        for(int idx = 0; idx < slots.length; idx++){
+            slots[idx] = new Slot();
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                                                                       Thread thread = new Thread(r, "hsloader-retry");
+                                                                       thread.setDaemon(true);
+                                                                       return thread;
+                                                                     });
+        this.outstanding = new AtomicInteger();
+        this.executionId = new AtomicLong();
+        this.inFlightRequests = new InFlightRequests();
+        this.retried = new LongAdder();
+        this.recovered = new LongAdder();
+    }
+
+    /**
+     * Check whether the status is worth to retry.
+     * 
+     * @param status HTTP status of the failure.
+     * @return true if the document might be indexed by retry.
+     */
+    public static boolean isRetryable(RestStatus status){
+        if(status == null){
+            return true;
+        }
+
+        switch(status){
+            case TOO_MANY_REQUESTS:
+            case INTERNAL_SERVER_ERROR:
+            case BAD_GATEWAY:
+            case SERVICE_UNAVAILABLE:
+            case GATEWAY_TIMEOUT:
+                return true;
+
+            default:
+                return false;
+        }
+
+    }
+
+    /**
+     * Check whether the HTTP status code is worth to retry.
+     * 
+     * @param code HTTP status code of the failure.
+     * @return true if the document might be indexed by retry.
+     */
+    public static boolean isRetryable(int code){
+        return (code == 429) || (code >= 500);
+    }
+
+    /**
+     * Check whether the exception of whole bulk request is worth to retry.
+     * 
+     * @param e Exception of bulk request.
+     * @return true if the request might be succeeded by retry.
+     */
+    public static boolean isRetryable(Throwable e){
+        if(e instanceof ElasticsearchException){
+            return isRetryable(((ElasticsearchException)e).status());
+        }
+        else if(e instanceof ResponseException){
+            return isRetryable(((ResponseException)e).getResponse().getStatusLine().getStatusCode());
+        }
+
+        return (e instanceof IOException);
+    }
+
+    private long delayOf(int attempt){
+        return Math.min(initialDelay << Math.min(attempt - 1, 20), MAX_DELAY);
+    }
+
+    /**
+     * Handle failed document.
+     * 
+     * @param request Failed document.
+     * @param attempt Number of the next attempt. The first retry is 1.
+     * @param retryable true if the failure is worth to retry.
+     * @param reason Reason of the failure.
+     */
+    private void submit(IndexRequest request, int attempt, boolean retryable, String reason){
+        if(!retryable || (attempt > maxRetries)){
+            spool.write(request, reason);
+            return;
+        }
+        if(scheduler.isShutdown()){
+            spool.write(request, "Retry is not completed before shutdown");
+            return;
+        }
+
+        Slot slot = slots[attempt];
+        outstanding.incrementAndGet();
+        slot.requests.add(request);
+        retried.increment();
+
+        if(slot.scheduled.compareAndSet(false, true)){
+            scheduler.schedule(() -> drain(slot, attempt), delayOf(attempt), TimeUnit.MILLISECONDS);
+        }
+
+    }
+
+    private void drain(Slot slot, int attempt){
+        slot.scheduled.set(false);
+
+        BulkRequest bulkRequest = new BulkRequest();
+        IndexRequest request;
+        while((request = slot.requests.poll()) != null){
+            bulkRequest.add(request);
+
+            if(bulkRequest.numberOfActions() >= bulkActions){
+                send(bulkRequest, attempt);
+                bulkRequest = new BulkRequest();
+            }
+
+        }
+
+        if(bulkRequest.numberOfActions() > 0){
+            send(bulkRequest, attempt);
+        }
+
+    }
+
+    private void send(BulkRequest bulkRequest, int attempt){
+        int numActions = bulkRequest.numberOfActions();
+        long id = executionId.incrementAndGet();
+
+        inFlightRequests.begin(id, bulkRequest.requests());
+        client.bulkAsync(bulkRequest, new ActionListener<BulkResponse>(){
+
+            @Override
+            public void onResponse(BulkResponse response){
+                try{
+                    if(inFlightRequests.end(id)){
+                        onItemsFailed(bulkRequest, response, attempt + 1);
+
+                        int failed = 0;
+                        for(BulkItemResponse item : response.getItems()){
+                            if(item.isFailed()){
+                                failed++;
+                            }
+                        }
+                        recovered.add(numActions - failed);
+                    }
+                }
+                finally{
+                    outstanding.addAndGet(-numActions);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e){
+                try{
+                    if(inFlightRequests.end(id)){
+                        onRequestFailed(bulkRequest, e, attempt + 1);
+                    }
+                }
+                finally{
+                    outstanding.addAndGet(-numActions);
+                }
+            }
+
+        });
+    }
+
+    /**
+     * Handle failed items in bulk response.
+     * 
+     * @param bulkRequest Bulk request.
+     * @param response Bulk response which has failures.
+     */
+    public void onItemsFailed(BulkRequest bulkRequest, BulkResponse response){
+        onItemsFailed(bulkRequest, response, 1);
+    }
+
+    private void onItemsFailed(BulkRequest bulkRequest, BulkResponse response, int attempt){
+        if(!response.hasFailures()){
+            return;
+        }
+
+        for(BulkItemResponse item : response.getItems()){
+            if(item.isFailed()){
+                submit((IndexRequest)bulkRequest.requests().get(item.getItemId()), attempt,
+                       isRetryable(item.getFailure().getStatus()), item.getFailureMessage());
+            }
+        }
+
+    }
+
+    /**
+     * Handle failure of whole bulk request.
+     * 
+     * @param bulkRequest Bulk request.
+     * @param e Exception of the request.
+     */
+    public void onRequestFailed(BulkRequest bulkRequest, Throwable e){
+        onRequestFailed(bulkRequest, e, 1);
+    }
+
+    /**
+     * Handle failed item which is sent through other than high-level client.
+     * 
+     * @param request Failed document.
+     * @param code HTTP status code of the item.
+     * @param reason Reason of the failure.
+     */
+    public void onItemFailed(IndexRequest request, int code, String reason){
+        submit(request, 1, isRetryable(code), reason);
+    }
+
+    /**
+     * Handle failure of whole bulk request which is sent through other
+     * than high-level client.
+     * 
+     * @param requests Documents in the request.
+     * @param e Exception of the request.
+     */
+    public void onRequestFailed(List<IndexRequest> requests, Throwable e){
+        boolean retryable = isRetryable(e);
+        String reason = e.getLocalizedMessage();
+        requests.forEach(r -> submit(r, 1, retryable, reason));
+    }
+
+    private void onRequestFailed(BulkRequest bulkRequest, Throwable e, int attempt){
+        boolean retryable = isRetryable(e);
+        String reason = e.getLocalizedMessage();
+        bulkRequest.requests().forEach(r -> submit((IndexRequest)r, attempt, retryable, reason));
+    }
+
+    /**
+     * Get number of documents which are retried.
+     * 
+     * @return Number of retries.
+     */
+    public long getRetriedCount(){
+        return retried.sum();
+    }
+
+    /**
+     * Get number of documents which are indexed by retry.
+     * 
+     * @return Number of recovered documents.
+     */
+    public long getRecoveredCount(){
+        return recovered.sum();
+    }
+
+    /**
+     * Wait for pending retries. Documents which are still not indexed
+     * after the timeout are written to dead-letter spool.
+     * 
+     * @param timeout Timeout in milliseconds.
+     * @throws InterruptedException Thrown when interrupted while waiting.
+     * @throws TimeoutException Thrown when retry requests are still in
+     *                          flight after the timeout.
+     */
+    public void awaitClose(long timeout) throws InterruptedException, TimeoutException{
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while((outstanding.get() > 0) && (System.nanoTime() < deadline)){
+            Thread.sleep(10);
+        }
+
+        scheduler.shutdownNow();
+        for(Slot slot : slots){
+            IndexRequest request;
+            while((request = slot.requests.poll()) != null){
+                spool.write(request, "Retry is not completed before shutdown");
+            }
+        }
+
+        int count = inFlightRequests.spool(spool, "Retry is not completed before shutdown");
+        if(count > 0){
+            throw new TimeoutException("Retry requests are not finished in " + timeout + " ms: " + count + " document(s) are written to " + spool.getPath());
+        }
+
+    }
+
+    /**
+     * Wait for pending retries with the delay and request timeout of all attempts.
+     * 
+     * @throws InterruptedException Thrown when interrupted while waiting.
+     * @throws TimeoutException Thrown when retry requests are still in
+     *                          flight after the timeout.
+     */
+    @Override
+    public void close() throws InterruptedException, TimeoutException{
+        long timeout = 0;
+        for(int attempt = 1; attempt <= maxRetries; attempt++){
+            timeout += delayOf(attempt) + requestTimeout;
+        }
+        awaitClose(timeout);
+    }
+
+}
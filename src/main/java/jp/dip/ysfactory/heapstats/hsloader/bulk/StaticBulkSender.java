@@ -0,0 +1,139 @@
+/*
+ * StaticBulkSender.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.bulk;
+
+import jp.dip.ysfactory.heapstats.hsloader.Option;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * BulkSender which uses BulkProcessor with fixed settings.
+ * BulkProcessor does not retry by itself, failed documents are passed to
+ * the listener and they are retried by RetryLane.
+ * Documents which are still in flight at the timeout of close are written
+ * to DeadLetterSpool.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class StaticBulkSender implements BulkSender{
+
+    private final BulkProcessor bulkProcessor;
+
+    private final int timeout;
+
+    private final DeadLetterSpool spool;
+
+    private final InFlightRequests inFlightRequests;
+
+    /**
+     * Constructor of StaticBulkSender.
+     * 
+     * @param client Elasticsearch REST client.
+     * @param listener Listener of bulk requests.
+     * @param spool Dead-letter spool for documents which are not finished at close.
+     * @param opt Commandline option.
+     */
+    public StaticBulkSender(RestHighLevelClient client, BulkProcessor.Listener listener, DeadLetterSpool spool, Option opt){
+        this.spool = spool;
+        this.inFlightRequests = new InFlightRequests();
+
+        /*
+         * Responses of requests which are written to dead-letter spool
+         * at close are not passed to the listener.
+         */
+        BulkProcessor.Listener tracker = new BulkProcessor.Listener(){
+
+            @Override
+            public void beforeBulk(long executionId, BulkRequest request){
+                inFlightRequests.begin(executionId, request.requests());
+                listener.beforeBulk(executionId, request);
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response){
+                if(inFlightRequests.end(executionId)){
+                    listener.afterBulk(executionId, request, response);
+                }
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Throwable failure){
+                if(inFlightRequests.end(executionId)){
+                    listener.afterBulk(executionId, request, failure);
+                }
+            }
+
+        };
+
+        BulkProcessor.Builder builder = BulkProcessor.builder(client::bulkAsync, tracker)
+                                                     .setBulkActions(opt.getBulkRequests())
+                                                     .setBulkSize(new ByteSizeValue(opt.getBulkSize()))
+                                                     .setConcurrentRequests(opt.getConcurrentRequests())
+                                                     .setBackoffPolicy(BackoffPolicy.noBackoff());
+        if(opt.getFlushInterval() > 0){
+            builder.setFlushInterval(TimeValue.timeValueSeconds(opt.getFlushInterval()));
+        }
+
+        this.bulkProcessor = builder.build();
+        this.timeout = opt.getTimeout();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void add(IndexRequest request){
+        bulkProcessor.add(request);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush(){
+        bulkProcessor.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws TimeoutException Thrown when bulk requests are not finished
+     *                          before the timeout. Their documents are
+     *                          written to dead-letter spool.
+     */
+    @Override
+    public void close() throws Exception{
+        if(!bulkProcessor.awaitClose(timeout, TimeUnit.SECONDS)){
+            int count = inFlightRequests.spool(spool, "Bulk request is not finished before shutdown");
+            throw new TimeoutException("Bulk requests are not finished in " + timeout + " seconds: " + count + " document(s) are written to " + spool.getPath());
+        }
+    }
+
+}
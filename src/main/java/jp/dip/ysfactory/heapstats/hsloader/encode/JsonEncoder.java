@@ -0,0 +1,444 @@
+/*
+ * JsonEncoder.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.encode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * JSON encoder which writes into reusable byte buffer.
+ * It supports flat objects and string arrays which are used by HSLoader
+ * documents. The output is the same as XContentBuilder (Jackson) with
+ * default settings.
+ * 
+ * Instances are not thread-safe. Use get() to obtain the instance for
+ * current thread.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class JsonEncoder{
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+    /**
+     * Hex digits for escape. Jackson writes them in upper case.
+     */
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Digits of Long.MIN_VALUE.
+     */
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<JsonEncoder> ENCODERS = ThreadLocal.withInitial(JsonEncoder::new);
+
+    /**
+     * Measure time from get() to toByteArray().
+     */
+    private static volatile boolean timing = false;
+
+    /**
+     * Total time of encoding in nanoseconds.
+     */
+    private static final LongAdder ENCODE_NANOS = new LongAdder();
+
+    /**
+     * Start time of current document. 0 means not measured.
+     */
+    private long startNanos;
+
+    private byte[] buffer;
+
+    private int position;
+
+    /**
+     * true if next value is the first element in current object or array.
+     */
+    private boolean first;
+
+    /**
+     * Constructor of JsonEncoder.
+     */
+    public JsonEncoder(){
+        buffer = new byte[INITIAL_CAPACITY];
+        position = 0;
+        first = true;
+    }
+
+    /**
+     * Get encoder for current thread. Its buffer is reset.
+     * 
+     * @return JsonEncoder for current thread.
+     */
+    public static JsonEncoder get(){
+        JsonEncoder encoder = ENCODERS.get();
+        encoder.reset();
+        if(timing){
+            encoder.startNanos = System.nanoTime();
+        }
+        return encoder;
+    }
+
+    /**
+     * Enable or disable measurement of encoding time.
+     * Documents from get() to toByteArray() are measured.
+     * 
+     * @param enabled true if encoding time should be measured.
+     */
+    public static void setTiming(boolean enabled){
+        timing = enabled;
+    }
+
+    /**
+     * Get total time of encoding.
+     * 
+     * @return Encoding time in nanoseconds.
+     */
+    public static long getEncodeNanos(){
+        return ENCODE_NANOS.sum();
+    }
+
+    /**
+     * Encode string as JSON string value (with quotes).
+     * This method is useful to pre-encode the value which is shared by many documents.
+     * 
+     * @param value String value.
+     * @return Encoded value.
+     */
+    public static byte[] encodeString(String value){
+        JsonEncoder encoder = new JsonEncoder();
+        encoder.writeString(value);
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Reset buffer.
+     * 
+     * @return this instance.
+     */
+    public JsonEncoder reset(){
+        position = 0;
+        first = true;
+        startNanos = 0;
+        return this;
+    }
+
+    private void ensure(int length){
+        if((position + length) > buffer.length){
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+        }
+    }
+
+    private void write(byte b){
+        ensure(1);
+        buffer[position++] = b;
+    }
+
+    private void write(byte[] bytes){
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void separator(){
+        if(first){
+            first = false;
+        }
+        else{
+            write((byte)',');
+        }
+    }
+
+    private void name(JsonField field){
+        separator();
+        write(field.encoded);
+    }
+
+    private void writeLong(long value){
+        if(value == Long.MIN_VALUE){
+            write(MIN_LONG);
+            return;
+        }
+
+        ensure(20);
+        if(value < 0){
+            buffer[position++] = '-';
+            value = -value;
+        }
+
+        int start = position;
+        do{
+            buffer[position++] = (byte)('0' + (value % 10));
+            value /= 10;
+        }while(value != 0);
+
+        for(int head = start, tail = position - 1; head < tail; head++, tail--){
+            byte tmp = buffer[head];
+            buffer[head] = buffer[tail];
+            buffer[tail] = tmp;
+        }
+
+    }
+
+    private void writeEscaped(char c){
+        ensure(6);
+        buffer[position++] = '\\';
+
+        switch(c){
+            case '"':
+                buffer[position++] = '"';
+                break;
+            case '\\':
+                buffer[position++] = '\\';
+                break;
+            case '\n':
+                buffer[position++] = 'n';
+                break;
+            case '\r':
+                buffer[position++] = 'r';
+                break;
+            case '\t':
+                buffer[position++] = 't';
+                break;
+            case '\b':
+                buffer[position++] = 'b';
+                break;
+            case '\f':
+                buffer[position++] = 'f';
+                break;
+            default:
+                buffer[position++] = 'u';
+                buffer[position++] = HEX[(c >> 12) & 0xf];
+                buffer[position++] = HEX[(c >> 8) & 0xf];
+                buffer[position++] = HEX[(c >> 4) & 0xf];
+                buffer[position++] = HEX[c & 0xf];
+        }
+
+    }
+
+    private void writeString(String value){
+        if(value == null){
+            write(NULL);
+            return;
+        }
+
+        int length = value.length();
+        ensure((length * 3) + 2);
+        buffer[position++] = '"';
+
+        for(int idx = 0; idx < length; idx++){
+            char c = value.charAt(idx);
+
+            /*
+             * Jackson escapes surrogates (6 bytes for each) instead of encoding
+             * supplementary characters to 4 bytes. Lone surrogates are
+             * escaped in the same way.
+             */
+            if((c < 0x20) || (c == '"') || (c == '\\') || Character.isSurrogate(c)){
+                writeEscaped(c);
+                ensure(((length - idx - 1) * 3) + 1);
+            }
+            else if(c < 0x80){
+                buffer[position++] = (byte)c;
+            }
+            else if(c < 0x800){
+                buffer[position++] = (byte)(0xc0 | (c >> 6));
+                buffer[position++] = (byte)(0x80 | (c & 0x3f));
+            }
+            else{
+                buffer[position++] = (byte)(0xe0 | (c >> 12));
+                buffer[position++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                buffer[position++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+
+        buffer[position++] = '"';
+    }
+
+    /**
+     * Start JSON object.
+     * Separator is written if the object is an element of array.
+     * 
+     * @return this instance.
+     */
+    public JsonEncoder startObject(){
+        separator();
+        write((byte)'{');
+        first = true;
+        return this;
+    }
+
+    /**
+     * Start object field.
+     * 
+     * @param field Field name.
+     * @return this instance.
+     */
+    public JsonEncoder startObject(JsonField field){
+        name(field);
+        write((byte)'{');
+        first = true;
+        return this;
+    }
+
+    /**
+     * End JSON object.
+     * 
+     * @return this instance.
+     */
+    public JsonEncoder endObject(){
+        write((byte)'}');
+        first = false;
+        return this;
+    }
+
+    /**
+     * Start array field.
+     * 
+     * @param field Field name.
+     * @return this instance.
+     */
+    public JsonEncoder startArray(JsonField field){
+        name(field);
+        write((byte)'[');
+        first = true;
+        return this;
+    }
+
+    /**
+     * End array.
+     * 
+     * @return this instance.
+     */
+    public JsonEncoder endArray(){
+        write((byte)']');
+        first = false;
+        return this;
+    }
+
+    /**
+     * Write pre-encoded value to array.
+     * 
+     * @param encoded Pre-encoded value.
+     * @return this instance.
+     */
+    public JsonEncoder rawValue(byte[] encoded){
+        separator();
+        write(encoded);
+        return this;
+    }
+
+    /**
+     * Write long field.
+     * 
+     * @param field Field name.
+     * @param value Value.
+     * @return this instance.
+     */
+    public JsonEncoder field(JsonField field, long value){
+        name(field);
+        writeLong(value);
+        return this;
+    }
+
+    /**
+     * Write double field.
+     * Non-finite value is written as string like Jackson does.
+     * 
+     * @param field Field name.
+     * @param value Value.
+     * @return this instance.
+     */
+    public JsonEncoder field(JsonField field, double value){
+        name(field);
+        if(Double.isFinite(value)){
+            write(Double.toString(value).getBytes(StandardCharsets.US_ASCII));
+        }
+        else{
+            writeString(Double.toString(value));
+        }
+        return this;
+    }
+
+    /**
+     * Write string field.
+     * 
+     * @param field Field name.
+     * @param value Value. It might be null.
+     * @return this instance.
+     */
+    public JsonEncoder field(JsonField field, String value){
+        name(field);
+        writeString(value);
+        return this;
+    }
+
+    /**
+     * Write field with pre-encoded value.
+     * 
+     * @param field Field name.
+     * @param encoded Pre-encoded value. See encodeString().
+     * @return this instance.
+     */
+    public JsonEncoder rawField(JsonField field, byte[] encoded){
+        name(field);
+        write(encoded);
+        return this;
+    }
+
+    /**
+     * Get length of encoded JSON.
+     * 
+     * @return Length in bytes.
+     */
+    public int length(){
+        return position;
+    }
+
+    /**
+     * Get internal buffer. Valid range is from 0 to length().
+     * 
+     * @return Internal buffer.
+     */
+    public byte[] buffer(){
+        return buffer;
+    }
+
+    /**
+     * Copy encoded JSON to new array.
+     * 
+     * @return Encoded JSON.
+     */
+    public byte[] toByteArray(){
+        byte[] result = Arrays.copyOf(buffer, position);
+
+        if(startNanos != 0){
+            ENCODE_NANOS.add(System.nanoTime() - startNanos);
+            startNanos = 0;
+        }
+
+        return result;
+    }
+
+}
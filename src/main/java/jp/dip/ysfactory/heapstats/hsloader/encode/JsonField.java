@@ -0,0 +1,48 @@
+/*
+ * JsonField.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.encode;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Pre-encoded JSON field name.
+ * Field name is encoded only once, then it is copied to the buffer as is.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class JsonField{
+
+    /**
+     * Encoded field name: "name":
+     */
+    final byte[] encoded;
+
+    /**
+     * Constructor of JsonField.
+     * Field name must not contain characters which need to be escaped.
+     * 
+     * @param name Field name.
+     */
+    public JsonField(String name){
+        encoded = ("\"" + name + "\":").getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * IndexBootstrap.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.index;
+
+import jp.dip.ysfactory.heapstats.hsloader.Option;
+import jp.dip.ysfactory.heapstats.hsloader.encode.JsonEncoder;
+import jp.dip.ysfactory.heapstats.hsloader.encode.JsonField;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Bootstrap of HeapStats indices.
+ * This class installs index templates, applies load-time settings
+ * (no refresh, no replicas) to indices which are touched during the load,
+ * and restores them and force merges the indices at the end.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class IndexBootstrap{
+
+    /**
+     * Names of index templates. Each template is stored in
+     * /templates/&lt;name&gt;.json in the classpath, and its name is the same
+     * as the type name of documents.
+     */
+    public static final String[] TEMPLATES = {"heapstats-snapshot-summary",
+                                              "heapstats-snapshot-objects",
+                                              "heapstats-snapshot-refs",
+                                              "heapstats-snapshot-rollup",
+                                              "heapstats-snapshot-suspects",
+                                              "heapstats-resource-log",
+                                              "heapstats-resource-diff"};
+
+    private static final String REFRESH_INTERVAL = "index.refresh_interval";
+
+    private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+
+    /**
+     * Fields to restore settings. null resets the setting to its default.
+     */
+    private static final JsonField REFRESH_INTERVAL_FIELD = new JsonField(REFRESH_INTERVAL);
+
+    private static final JsonField NUMBER_OF_REPLICAS_FIELD = new JsonField(NUMBER_OF_REPLICAS);
+
+    /**
+     * Parameters to read settings. Default values are not included, because
+     * settings which are not set explicitly are restored with null, so they
+     * keep following the defaults.
+     */
+    private static final Map<String, String> GET_SETTINGS_PARAMS = Collections.singletonMap("flat_settings", "true");
+
+    /**
+     * Settings while loading.
+     */
+    private static final byte[] LOAD_SETTINGS = "{\"index\":{\"refresh_interval\":\"-1\",\"number_of_replicas\":0}}".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Low-level REST client.
+     */
+    private final RestClient client;
+
+    /**
+     * Factory of REST client for force merge.
+     * Force merge might take much longer than other requests, so it is
+     * sent through another client which has its own timeout.
+     */
+    private final Supplier<RestClient> forceMergeClientFactory;
+
+    private final boolean loadSettings;
+
+    private final int forceMerge;
+
+    /**
+     * Indices which are touched during the load.
+     * Value is the original settings of the index: refresh interval and
+     * number of replicas which are read back before load-time settings are
+     * applied. Each of them is null if it is not set explicitly.
+     * Value is empty if load-time settings could not be applied.
+     */
+    private final Map<String, String[]> touchedIndices;
+
+    /**
+     * Constructor of IndexBootstrap.
+     * 
+     * @param client Low-level REST client.
+     * @param forceMergeClientFactory Factory of REST client for force merge.
+     *                                It is called only when force merge is
+     *                                enabled, and the client is closed after
+     *                                force merge.
+     * @param opt Commandline option.
+     */
+    public IndexBootstrap(RestClient client, Supplier<RestClient> forceMergeClientFactory, Option opt){
+        this.client = client;
+        this.forceMergeClientFactory = forceMergeClientFactory;
+        this.loadSettings = opt.isLoadSettings();
+        this.forceMerge = opt.getForceMerge();
+        this.touchedIndices = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Check whether this bootstrap needs to track indices.
+     * 
+     * @return true if load-time settings or force merge is enabled.
+     */
+    public boolean isTracking(){
+        return loadSettings || (forceMerge > 0);
+    }
+
+    private static ByteArrayEntity jsonEntity(byte[] body){
+        return new ByteArrayEntity(body, ContentType.APPLICATION_JSON);
+    }
+
+    private static byte[] readTemplate(String name) throws IOException{
+        try(InputStream in = IndexBootstrap.class.getResourceAsStream("/templates/" + name + ".json")){
+            if(in == null){
+                throw new IOException("Index template is not found: " + name);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int len;
+            while((len = in.read(buf)) != -1){
+                out.write(buf, 0, len);
+            }
+
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Install all index templates.
+     * Existing templates which have the same name are overwritten.
+     * 
+     * @throws IOException Thrown when a template could not be installed.
+     */
+    public void installTemplates() throws IOException{
+        for(String name : TEMPLATES){
+            client.performRequest("PUT", "/_template/" + name, Collections.emptyMap(), jsonEntity(readTemplate(name)));
+        }
+        System.out.println(TEMPLATES.length + " index template(s) are installed.");
+    }
+
+    /**
+     * Prepare the index before the first document is published to it.
+     * This method can be called from many threads concurrently.
+     * Errors are reported, but they do not stop the load because the
+     * settings are just for throughput.
+     * 
+     * @param index Index name.
+     */
+    public void prepare(String index){
+        if(touchedIndices.containsKey(index)){
+            return;
+        }
+
+        synchronized(this){
+            if(touchedIndices.containsKey(index)){
+                return;
+            }
+
+            String[] original = null;
+            if(loadSettings){
+                try{
+                    original = applyLoadSettings(index);
+                }
+                catch(IOException e){
+                    System.err.println("Could not apply load-time settings to " + index + ": " + e.getLocalizedMessage());
+                    if(Boolean.getBoolean("debug")){
+                        e.printStackTrace();
+                    }
+                }
+            }
+
+            /* ConcurrentHashMap does not accept null */
+            touchedIndices.put(index, (original == null) ? new String[0] : original);
+        }
+
+    }
+
+    /**
+     * Get the setting which is set explicitly from GET _settings response.
+     * 
+     * @param indexSettings Settings of the index in the response.
+     * @param name Name of the setting.
+     * @return Value of the setting. null if it is not set explicitly, i.e.
+     *         the index follows the default value.
+     */
+    @SuppressWarnings("unchecked")
+    private static String getSetting(Map<String, Object> indexSettings, String name){
+        Map<String, Object> settings = (Map<String, Object>)indexSettings.get("settings");
+        Object value = (settings == null) ? null : settings.get(name);
+        return (value == null) ? null : value.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private String[] applyLoadSettings(String index) throws IOException{
+        Response head = client.performRequest("HEAD", "/" + index);
+
+        if(head.getStatusLine().getStatusCode() == 404){
+            /*
+             * Create the index without settings, so index templates are
+             * applied to it. Settings from templates are read back below,
+             * and they are restored at the end.
+             */
+            try{
+                client.performRequest("PUT", "/" + index);
+            }
+            catch(ResponseException e){
+                if(e.getResponse().getStatusLine().getStatusCode() != 400){
+                    throw e;
+                }
+                /* The index has been created by someone else. */
+            }
+        }
+
+        Response response = client.performRequest("GET", "/" + index + "/_settings", GET_SETTINGS_PARAMS);
+        Map<String, Object> result;
+        try(InputStream body = response.getEntity().getContent()){
+            result = XContentHelper.convertToMap(XContentType.JSON.xContent(), body, false);
+        }
+        Map<String, Object> indexSettings = (Map<String, Object>)result.get(index);
+        String[] original = {getSetting(indexSettings, REFRESH_INTERVAL),
+                             getSetting(indexSettings, NUMBER_OF_REPLICAS)};
+
+        client.performRequest("PUT", "/" + index + "/_settings", Collections.emptyMap(), jsonEntity(LOAD_SETTINGS));
+
+        return original;
+    }
+
+    /**
+     * Finish the load.
+     * Touched indices are refreshed, force merged if it is enabled, and
+     * their original settings are restored. Force merge runs before the
+     * replicas are restored, so replicas are copied from merged segments.
+     * 
+     * @return true if all indices are finished successfully.
+     */
+    public boolean finish(){
+        RestClient forceMergeClient = (forceMerge > 0) ? forceMergeClientFactory.get() : null;
+
+        try{
+            return finishIndices(forceMergeClient);
+        }
+        finally{
+            if(forceMergeClient != null){
+                try{
+                    forceMergeClient.close();
+                }
+                catch(IOException e){
+                    System.err.println("Could not close REST client for force merge: " + e.getLocalizedMessage());
+                    if(Boolean.getBoolean("debug")){
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+    }
+
+    private boolean finishIndices(RestClient forceMergeClient){
+        boolean succeeded = true;
+
+        for(Map.Entry<String, String[]> entry : touchedIndices.entrySet()){
+            String index = entry.getKey();
+            String[] original = entry.getValue();
+
+            try{
+                client.performRequest("POST", "/" + index + "/_refresh");
+
+                if(forceMergeClient != null){
+                    forceMergeClient.performRequest("POST", "/" + index + "/_forcemerge",
+                                          Collections.singletonMap("max_num_segments", Integer.toString(forceMerge)));
+                }
+
+                if(original.length > 0){
+                    byte[] body = JsonEncoder.get()
+                                             .startObject()
+                                             .field(REFRESH_INTERVAL_FIELD, original[0])
+                                             .field(NUMBER_OF_REPLICAS_FIELD, original[1])
+                                             .endObject()
+                                             .toByteArray();
+                    client.performRequest("PUT", "/" + index + "/_settings", Collections.emptyMap(), jsonEntity(body));
+                }
+            }
+            catch(IOException e){
+                System.err.println("Could not finish " + index + ": " + e.getLocalizedMessage());
+                if(Boolean.getBoolean("debug")){
+                    e.printStackTrace();
+                }
+                succeeded = false;
+            }
+        }
+
+        return succeeded;
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * LogEncoder.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.log;
+
+import jp.co.ntt.oss.heapstats.container.log.DiffData;
+import jp.co.ntt.oss.heapstats.container.log.LogData;
+import jp.dip.ysfactory.heapstats.hsloader.encode.JsonEncoder;
+import jp.dip.ysfactory.heapstats.hsloader.encode.JsonField;
+
+/**
+ * Encoder for resource log documents.
+ * Field names are pre-encoded, and documents are written into the
+ * JsonEncoder of current thread.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class LogEncoder{
+
+    private static final JsonField TIMESTAMP = new JsonField("@timestamp");
+
+    /* Fields for tags */
+    private static final JsonField TAG = new JsonField("tag");
+    private static final JsonField ARCHIVE_PATH = new JsonField("archivePath");
+    private static final byte[] ARCHIVE = JsonEncoder.encodeString("archive");
+    private static final byte[] REBOOT = JsonEncoder.encodeString("reboot");
+
+    /* Fields for log */
+    private static final JsonField LOG_CAUSE = new JsonField("logCause");
+    private static final JsonField JAVA_VS_SIZE = new JsonField("javaVSSize");
+    private static final JsonField JAVA_RS_SIZE = new JsonField("javaRSSize");
+    private static final JsonField JVM_LIVE_THREADS = new JsonField("jvmLiveThreads");
+
+    /* Fields for diff */
+    private static final JsonField JAVA_USER_USAGE = new JsonField("javaUserUsage");
+    private static final JsonField JAVA_SYS_USAGE = new JsonField("javaSysUsage");
+    private static final JsonField CPU_USER_USAGE = new JsonField("cpuUserUsage");
+    private static final JsonField CPU_NICE_USAGE = new JsonField("cpuNiceUsage");
+    private static final JsonField CPU_SYS_USAGE = new JsonField("cpuSysUsage");
+    private static final JsonField CPU_IDLE_USAGE = new JsonField("cpuIdleUsage");
+    private static final JsonField CPU_IOWAIT_USAGE = new JsonField("cpuIOWaitUsage");
+    private static final JsonField CPU_IRQ_USAGE = new JsonField("cpuIRQUsage");
+    private static final JsonField CPU_SOFTIRQ_USAGE = new JsonField("cpuSoftIRQUsage");
+    private static final JsonField CPU_STEAL_USAGE = new JsonField("cpuStealUsage");
+    private static final JsonField CPU_GUEST_USAGE = new JsonField("cpuGuestUsage");
+    private static final JsonField JVM_SYNC_PARK = new JsonField("jvmSyncPark");
+    private static final JsonField JVM_SAFEPOINT_TIME = new JsonField("jvmSafepointTime");
+    private static final JsonField JVM_SAFEPOINTS = new JsonField("jvmSafepoints");
+
+    private LogEncoder(){
+        // Utility class
+    }
+
+    private static JsonEncoder writeTag(JsonEncoder encoder, String archivePath, boolean isReboot){
+        boolean isArchive = (archivePath != null);
+
+        if(isArchive || isReboot){
+            encoder.startArray(TAG);
+            if(isArchive){
+                encoder.rawValue(ARCHIVE);
+            }
+            if(isReboot){
+                encoder.rawValue(REBOOT);
+            }
+            encoder.endArray();
+        }
+        if(isArchive){
+            encoder.field(ARCHIVE_PATH, archivePath);
+        }
+
+        return encoder;
+    }
+
+    /**
+     * Encode log document.
+     * 
+     * @param timestamp Timestamp of the log.
+     * @param logData Log data.
+     * @param archivePath Archive path at this time, or null.
+     * @param isReboot true if reboot is suspected at this time.
+     * @return Encoded document.
+     */
+    public static byte[] encodeLog(String timestamp, LogData logData, String archivePath, boolean isReboot){
+        JsonEncoder encoder = JsonEncoder.get()
+                                         .startObject()
+                                         .field(TIMESTAMP, timestamp)
+                                         .field(LOG_CAUSE, logData.getLogCause().toString())
+                                         .field(JAVA_VS_SIZE, logData.getJavaVSSize())
+                                         .field(JAVA_RS_SIZE, logData.getJavaRSSize())
+                                         .field(JVM_LIVE_THREADS, logData.getJvmLiveThreads());
+        return writeTag(encoder, archivePath, isReboot).endObject()
+                                                       .toByteArray();
+    }
+
+    /**
+     * Encode diff document.
+     * 
+     * @param timestamp Timestamp of the diff.
+     * @param diffData Diff data.
+     * @param archivePath Archive path at this time, or null.
+     * @param isReboot true if reboot is suspected at this time.
+     * @return Encoded document.
+     */
+    public static byte[] encodeDiff(String timestamp, DiffData diffData, String archivePath, boolean isReboot){
+        JsonEncoder encoder = JsonEncoder.get()
+                                         .startObject()
+                                         .field(TIMESTAMP, timestamp)
+                                         .field(JAVA_USER_USAGE, diffData.getJavaUserUsage())
+                                         .field(JAVA_SYS_USAGE, diffData.getJavaSysUsage())
+                                         .field(CPU_USER_USAGE, diffData.getCpuUserUsage())
+                                         .field(CPU_NICE_USAGE, diffData.getCpuNiceUsage())
+                                         .field(CPU_SYS_USAGE, diffData.getCpuSysUsage())
+                                         .field(CPU_IDLE_USAGE, diffData.getCpuIdleUsage())
+                                         .field(CPU_IOWAIT_USAGE, diffData.getCpuIOWaitUsage())
+                                         .field(CPU_IRQ_USAGE, diffData.getCpuIRQUsage())
+                                         .field(CPU_SOFTIRQ_USAGE, diffData.getCpuSoftIRQUsage())
+                                         .field(CPU_STEAL_USAGE, diffData.getCpuStealUsage())
+                                         .field(CPU_GUEST_USAGE, diffData.getCpuGuestUsage())
+                                         .field(JVM_SYNC_PARK, diffData.getJvmSyncPark())
+                                         .field(JVM_SAFEPOINT_TIME, diffData.getJvmSafepointTime())
+                                         .field(JVM_SAFEPOINTS, diffData.getJvmSafepoints());
+        return writeTag(encoder, archivePath, isReboot).endObject()
+                                                       .toByteArray();
+    }
+
+}
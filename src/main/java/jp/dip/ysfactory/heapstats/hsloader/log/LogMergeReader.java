@@ -0,0 +1,291 @@
+/*
+ * LogMergeReader.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.log;
+
+import jp.co.ntt.oss.heapstats.container.log.LogData;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Reader which parses resource log files concurrently, and merges their
+ * records in order of date time (k-way merge).
+ * Each file is parsed by worker threads in batches. A file is scheduled
+ * again only when its queue has room, so workers never block and the
+ * number of buffered records is bounded per file.
+ * Records in each file should be ordered by date time.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class LogMergeReader implements AutoCloseable{
+
+    /**
+     * Number of records in one batch.
+     */
+    static final int BATCH_SIZE = 1024;
+
+    /**
+     * Number of batches which can be buffered per file.
+     */
+    static final int MAX_BATCHES = 4;
+
+    /**
+     * Marker of the end of the file.
+     */
+    private static final List<LogData> END = new ArrayList<>();
+
+    /**
+     * Source of records (one file).
+     */
+    private class Source{
+
+        private final int index;
+
+        private final LogRecordReader reader;
+
+        /**
+         * Queue of batches. It might contain END or IOException.
+         */
+        private final BlockingQueue<Object> queue;
+
+        /**
+         * true if parse task is submitted. Guarded by this.
+         */
+        private boolean running;
+
+        private boolean finished;
+
+        private List<LogData> batch;
+
+        private int position;
+
+        private Source(int index, LogRecordReader reader){
+            this.index = index;
+            this.reader = reader;
+            this.queue = new LinkedBlockingQueue<>();
+            this.running = false;
+            this.finished = false;
+            this.batch = null;
+            this.position = 0;
+        }
+
+        /**
+         * Parse batches until the queue is full. This is called by workers.
+         */
+        private void parse(){
+            while(true){
+                List<LogData> records = new ArrayList<>(BATCH_SIZE);
+
+                try{
+                    LogData data;
+                    while((records.size() < BATCH_SIZE) && ((data = reader.next()) != null)){
+                        records.add(data);
+                    }
+                }
+                catch(IOException | RuntimeException e){
+                    queue.add(e);
+                    return;
+                }
+
+                if(!records.isEmpty()){
+                    queue.add(records);
+                }
+                if(records.size() < BATCH_SIZE){
+                    queue.add(END);
+                    return;
+                }
+
+                synchronized(this){
+                    if(queue.size() >= MAX_BATCHES){
+                        running = false;
+                        return;
+                    }
+                }
+            }
+        }
+
+        private synchronized void schedule(){
+            if(!running && !finished && (queue.size() < MAX_BATCHES)){
+                running = true;
+                executor.submit(this::parse);
+            }
+        }
+
+        /**
+         * Get current record.
+         * 
+         * @return Current record, or null if it reaches the end of the file.
+         */
+        private LogData current(){
+            return finished ? null : batch.get(position);
+        }
+
+        /**
+         * Move to the next record. This might wait for workers.
+         * 
+         * @throws IOException Thrown when the file could not be parsed.
+         * @throws InterruptedException Thrown when current thread is interrupted.
+         */
+        private void advance() throws IOException, InterruptedException{
+            position++;
+            if((batch != null) && (position < batch.size())){
+                return;
+            }
+
+            Object next = queue.take();
+            schedule();
+
+            if(next == END){
+                finished = true;
+                batch = null;
+            }
+            else if(next instanceof IOException){
+                throw (IOException)next;
+            }
+            else if(next instanceof RuntimeException){
+                throw (RuntimeException)next;
+            }
+            else{
+                @SuppressWarnings("unchecked")
+                List<LogData> records = (List<LogData>)next;
+                batch = records;
+                position = 0;
+            }
+
+        }
+
+    }
+
+    private final ExecutorService executor;
+
+    private final List<Source> sources;
+
+    private final PriorityQueue<Source> heads;
+
+    private boolean started;
+
+    /**
+     * Constructor of LogMergeReader.
+     * 
+     * @param files Resource log files.
+     * @param parallel Number of worker threads.
+     * @throws IOException Thrown when the file could not be opened.
+     */
+    public LogMergeReader(List<Path> files, int parallel) throws IOException{
+        this.executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallel, files.size())), r -> {
+                                                                                                      Thread t = new Thread(r, "hsloader-log-parser");
+                                                                                                      t.setDaemon(true);
+                                                                                                      return t;
+                                                                                                  });
+        this.sources = new ArrayList<>();
+        this.heads = new PriorityQueue<>((a, b) -> {
+                                                      int result = a.current().getDateTime().compareTo(b.current().getDateTime());
+                                                      return (result != 0) ? result : Integer.compare(a.index, b.index);
+                                                  });
+        this.started = false;
+
+        try{
+            for(Path file : files){
+                sources.add(new Source(sources.size(), new LogRecordReader(file)));
+            }
+        }
+        catch(IOException e){
+            close();
+            throw e;
+        }
+
+    }
+
+    /**
+     * Read next record in order of date time.
+     * 
+     * @return Next record, or null if all records are read.
+     * @throws IOException Thrown when the file could not be parsed.
+     * @throws InterruptedException Thrown when current thread is interrupted.
+     */
+    public LogData next() throws IOException, InterruptedException{
+        if(!started){
+            sources.forEach(Source::schedule);
+            for(Source source : sources){
+                source.advance();
+                if(!source.finished){
+                    heads.add(source);
+                }
+            }
+            started = true;
+        }
+
+        Source source = heads.poll();
+        if(source == null){
+            return null;
+        }
+
+        LogData data = source.current();
+        source.advance();
+        if(!source.finished){
+            heads.add(source);
+        }
+
+        return data;
+    }
+
+    /**
+     * Get readers of the files.
+     * 
+     * @return Readers in order of the files.
+     */
+    public List<LogRecordReader> getReaders(){
+        List<LogRecordReader> readers = new ArrayList<>();
+        sources.forEach(s -> readers.add(s.reader));
+        return readers;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException{
+        executor.shutdownNow();
+
+        IOException exception = null;
+        for(Source source : sources){
+            try{
+                source.reader.close();
+            }
+            catch(IOException e){
+                exception = e;
+            }
+        }
+
+        if(exception != null){
+            throw exception;
+        }
+
+    }
+
+}
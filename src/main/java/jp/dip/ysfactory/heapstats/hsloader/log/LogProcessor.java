@@ -20,23 +20,34 @@ package jp.dip.ysfactory.heapstats.hsloader.log;
 
 import jp.co.ntt.oss.heapstats.container.log.DiffData;
 import jp.co.ntt.oss.heapstats.container.log.LogData;
-import jp.co.ntt.oss.heapstats.task.ParseLogFile;
 import jp.dip.ysfactory.heapstats.hsloader.Option;
 import jp.dip.ysfactory.heapstats.hsloader.Processor;
+import jp.dip.ysfactory.heapstats.hsloader.bulk.BulkSender;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 
-import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
  * Processor class for HeapStats Resource Log (CSV) files.
+ * Records are processed as a stream: diff, archive tag and reboot tag of
+ * each record are calculated from the record and the previous one, so
+ * memory usage does not depend on the size of logs.
  * 
  * @author Yasumasa Suenaga
  */
@@ -46,27 +57,151 @@ public class LogProcessor extends Processor{
      * Formatter for index suffix.
      */
     private static final DateTimeFormatter indexSuffixFormatter = DateTimeFormatter.ofPattern("yyyyMM");
-    
+
     /**
-     * List of archive point.
+     * State of the file in follow mode.
      */
-    private Map<LocalDateTime, String> archivePoints;
-    
+    private static class FollowState{
+
+        /**
+         * Offset of the next line to read.
+         */
+        long offset;
+
+        /**
+         * The last record which is already put.
+         */
+        LogData lastData;
+
+    }
+
     /**
-     * List of reboot suspection.
+     * Size of the buffer to find the last newline in follow mode.
      */
-    private List<LocalDateTime> rebootSuspectList;
+    private static final int SCAN_BUFFER_SIZE = 8192;
+
+    /**
+     * InputStream which reads up to the limit from the underlying stream.
+     */
+    private static class BoundedInputStream extends FilterInputStream{
+
+        /**
+         * Number of bytes which can be read.
+         */
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long limit){
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException{
+            if(remaining <= 0){
+                return -1;
+            }
+
+            int b = in.read();
+            if(b >= 0){
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException{
+            if(remaining <= 0){
+                return -1;
+            }
+
+            int n = in.read(b, off, (int)Math.min(len, remaining));
+            if(n > 0){
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException{
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException{
+            return (int)Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported(){
+            return false;
+        }
+
+    }
+
+    /**
+     * States of files in follow mode.
+     */
+    private final Map<Path, FollowState> followStates;
+
+    /**
+     * Year and month (yyyyMM) of cached index names.
+     */
+    private int cachedYearMonth;
+
+    private String logIndexName;
+
+    private String diffIndexName;
+
+    /**
+     * Number of records which are put.
+     */
+    private long records;
     
     /**
      * {@inheritDoc}
      */
     public LogProcessor(Option opt){
         super(opt);
+        cachedYearMonth = -1;
+        followStates = new HashMap<>();
+        records = 0;
     }
 
-    private XContentBuilder writeTag(XContentBuilder builder, LocalDateTime dateTime) throws IOException {
-        boolean isArchive = archivePoints.containsKey(dateTime);
-        boolean isReboot = rebootSuspectList.contains(dateTime);
+    /**
+     * Constructor of LogProcessor with custom bulk sender.
+     * 
+     * @param opt Commandline option.
+     * @param bulkSender Sender of bulk requests.
+     */
+    public LogProcessor(Option opt, BulkSender bulkSender){
+        super(opt, bulkSender);
+        cachedYearMonth = -1;
+        followStates = new HashMap<>();
+        records = 0;
+    }
+
+    /**
+     * Update index names for the date.
+     * Index names are rebuilt only when year or month is changed.
+     * 
+     * @param dateTime Date of the record.
+     */
+    private void updateIndexNames(LocalDateTime dateTime){
+        int yearMonth = (dateTime.getYear() * 100) + dateTime.getMonthValue();
+
+        if(yearMonth != cachedYearMonth){
+            String suffix = dateTime.format(indexSuffixFormatter);
+            logIndexName = "heapstats-resource-log-" + suffix;
+            diffIndexName = "heapstats-resource-diff-" + suffix;
+            cachedYearMonth = yearMonth;
+        }
+
+    }
+
+    private static XContentBuilder writeTag(XContentBuilder builder, String archivePath, boolean isReboot) throws IOException {
+        boolean isArchive = (archivePath != null);
 
         if(isArchive || isReboot){
             builder.startArray("tag");
@@ -79,85 +214,276 @@ public class LogProcessor extends Processor{
             builder.endArray();
         }
         if(isArchive){
-            builder.field("archivePath", archivePoints.get(dateTime));
+            builder.field("archivePath", archivePath);
         }
 
         return builder;
     }
 
-    private void storeLogData(LogData logData){
+    /**
+     * Build log document through XContentBuilder.
+     * The document should be the same as LogEncoder.encodeLog().
+     * 
+     * @param timestamp Timestamp of the log.
+     * @param logData Log data.
+     * @param archivePath Archive path at this time, or null.
+     * @param isReboot true if reboot is suspected at this time.
+     * @return Document.
+     * @throws IOException Thrown when the document could not be built.
+     */
+    static XContentBuilder buildLog(String timestamp, LogData logData, String archivePath, boolean isReboot) throws IOException{
+        XContentBuilder builder = XContentFactory.jsonBuilder()
+                                                 .startObject()
+                                                 .field("@timestamp", timestamp)
+                                                 .field("logCause", logData.getLogCause().toString())
+                                                 .field("javaVSSize", logData.getJavaVSSize())
+                                                 .field("javaRSSize", logData.getJavaRSSize())
+                                                 .field("jvmLiveThreads", logData.getJvmLiveThreads());
+        return writeTag(builder, archivePath, isReboot).endObject();
+    }
+
+    /**
+     * Build diff document through XContentBuilder.
+     * The document should be the same as LogEncoder.encodeDiff().
+     * 
+     * @param timestamp Timestamp of the diff.
+     * @param diffData Diff data.
+     * @param archivePath Archive path at this time, or null.
+     * @param isReboot true if reboot is suspected at this time.
+     * @return Document.
+     * @throws IOException Thrown when the document could not be built.
+     */
+    static XContentBuilder buildDiff(String timestamp, DiffData diffData, String archivePath, boolean isReboot) throws IOException{
+        XContentBuilder builder = XContentFactory.jsonBuilder()
+                                                 .startObject()
+                                                 .field("@timestamp", timestamp)
+                                                 .field("javaUserUsage", diffData.getJavaUserUsage())
+                                                 .field("javaSysUsage", diffData.getJavaSysUsage())
+                                                 .field("cpuUserUsage", diffData.getCpuUserUsage())
+                                                 .field("cpuNiceUsage", diffData.getCpuNiceUsage())
+                                                 .field("cpuSysUsage", diffData.getCpuSysUsage())
+                                                 .field("cpuIdleUsage", diffData.getCpuIdleUsage())
+                                                 .field("cpuIOWaitUsage", diffData.getCpuIOWaitUsage())
+                                                 .field("cpuIRQUsage", diffData.getCpuIRQUsage())
+                                                 .field("cpuSoftIRQUsage", diffData.getCpuSoftIRQUsage())
+                                                 .field("cpuStealUsage", diffData.getCpuStealUsage())
+                                                 .field("cpuGuestUsage", diffData.getCpuGuestUsage())
+                                                 .field("jvmSyncPark", diffData.getJvmSyncPark())
+                                                 .field("jvmSafepointTime", diffData.getJvmSafepointTime())
+                                                 .field("jvmSafepoints", diffData.getJvmSafepoints());
+        return writeTag(builder, archivePath, isReboot).endObject();
+    }
+
+    private void storeLogData(String timestamp, LogData logData, boolean isReboot){
+        if(opt.getEncoder() == Option.Encoder.direct){
+            this.publish(logIndexName, "heapstats-resource-log",
+                         LogEncoder.encodeLog(timestamp, logData, logData.getArchivePath(), isReboot));
+            return;
+        }
+
         try{
-            XContentBuilder builder = XContentFactory.jsonBuilder()
-                                                     .startObject()
-                                                     .field("@timestamp", logData.getDateTime().atZone(opt.getZoneId()).toInstant().toString())
-                                                     .field("logCause", logData.getLogCause().toString())
-                                                     .field("javaVSSize", logData.getJavaVSSize())
-                                                     .field("javaRSSize", logData.getJavaRSSize())
-                                                     .field("jvmLiveThreads", logData.getJvmLiveThreads());
-            writeTag(builder, logData.getDateTime())
-                .endObject();
-            this.publish("heapstats-resource-log-" + logData.getDateTime().format(indexSuffixFormatter), "heapstats-resource-log", builder);
+            this.publish(logIndexName, "heapstats-resource-log", buildLog(timestamp, logData, logData.getArchivePath(), isReboot));
         }
         catch(IOException e){
             throw new UncheckedIOException(e);
         }
     }
     
-    private void storeDiffData(DiffData diffData){
+    private void storeDiffData(String timestamp, DiffData diffData, String archivePath, boolean isReboot){
+        if(opt.getEncoder() == Option.Encoder.direct){
+            this.publish(diffIndexName, "heapstats-resource-diff",
+                         LogEncoder.encodeDiff(timestamp, diffData, archivePath, isReboot));
+            return;
+        }
+
         try{
-            XContentBuilder builder = XContentFactory.jsonBuilder()
-                                                     .startObject()
-                                                     .field("@timestamp", diffData.getDateTime().atZone(opt.getZoneId()).toInstant().toString())
-                                                     .field("javaUserUsage", diffData.getJavaUserUsage())
-                                                     .field("javaSysUsage", diffData.getJavaSysUsage())
-                                                     .field("cpuUserUsage", diffData.getCpuUserUsage())
-                                                     .field("cpuNiceUsage", diffData.getCpuNiceUsage())
-                                                     .field("cpuSysUsage", diffData.getCpuSysUsage())
-                                                     .field("cpuIdleUsage", diffData.getCpuIdleUsage())
-                                                     .field("cpuIOWaitUsage", diffData.getCpuIOWaitUsage())
-                                                     .field("cpuIRQUsage", diffData.getCpuIRQUsage())
-                                                     .field("cpuSoftIRQUsage", diffData.getCpuSoftIRQUsage())
-                                                     .field("cpuStealUsage", diffData.getCpuStealUsage())
-                                                     .field("cpuGuestUsage", diffData.getCpuGuestUsage())
-                                                     .field("jvmSyncPark", diffData.getJvmSyncPark())
-                                                     .field("jvmSafepointTime", diffData.getJvmSafepointTime())
-                                                     .field("jvmSafepoints", diffData.getJvmSafepoints());
-            writeTag(builder, diffData.getDateTime())
-                .endObject();
-            this.publish("heapstats-resource-diff-" + diffData.getDateTime().format(indexSuffixFormatter), "heapstats-resource-diff", builder);
+            this.publish(diffIndexName, "heapstats-resource-diff", buildDiff(timestamp, diffData, archivePath, isReboot));
         }
         catch(IOException e){
             throw new UncheckedIOException(e);
         }
     }
 
+    /**
+     * Put the record and its diff from the previous record.
+     * The record is tagged as reboot if the diff has minus data.
+     * 
+     * @param prev Previous record, or null if the record is the first one.
+     * @param current Current record.
+     */
+    private void storeRecord(LogData prev, LogData current){
+        DiffData diffData = (prev == null) ? null : new DiffData(prev, current);
+        boolean isReboot = (diffData != null) && diffData.hasMinusData();
+        String timestamp = current.getDateTime().atZone(opt.getZoneId()).toInstant().toString();
+
+        updateIndexNames(current.getDateTime());
+        storeLogData(timestamp, current, isReboot);
+        if(diffData != null){
+            storeDiffData(timestamp, diffData, current.getArchivePath(), isReboot);
+        }
+
+        records++;
+    }
+
+    /**
+     * Find the end of the last complete line in the file.
+     * The file is scanned backward from the end with small buffer.
+     * 
+     * @param ch Channel of the file.
+     * @param offset Offset of the first byte which is not read yet.
+     * @param size Size of the file.
+     * @return Offset next to the last newline, or offset if no line is complete.
+     * @throws IOException Thrown when I/O error happens.
+     */
+    private static long findLineEnd(FileChannel ch, long offset, long size) throws IOException{
+        ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long end = size;
+
+        while(end > offset){
+            long start = Math.max(offset, end - SCAN_BUFFER_SIZE);
+            buf.clear();
+            buf.limit((int)(end - start));
+            while(buf.hasRemaining()){
+                if(ch.read(buf, start + buf.position()) < 0){
+                    break;
+                }
+            }
+
+            for(int idx = buf.position() - 1; idx >= 0; idx--){
+                if(buf.get(idx) == '\n'){
+                    return start + idx + 1;
+                }
+            }
+            end = start;
+        }
+
+        return offset;
+    }
+
+    /**
+     * Put lines which are appended to the log file.
+     * Complete lines after the offset are streamed from the file, and the
+     * diff of the first new line is calculated from the last record which
+     * is already put. Memory usage does not depend on the size of appended
+     * lines.
+     * 
+     * @param file Resource log file.
+     * @throws IOException Thrown when I/O error happens.
+     */
+    private void processAppended(Path file) throws IOException{
+        FollowState state = followStates.computeIfAbsent(file, f -> new FollowState());
+
+        try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)){
+            long size = ch.size();
+            if(size < state.offset){
+                System.out.println(file + " is truncated. It is read from the beginning.");
+                state.offset = 0;
+                state.lastData = null;
+            }
+
+            long end = findLineEnd(ch, state.offset, size);
+            if(end == state.offset){
+                // No complete line
+                return;
+            }
+
+            long startTime = System.nanoTime();
+            ch.position(state.offset);
+            try(LogRecordReader reader = new LogRecordReader(file, new BoundedInputStream(Channels.newInputStream(ch), end - state.offset))){
+                LogData data;
+                while((data = reader.next()) != null){
+                    storeRecord(state.lastData, data);
+                    state.lastData = data;
+                }
+            }
+            finally{
+                ingestMetrics.addProcessTime(System.nanoTime() - startTime);
+            }
+
+            state.offset = end;
+        }
+
+    }
+
+    /**
+     * Put all records in the files in one pass.
+     * Files are parsed concurrently by --parallel workers, and their records
+     * are merged in order of date time, so diff and reboot tag are
+     * calculated across rotated files.
+     * 
+     * @throws IOException Thrown when I/O error happens.
+     * @throws InterruptedException Thrown when current thread is interrupted.
+     */
+    private void processFiles() throws IOException, InterruptedException{
+        List<Path> files = opt.getFiles()
+                              .stream()
+                              .map(Paths::get)
+                              .collect(Collectors.toList());
+        long startTime = System.nanoTime();
+
+        try(LogMergeReader reader = new LogMergeReader(files, opt.getParallel())){
+            LogData prev = null;
+            LogData data;
+            while((data = reader.next()) != null){
+                storeRecord(prev, data);
+                prev = data;
+            }
+
+            for(LogRecordReader fileReader : reader.getReaders()){
+                if(fileReader.getSkippedLines() > 0){
+                    System.err.println(fileReader.getSkippedLines() + " line(s) in " + fileReader.getPath() + " could not be parsed.");
+                }
+            }
+        }
+        finally{
+            ingestMetrics.addProcessTime(System.nanoTime() - startTime);
+        }
+
+    }
+
     /**
      * {@inheritDoc}
+     * 
+     * In follow mode, each file is processed separately, and lines which
+     * are appended after that are processed when the file is modified.
      */
     @Override
     public void process() {
-        ParseLogFile parser = new ParseLogFile(opt.getFiles().stream().map(f -> new File(f)).collect(Collectors.toList()), true);
-        
-        System.out.println("Parsing...");
-        parser.run();
+        if(opt.isFollow()){
+            for(String file : opt.getFiles()){
+                try{
+                    processAppended(Paths.get(file).toAbsolutePath().normalize());
+                }
+                catch(IOException e){
+                    System.err.println("Failed " + file + ": " + e.getLocalizedMessage());
+                    markFailed();
+                }
+            }
 
-        archivePoints = parser.getLogEntries()
-                              .stream()
-                              .filter(l -> l.getArchivePath() != null)
-                              .collect(Collectors.toMap(LogData::getDateTime, LogData::getArchivePath));
-        rebootSuspectList = parser.getDiffEntries()
-                                  .stream()
-                                  .filter(d -> d.hasMinusData())
-                                  .map(d -> d.getDateTime())
-                                  .collect(Collectors.toList());
-        
-        System.out.println("Putting log data...");
-        parser.getLogEntries().forEach(this::storeLogData);
-        
-        System.out.println("Putting diff data...");
-        parser.getDiffEntries().forEach(this::storeDiffData);
+            follow(this::processAppended);
+            return;
+        }
+
+        System.out.println("Putting log and diff data...");
+
+        try{
+            processFiles();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            markFailed();
+        }
+        catch(IOException e){
+            System.err.println(e.getLocalizedMessage());
+
+            if(Boolean.getBoolean("debug")){
+                e.printStackTrace();
+            }
+
+            markFailed();
+        }
         
-        System.out.println("Done.");
+        System.out.println("Done: " + records + " record(s).");
     }
     
 }
@@ -0,0 +1,153 @@
+/*
+ * LogRecordReader.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.log;
+
+import jp.co.ntt.oss.heapstats.container.log.LogData;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Streaming reader of HeapStats resource log (CSV).
+ * Records are parsed one by one, so memory usage does not depend on the
+ * size of the file. Lines which could not be parsed are skipped and
+ * counted.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class LogRecordReader implements AutoCloseable{
+
+    private final Path path;
+
+    private final BufferedReader reader;
+
+    private long lineNumber;
+
+    private long skippedLines;
+
+    /**
+     * Constructor of LogRecordReader.
+     * 
+     * @param path Resource log file.
+     * @throws IOException Thrown when the file could not be opened.
+     */
+    public LogRecordReader(Path path) throws IOException{
+        this(path, Files.newInputStream(path));
+    }
+
+    /**
+     * Constructor of LogRecordReader.
+     * 
+     * @param path Resource log file. It is used for messages.
+     * @param in Stream of CSV lines.
+     */
+    public LogRecordReader(Path path, InputStream in){
+        this.path = path;
+        this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 65536);
+        this.lineNumber = 0;
+        this.skippedLines = 0;
+    }
+
+    /**
+     * Parse one CSV line.
+     * 
+     * @param line CSV line.
+     * @return Parsed record.
+     * @throws IllegalArgumentException Thrown when the line is not valid record.
+     */
+    public static LogData parse(String line) throws IllegalArgumentException{
+        LogData data = new LogData();
+        data.parseFromCSV(line);
+        return data;
+    }
+
+    /**
+     * Read next record.
+     * 
+     * @return Next record, or null if it reaches the end of the file.
+     * @throws IOException Thrown when I/O error happens.
+     */
+    public LogData next() throws IOException{
+        String line;
+
+        while((line = reader.readLine()) != null){
+            lineNumber++;
+            if(line.isEmpty()){
+                continue;
+            }
+
+            try{
+                return parse(line);
+            }
+            catch(RuntimeException e){
+                skippedLines++;
+
+                if(Boolean.getBoolean("debug")){
+                    System.err.println("Skip " + path + ":" + lineNumber + ": " + e.getLocalizedMessage());
+                }
+
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get resource log file.
+     * 
+     * @return Path to the file.
+     */
+    public Path getPath(){
+        return path;
+    }
+
+    /**
+     * Get number of lines which are read.
+     * 
+     * @return Number of lines.
+     */
+    public long getLineNumber(){
+        return lineNumber;
+    }
+
+    /**
+     * Get number of lines which could not be parsed.
+     * 
+     * @return Number of skipped lines.
+     */
+    public long getSkippedLines(){
+        return skippedLines;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException{
+        reader.close();
+    }
+
+}
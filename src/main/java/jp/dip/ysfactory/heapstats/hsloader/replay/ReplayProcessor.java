@@ -0,0 +1,157 @@
+/*
+ * ReplayProcessor.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.replay;
+
+import jp.dip.ysfactory.heapstats.hsloader.Option;
+import jp.dip.ysfactory.heapstats.hsloader.Processor;
+import jp.dip.ysfactory.heapstats.hsloader.bulk.BulkNdjson;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Processor class for files in _bulk format (newline delimited JSON).
+ * This processor sends documents in dead-letter file or exported files
+ * (--output) without parsing snapshots again. Files which end with .gz
+ * are decompressed.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class ReplayProcessor extends Processor{
+
+    /**
+     * {@inheritDoc}
+     */
+    public ReplayProcessor(Option opt){
+        super(opt);
+    }
+
+    private static BufferedReader openFile(String file) throws IOException{
+        InputStream in = Files.newInputStream(Paths.get(file));
+        if(file.endsWith(".gz")){
+            in = new GZIPInputStream(in, 65536);
+        }
+
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 65536);
+    }
+
+    /**
+     * Send all documents in the file.
+     * 
+     * @param file File in _bulk format.
+     * @return Number of documents.
+     * @throws IOException Thrown when I/O error happens.
+     */
+    private long replayFile(String file) throws IOException{
+        long count = 0;
+        String lastAction = null;
+        String[] target = null;
+        long startTime = System.nanoTime();
+
+        try(BufferedReader reader = openFile(file)){
+            String action;
+            while((action = reader.readLine()) != null){
+                if(action.isEmpty()){
+                    continue;
+                }
+
+                // Consecutive documents usually have the same action line.
+                if(!action.equals(lastAction)){
+                    target = BulkNdjson.parseActionLine(action);
+                    lastAction = action;
+                }
+
+                String source = reader.readLine();
+                if(source == null){
+                    throw new IOException("Source line is missing at the end of " + file);
+                }
+
+                publish(target[0], target[1], source.getBytes(StandardCharsets.UTF_8));
+                count++;
+            }
+        }
+        finally{
+            flushPublisher();
+            ingestMetrics.addProcessTime(System.nanoTime() - startTime);
+        }
+
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void process() {
+        List<String> files = opt.getFiles();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(opt.getParallel(), Math.max(files.size(), 1)));
+        List<Future<Long>> results = new ArrayList<>();
+
+        try{
+            for(String file : files){
+                results.add(executor.submit(() -> {
+                    System.out.println("Replaying " + file);
+                    long count = replayFile(file);
+                    System.out.println("Finished " + file + ": " + count + " document(s)");
+                    return count;
+                }));
+            }
+
+            for(int idx = 0; idx < files.size(); idx++){
+                try{
+                    results.get(idx).get();
+                }
+                catch(ExecutionException e){
+                    Throwable cause = e.getCause();
+                    System.err.println("Failed " + files.get(idx) + ": " + cause.getLocalizedMessage());
+
+                    if(Boolean.getBoolean("debug")){
+                        cause.printStackTrace();
+                    }
+
+                    markFailed();
+                }
+            }
+
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            markFailed();
+        }
+        finally{
+            executor.shutdownNow();
+        }
+
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * ClassNameDictionary.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.snapshot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary for JVMTI class tag and class name.
+ * Tags are stored in open-addressing primitive arrays, and they point to
+ * ids of interned class name table. This dictionary is kept across
+ * snapshots, so class names which appear in every snapshot are stored only
+ * once.
+ * 
+ * Each snapshot is a generation of this dictionary. Tags which are not
+ * seen in current generation are not visible through get(), because JVMTI
+ * tag might be reused for another class after class unloading.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class ClassNameDictionary{
+
+    /**
+     * Default capacity of the hash table. It must be power of 2.
+     */
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] tags;
+
+    private int[] nameIds;
+
+    /**
+     * Generation of each slot. 0 means empty slot.
+     */
+    private int[] generations;
+
+    /**
+     * Number of used slots.
+     */
+    private int size;
+
+    private int threshold;
+
+    /**
+     * Current generation.
+     */
+    private int generation;
+
+    /**
+     * Interned class name table.
+     */
+    private final List<String> names;
+
+    private final Map<String, Integer> nameIdMap;
+
+    /**
+     * Constructor of ClassNameDictionary.
+     */
+    public ClassNameDictionary(){
+        allocate(DEFAULT_CAPACITY);
+        generation = 1;
+        names = new ArrayList<>();
+        nameIdMap = new HashMap<>();
+    }
+
+    private void allocate(int capacity){
+        tags = new long[capacity];
+        nameIds = new int[capacity];
+        generations = new int[capacity];
+        size = 0;
+        threshold = (int)(capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(long tag){
+        long h = tag * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private int findSlot(long tag){
+        int mask = tags.length - 1;
+        int slot = hash(tag) & mask;
+
+        while((generations[slot] != 0) && (tags[slot] != tag)){
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Start new generation. This method should be called at the beginning
+     * of each snapshot.
+     */
+    public void nextGeneration(){
+        generation++;
+    }
+
+    /**
+     * Intern class name.
+     * 
+     * @param name Class name.
+     * @return Id of the class name.
+     */
+    private int intern(String name){
+        Integer id = nameIdMap.get(name);
+
+        if(id == null){
+            id = names.size();
+            names.add(name);
+            nameIdMap.put(name, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * Rebuild hash table. Entries which are not seen in current generation
+     * are dropped to avoid unbounded growth by unloaded classes.
+     */
+    private void rehash(){
+        long[] oldTags = tags;
+        int[] oldNameIds = nameIds;
+        int[] oldGenerations = generations;
+        int live = 0;
+
+        for(int gen : oldGenerations){
+            if(gen == generation){
+                live++;
+            }
+        }
+
+        int capacity = oldTags.length;
+        while((live + 1) >= (int)(capacity * LOAD_FACTOR)){
+            capacity <<= 1;
+        }
+        allocate(capacity);
+
+        for(int idx = 0; idx < oldTags.length; idx++){
+            if(oldGenerations[idx] == generation){
+                int slot = findSlot(oldTags[idx]);
+                tags[slot] = oldTags[idx];
+                nameIds[slot] = oldNameIds[idx];
+                generations[slot] = generation;
+                size++;
+            }
+        }
+
+    }
+
+    /**
+     * Register class name of the tag in current generation.
+     * 
+     * @param tag JVMTI class tag.
+     * @param name Class name.
+     */
+    public void put(long tag, String name){
+        int slot = findSlot(tag);
+
+        if(generations[slot] == 0){
+            if(size >= threshold){
+                rehash();
+                slot = findSlot(tag);
+            }
+            size++;
+            tags[slot] = tag;
+        }
+
+        if((generations[slot] == 0) || !names.get(nameIds[slot]).equals(name)){
+            nameIds[slot] = intern(name);
+        }
+        generations[slot] = generation;
+    }
+
+    /**
+     * Check whether the tag is registered in current generation.
+     * 
+     * @param tag JVMTI class tag.
+     * @return true if the tag is registered.
+     */
+    public boolean contains(long tag){
+        return generations[findSlot(tag)] == generation;
+    }
+
+    /**
+     * Get class name of the tag.
+     * 
+     * @param tag JVMTI class tag.
+     * @return Class name, or null if the tag is not registered in current generation.
+     */
+    public String get(long tag){
+        int slot = findSlot(tag);
+        return (generations[slot] == generation) ? names.get(nameIds[slot]) : null;
+    }
+
+    /**
+     * Get id of interned class name of the tag.
+     * The id is stable while this dictionary is alive, so it can be used as
+     * a key of per-class caches.
+     * 
+     * @param tag JVMTI class tag.
+     * @return Id of class name, or -1 if the tag is not registered in current generation.
+     */
+    public int getNameId(long tag){
+        int slot = findSlot(tag);
+        return (generations[slot] == generation) ? nameIds[slot] : -1;
+    }
+
+    /**
+     * Get number of tags in hash table.
+     * 
+     * @return Number of tags.
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * Get number of interned class names.
+     * 
+     * @return Number of class names.
+     */
+    public int getNameCount(){
+        return names.size();
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * DeferredReferenceBuffer.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.snapshot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Buffer for reference edges whose class name is not yet known.
+ * Edges are kept in a primitive array, and they are spilled to a temporary
+ * file when the array is full. So the heap usage of this buffer does not
+ * depend on the number of edges.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class DeferredReferenceBuffer implements AutoCloseable{
+
+    /**
+     * Consumer of deferred reference edge.
+     */
+    @FunctionalInterface
+    public static interface ReferenceConsumer{
+
+        /**
+         * Consume a reference edge.
+         * 
+         * @param parentTag Class tag of parent class.
+         * @param tag Class tag of child class.
+         * @param instances Number of instances.
+         * @param totalSize Total size of instances.
+         * @throws IOException Thrown when the edge could not be handled.
+         */
+        public void accept(long parentTag, long tag, long instances, long totalSize) throws IOException;
+
+    }
+
+    /**
+     * Number of long values per edge.
+     */
+    private static final int EDGE_WIDTH = 4;
+
+    /**
+     * Default number of edges which are kept in memory.
+     */
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    /**
+     * In-memory edges.
+     */
+    private final long[] edges;
+
+    /**
+     * Number of long values in edges.
+     */
+    private int position;
+
+    /**
+     * Temporary file for spilled edges.
+     */
+    private Path spillFile;
+
+    private DataOutputStream spillOut;
+
+    /**
+     * Number of edges in spillFile.
+     */
+    private long spilledEdges;
+
+    /**
+     * Constructor of DeferredReferenceBuffer.
+     * 
+     * @param capacity Number of edges which are kept in memory.
+     */
+    public DeferredReferenceBuffer(int capacity){
+        edges = new long[capacity * EDGE_WIDTH];
+        position = 0;
+        spilledEdges = 0;
+    }
+
+    /**
+     * Constructor of DeferredReferenceBuffer with default capacity.
+     */
+    public DeferredReferenceBuffer(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Add reference edge.
+     * 
+     * @param parentTag Class tag of parent class.
+     * @param tag Class tag of child class.
+     * @param instances Number of instances.
+     * @param totalSize Total size of instances.
+     */
+    public void add(long parentTag, long tag, long instances, long totalSize){
+        if(position == edges.length){
+            spill();
+        }
+
+        edges[position++] = parentTag;
+        edges[position++] = tag;
+        edges[position++] = instances;
+        edges[position++] = totalSize;
+    }
+
+    /**
+     * Get number of deferred edges.
+     * 
+     * @return Number of edges in this buffer.
+     */
+    public long size(){
+        return spilledEdges + (position / EDGE_WIDTH);
+    }
+
+    private void spill(){
+        try{
+            if(spillOut == null){
+                spillFile = Files.createTempFile("hsloader-refs-", ".tmp");
+                spillOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillFile)));
+            }
+
+            for(int idx = 0; idx < position; idx++){
+                spillOut.writeLong(edges[idx]);
+            }
+            spilledEdges += position / EDGE_WIDTH;
+            position = 0;
+        }
+        catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Pass all deferred edges to the consumer, and clear this buffer.
+     * 
+     * @param consumer Consumer of edges.
+     * @throws IOException Thrown when I/O error happens on spill file, or consumer throws it.
+     */
+    public void drain(ReferenceConsumer consumer) throws IOException{
+        if(spillOut != null){
+            spillOut.close();
+            spillOut = null;
+
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillFile)))){
+                for(long cnt = 0; cnt < spilledEdges; cnt++){
+                    consumer.accept(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+                }
+            }
+
+            Files.deleteIfExists(spillFile);
+            spillFile = null;
+            spilledEdges = 0;
+        }
+
+        for(int idx = 0; idx < position; idx += EDGE_WIDTH){
+            consumer.accept(edges[idx], edges[idx + 1], edges[idx + 2], edges[idx + 3]);
+        }
+        position = 0;
+    }
+
+    /**
+     * Discard all deferred edges, and remove spill file.
+     * 
+     * @throws IOException Thrown when spill file could not be removed.
+     */
+    @Override
+    public void close() throws IOException{
+        if(spillOut != null){
+            spillOut.close();
+            spillOut = null;
+        }
+        if(spillFile != null){
+            Files.deleteIfExists(spillFile);
+            spillFile = null;
+        }
+        spilledEdges = 0;
+        position = 0;
+    }
+
+}
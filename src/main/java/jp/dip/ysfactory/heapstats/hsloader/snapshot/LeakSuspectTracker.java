@@ -0,0 +1,490 @@
+/*
+ * LeakSuspectTracker.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.snapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Online tracker of growing classes across snapshots.
+ * For each class tag, samples in the last W snapshots are kept in ring
+ * buffers, and slope of totalSize and count per second is calculated by
+ * linear regression whose sums are updated incrementally (the oldest
+ * sample is subtracted when the window slides). Monotonic increase streaks
+ * are also counted. Memory usage is bounded by W samples per class.
+ * 
+ * Classes which are not seen in a snapshot lose their history, because
+ * the JVMTI tag might be reused after class unloading.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class LeakSuspectTracker{
+
+    /**
+     * Leak suspect in current snapshot.
+     */
+    public static class Suspect{
+
+        private final long tag;
+
+        private final String name;
+
+        private final double sizeSlope;
+
+        private final double countSlope;
+
+        private final int sizeStreak;
+
+        private final int countStreak;
+
+        private final long totalSize;
+
+        private final long count;
+
+        private Suspect(long tag, String name, double sizeSlope, double countSlope, int sizeStreak, int countStreak, long totalSize, long count){
+            this.tag = tag;
+            this.name = name;
+            this.sizeSlope = sizeSlope;
+            this.countSlope = countSlope;
+            this.sizeStreak = sizeStreak;
+            this.countStreak = countStreak;
+            this.totalSize = totalSize;
+            this.count = count;
+        }
+
+        /**
+         * Get JVMTI class tag.
+         * 
+         * @return Class tag.
+         */
+        public long getTag(){
+            return tag;
+        }
+
+        /**
+         * Get class name.
+         * 
+         * @return Class name.
+         */
+        public String getName(){
+            return name;
+        }
+
+        /**
+         * Get slope of totalSize.
+         * 
+         * @return Growth of totalSize in bytes per second.
+         */
+        public double getSizeSlope(){
+            return sizeSlope;
+        }
+
+        /**
+         * Get slope of count.
+         * 
+         * @return Growth of instances per second.
+         */
+        public double getCountSlope(){
+            return countSlope;
+        }
+
+        /**
+         * Get number of consecutive snapshots in which totalSize increased.
+         * 
+         * @return Streak of totalSize.
+         */
+        public int getSizeStreak(){
+            return sizeStreak;
+        }
+
+        /**
+         * Get number of consecutive snapshots in which count increased.
+         * 
+         * @return Streak of count.
+         */
+        public int getCountStreak(){
+            return countStreak;
+        }
+
+        /**
+         * Get total size of instances in current snapshot.
+         * 
+         * @return Total size.
+         */
+        public long getTotalSize(){
+            return totalSize;
+        }
+
+        /**
+         * Get number of instances in current snapshot.
+         * 
+         * @return Number of instances.
+         */
+        public long getCount(){
+            return count;
+        }
+
+    }
+
+    /**
+     * Minimum number of samples to calculate slope.
+     */
+    public static final int MIN_SAMPLES = 3;
+
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private final int window;
+
+    private final int topN;
+
+    /* Hash table keyed by class tag */
+    private long[] tags;
+
+    private int[] generations;
+
+    private String[] names;
+
+    /* Ring buffers (window elements per slot) */
+    private double[] xs;
+
+    private double[] sizes;
+
+    private double[] counts;
+
+    /* Per slot statistics */
+    private int[] heads;
+
+    private int[] samples;
+
+    private double[] sumX;
+
+    private double[] sumXX;
+
+    private double[] sumSize;
+
+    private double[] sumXSize;
+
+    private double[] sumCount;
+
+    private double[] sumXCount;
+
+    private int[] sizeStreaks;
+
+    private int[] countStreaks;
+
+    private int size;
+
+    private int threshold;
+
+    private int generation;
+
+    /**
+     * Time of the first snapshot in seconds. Sample times are relative to
+     * it to keep the precision of the sums.
+     */
+    private double baseTime;
+
+    private double currentX;
+
+    /**
+     * Largest growers in current snapshot.
+     */
+    private final TopKHeap<Suspect> suspects;
+
+    /**
+     * Constructor of LeakSuspectTracker.
+     * 
+     * @param window Number of snapshots in sliding window.
+     * @param topN Number of suspects to report per snapshot.
+     */
+    public LeakSuspectTracker(int window, int topN){
+        this.window = window;
+        this.topN = topN;
+        this.generation = 1;
+        this.baseTime = Double.NaN;
+        this.suspects = new TopKHeap<>(topN);
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    private void allocate(int capacity){
+        tags = new long[capacity];
+        generations = new int[capacity];
+        names = new String[capacity];
+        xs = new double[capacity * window];
+        sizes = new double[capacity * window];
+        counts = new double[capacity * window];
+        heads = new int[capacity];
+        samples = new int[capacity];
+        sumX = new double[capacity];
+        sumXX = new double[capacity];
+        sumSize = new double[capacity];
+        sumXSize = new double[capacity];
+        sumCount = new double[capacity];
+        sumXCount = new double[capacity];
+        sizeStreaks = new int[capacity];
+        countStreaks = new int[capacity];
+        size = 0;
+        threshold = (int)(capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(long tag){
+        long h = tag * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private int findSlot(long tag){
+        int mask = tags.length - 1;
+        int slot = hash(tag) & mask;
+
+        while((generations[slot] != 0) && (tags[slot] != tag)){
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void copySlot(Table from, int src, int dst){
+        tags[dst] = from.tags[src];
+        generations[dst] = from.generations[src];
+        names[dst] = from.names[src];
+        System.arraycopy(from.xs, src * window, xs, dst * window, window);
+        System.arraycopy(from.sizes, src * window, sizes, dst * window, window);
+        System.arraycopy(from.counts, src * window, counts, dst * window, window);
+        heads[dst] = from.heads[src];
+        samples[dst] = from.samples[src];
+        sumX[dst] = from.sumX[src];
+        sumXX[dst] = from.sumXX[src];
+        sumSize[dst] = from.sumSize[src];
+        sumXSize[dst] = from.sumXSize[src];
+        sumCount[dst] = from.sumCount[src];
+        sumXCount[dst] = from.sumXCount[src];
+        sizeStreaks[dst] = from.sizeStreaks[src];
+        countStreaks[dst] = from.countStreaks[src];
+    }
+
+    /**
+     * Arrays of old hash table for rehash.
+     */
+    private static class Table{
+
+        final long[] tags;
+        final int[] generations;
+        final String[] names;
+        final double[] xs;
+        final double[] sizes;
+        final double[] counts;
+        final int[] heads;
+        final int[] samples;
+        final double[] sumX;
+        final double[] sumXX;
+        final double[] sumSize;
+        final double[] sumXSize;
+        final double[] sumCount;
+        final double[] sumXCount;
+        final int[] sizeStreaks;
+        final int[] countStreaks;
+
+        Table(LeakSuspectTracker t){
+            tags = t.tags;
+            generations = t.generations;
+            names = t.names;
+            xs = t.xs;
+            sizes = t.sizes;
+            counts = t.counts;
+            heads = t.heads;
+            samples = t.samples;
+            sumX = t.sumX;
+            sumXX = t.sumXX;
+            sumSize = t.sumSize;
+            sumXSize = t.sumXSize;
+            sumCount = t.sumCount;
+            sumXCount = t.sumXCount;
+            sizeStreaks = t.sizeStreaks;
+            countStreaks = t.countStreaks;
+        }
+
+    }
+
+    /**
+     * Rebuild hash table. Classes which are not seen in current or previous
+     * snapshot are dropped.
+     */
+    private void rehash(){
+        Table old = new Table(this);
+        int live = 0;
+
+        for(int gen : old.generations){
+            if((gen != 0) && (gen >= (generation - 1))){
+                live++;
+            }
+        }
+
+        int capacity = old.tags.length;
+        while((live + 1) >= (int)(capacity * LOAD_FACTOR)){
+            capacity <<= 1;
+        }
+        allocate(capacity);
+
+        for(int idx = 0; idx < old.tags.length; idx++){
+            if((old.generations[idx] != 0) && (old.generations[idx] >= (generation - 1))){
+                copySlot(old, idx, findSlot(old.tags[idx]));
+                size++;
+            }
+        }
+
+    }
+
+    /**
+     * Start new snapshot.
+     * 
+     * @param epochSeconds Time of the snapshot in seconds.
+     */
+    public void nextSnapShot(double epochSeconds){
+        generation++;
+        if(Double.isNaN(baseTime)){
+            baseTime = epochSeconds;
+        }
+        currentX = epochSeconds - baseTime;
+    }
+
+    private void resetSlot(int slot){
+        heads[slot] = 0;
+        samples[slot] = 0;
+        sumX[slot] = 0.0d;
+        sumXX[slot] = 0.0d;
+        sumSize[slot] = 0.0d;
+        sumXSize[slot] = 0.0d;
+        sumCount[slot] = 0.0d;
+        sumXCount[slot] = 0.0d;
+        sizeStreaks[slot] = 0;
+        countStreaks[slot] = 0;
+    }
+
+    private double slope(int n, double sx, double sxx, double sy, double sxy){
+        double denominator = (n * sxx) - (sx * sx);
+        return (denominator == 0.0d) ? 0.0d : ((n * sxy) - (sx * sy)) / denominator;
+    }
+
+    /**
+     * Add the sample of the class in current snapshot.
+     * 
+     * @param tag JVMTI class tag.
+     * @param name Class name.
+     * @param count Number of instances.
+     * @param totalSize Total size of instances.
+     */
+    public void update(long tag, String name, long count, long totalSize){
+        int slot = findSlot(tag);
+
+        if(generations[slot] == 0){
+            if(size >= threshold){
+                rehash();
+                slot = findSlot(tag);
+            }
+            size++;
+            tags[slot] = tag;
+            resetSlot(slot);
+        }
+        else if((generations[slot] != (generation - 1)) || !names[slot].equals(name)){
+            // Not seen in the previous snapshot, or tag is reused.
+            resetSlot(slot);
+        }
+        names[slot] = name;
+        generations[slot] = generation;
+
+        int base = slot * window;
+        double x = currentX;
+        double y = totalSize;
+        double c = count;
+
+        if(samples[slot] > 0){
+            int last = base + ((heads[slot] + samples[slot] - 1) % window);
+            sizeStreaks[slot] = (y > sizes[last]) ? sizeStreaks[slot] + 1 : 0;
+            countStreaks[slot] = (c > counts[last]) ? countStreaks[slot] + 1 : 0;
+        }
+
+        int pos;
+        if(samples[slot] == window){
+            // Evict the oldest sample.
+            pos = base + heads[slot];
+            double ox = xs[pos];
+            sumX[slot] -= ox;
+            sumXX[slot] -= ox * ox;
+            sumSize[slot] -= sizes[pos];
+            sumXSize[slot] -= ox * sizes[pos];
+            sumCount[slot] -= counts[pos];
+            sumXCount[slot] -= ox * counts[pos];
+            heads[slot] = (heads[slot] + 1) % window;
+        }
+        else{
+            pos = base + ((heads[slot] + samples[slot]) % window);
+            samples[slot]++;
+        }
+
+        xs[pos] = x;
+        sizes[pos] = y;
+        counts[pos] = c;
+        sumX[slot] += x;
+        sumXX[slot] += x * x;
+        sumSize[slot] += y;
+        sumXSize[slot] += x * y;
+        sumCount[slot] += c;
+        sumXCount[slot] += x * c;
+
+        int n = samples[slot];
+        if(n < MIN_SAMPLES){
+            return;
+        }
+
+        double sizeSlope = slope(n, sumX[slot], sumXX[slot], sumSize[slot], sumXSize[slot]);
+        if((sizeSlope > 0.0d) && suspects.accepts(Double.doubleToLongBits(sizeSlope))){
+            double countSlope = slope(n, sumX[slot], sumXX[slot], sumCount[slot], sumXCount[slot]);
+            // Bits of non-negative double are ordered as same as its value.
+            suspects.offer(Double.doubleToLongBits(sizeSlope),
+                           new Suspect(tag, name, sizeSlope, countSlope, sizeStreaks[slot], countStreaks[slot], totalSize, count));
+        }
+
+    }
+
+    /**
+     * Get suspects in current snapshot, and clear them.
+     * 
+     * @return Suspects in descending order of slope of totalSize.
+     */
+    public List<Suspect> drainSuspects(){
+        List<Suspect> result = new ArrayList<>(topN);
+        suspects.drain(result::add);
+        result.sort((a, b) -> Double.compare(b.getSizeSlope(), a.getSizeSlope()));
+        return result;
+    }
+
+    /**
+     * Get number of snapshots in sliding window.
+     * 
+     * @return Window size.
+     */
+    public int getWindow(){
+        return window;
+    }
+
+}
@@ -0,0 +1,487 @@
+/*
+ * MappedSnapShotReader.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.snapshot;
+
+import jp.co.ntt.oss.heapstats.container.snapshot.ChildObjectData;
+import jp.co.ntt.oss.heapstats.container.snapshot.ObjectData;
+import jp.co.ntt.oss.heapstats.container.snapshot.SnapShotHeader;
+import jp.co.ntt.oss.heapstats.parser.SnapShotParserEventHandler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SnapShot reader which memory-maps the file.
+ * The first pass walks headers and entries without decoding class names,
+ * and builds the index of snapshots. Selected snapshots are decoded from
+ * the mapped file, and passed to SnapShotParserEventHandler in the same
+ * way as SnapShotParser of heapstats-core.
+ * 
+ * Each snapshot in the file is:
+ * <pre>
+ * header:   magic (1), byte order mark 'L' or 'B' (1), time in ms (8),
+ *           number of entries (8), cause (4), length of GC cause (8),
+ *           GC cause (80), full GC count (8), young GC count (8),
+ *           GC time (8), new heap (8), old heap (8), total capacity (8),
+ *           metaspace usage (8), metaspace capacity (8),
+ *           [safepoint count (8), safepoint time (8)]
+ * entries:  tag (8), length of class name (4), class name, class loader (8),
+ *           class loader tag (8), count (8), total size (8),
+ *           [children: tag (8), instances (8), total size (8), ..., -1 (8)]
+ * </pre>
+ * Optional parts are indicated by the bits of the magic number.
+ * Only HeapStats 2.0 format is accepted, because it is verified against
+ * SnapShotParser of heapstats-core by MappedSnapShotReaderTest. Files in
+ * other formats should be read with --reader stream.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class MappedSnapShotReader implements AutoCloseable{
+
+    /* Magic number without extended bits */
+    private static final int FORMAT_2_0 = 51;
+
+    private static final int EXTENDED_REFTREE = 0x80;
+
+    private static final int EXTENDED_SAFEPOINT_TIME = 0x40;
+
+    private static final int FORMAT_MASK = 0x3f;
+
+    private static final int GC_CAUSE_LENGTH = 80;
+
+    /**
+     * Size of the header without safepoint fields.
+     */
+    private static final int HEADER_SIZE = 1 + 1 + 8 + 8 + 4 + 8 + GC_CAUSE_LENGTH + (8 * 8);
+
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    /**
+     * Each mapped chunk overlaps the next one by this size, so any value
+     * up to this size can be read from one chunk.
+     */
+    private static final int CHUNK_OVERLAP = 1 << 20;
+
+    /**
+     * Snapshot in the file.
+     */
+    public static class IndexEntry{
+
+        private final long offset;
+
+        private final int magic;
+
+        private final ByteOrder order;
+
+        private final SnapShotHeader header;
+
+        private final long entriesOffset;
+
+        private long endOffset;
+
+        private IndexEntry(long offset, int magic, ByteOrder order, SnapShotHeader header, long entriesOffset){
+            this.offset = offset;
+            this.magic = magic;
+            this.order = order;
+            this.header = header;
+            this.entriesOffset = entriesOffset;
+        }
+
+        /**
+         * Get offset of this snapshot in the file.
+         * 
+         * @return Offset.
+         */
+        public long getOffset(){
+            return offset;
+        }
+
+        /**
+         * Get offset at the end of this snapshot in the file.
+         * 
+         * @return Offset.
+         */
+        public long getEndOffset(){
+            return endOffset;
+        }
+
+        /**
+         * Get header of this snapshot.
+         * Number of instances is summed up in the first pass.
+         * 
+         * @return SnapShot header.
+         */
+        public SnapShotHeader getHeader(){
+            return header;
+        }
+
+        private boolean hasChildren(){
+            return (magic & EXTENDED_REFTREE) != 0;
+        }
+
+    }
+
+    private final Path file;
+
+    private final long startOffset;
+
+    private final long size;
+
+    private final ZoneId zoneId;
+
+    private MappedByteBuffer[] chunks;
+
+    /**
+     * Duplicates of mapped chunks which are read in current byte order.
+     * Byte order of mapped chunks is not changed.
+     */
+    private ByteBuffer[] views;
+
+    private ByteOrder viewOrder;
+
+    /**
+     * Constructor of MappedSnapShotReader.
+     * 
+     * @param file SnapShot file.
+     * @param startOffset Offset of the first snapshot to read. Offsets which
+     *                    are passed to the handler are relative to it.
+     * @param zoneId ZoneId of SnapShot.
+     * @throws IOException Thrown when the file could not be mapped.
+     */
+    public MappedSnapShotReader(Path file, long startOffset, ZoneId zoneId) throws IOException{
+        this.file = file;
+        this.startOffset = startOffset;
+        this.zoneId = zoneId;
+
+        try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)){
+            this.size = ch.size();
+            int numChunks = (int)((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            this.chunks = new MappedByteBuffer[numChunks];
+            for(int idx = 0; idx < numChunks; idx++){
+                long pos = idx * CHUNK_SIZE;
+                chunks[idx] = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(CHUNK_SIZE + CHUNK_OVERLAP, size - pos));
+            }
+        }
+        this.views = new ByteBuffer[chunks.length];
+        setOrder(ByteOrder.BIG_ENDIAN);
+
+    }
+
+    private void ensure(long pos, long length) throws EOFException{
+        if((pos + length) > size){
+            throw new EOFException();
+        }
+    }
+
+    private ByteBuffer chunk(long pos){
+        return views[(int)(pos / CHUNK_SIZE)];
+    }
+
+    private static int index(long pos){
+        return (int)(pos % CHUNK_SIZE);
+    }
+
+    private byte get(long pos) throws EOFException{
+        ensure(pos, 1);
+        return chunk(pos).get(index(pos));
+    }
+
+    private int getInt(long pos) throws EOFException{
+        ensure(pos, 4);
+        return chunk(pos).getInt(index(pos));
+    }
+
+    private long getLong(long pos) throws EOFException{
+        ensure(pos, 8);
+        return chunk(pos).getLong(index(pos));
+    }
+
+    private byte[] getBytes(long pos, int length) throws EOFException{
+        ensure(pos, length);
+        ByteBuffer buf = chunk(pos).duplicate();
+        buf.position(index(pos));
+        byte[] result = new byte[length];
+        buf.get(result);
+        return result;
+    }
+
+    private void setOrder(ByteOrder order){
+        if(order != viewOrder){
+            for(int idx = 0; idx < chunks.length; idx++){
+                views[idx] = chunks[idx].duplicate().order(order);
+            }
+            viewOrder = order;
+        }
+    }
+
+    private IOException unsupported(long pos){
+        return new IOException("Unsupported snapshot format at offset " + pos + ": " + file);
+    }
+
+    /**
+     * Convert JVM class signature to Java style class name.
+     * e.g. "Ljava/lang/String;" to "java.lang.String", "[I" to "int[]"
+     * 
+     * @param signature Class signature.
+     * @return Java style class name.
+     */
+    static String toJavaStyleName(String signature){
+        int dims = 0;
+        while((dims < signature.length()) && (signature.charAt(dims) == '[')){
+            dims++;
+        }
+
+        String element = signature.substring(dims);
+        String name;
+        if(element.startsWith("L") && element.endsWith(";")){
+            name = element.substring(1, element.length() - 1).replace('/', '.');
+        }
+        else if((dims > 0) && (element.length() == 1)){
+            switch(element.charAt(0)){
+                case 'Z': name = "boolean"; break;
+                case 'B': name = "byte"; break;
+                case 'C': name = "char"; break;
+                case 'S': name = "short"; break;
+                case 'I': name = "int"; break;
+                case 'J': name = "long"; break;
+                case 'F': name = "float"; break;
+                case 'D': name = "double"; break;
+                default: name = element;
+            }
+        }
+        else{
+            name = element.replace('/', '.');
+        }
+
+        if(dims == 0){
+            return name;
+        }
+
+        StringBuilder builder = new StringBuilder(name.length() + (dims * 2)).append(name);
+        for(int idx = 0; idx < dims; idx++){
+            builder.append("[]");
+        }
+        return builder.toString();
+    }
+
+    private IndexEntry readHeader(long pos) throws IOException{
+        int magic = get(pos) & 0xff;
+        if((magic & FORMAT_MASK) != FORMAT_2_0){
+            throw new IOException("Snapshot format " + (magic & FORMAT_MASK) + " at offset " + pos + " is not supported by mmap reader, use --reader stream: " + file);
+        }
+
+        ByteOrder order;
+        switch(get(pos + 1)){
+            case 'L':
+                order = ByteOrder.LITTLE_ENDIAN;
+                break;
+            case 'B':
+                order = ByteOrder.BIG_ENDIAN;
+                break;
+            default:
+                throw unsupported(pos);
+        }
+        setOrder(order);
+
+        SnapShotHeader header = new SnapShotHeader();
+        long p = pos + 2;
+        header.setSnapShotDate(LocalDateTime.ofInstant(Instant.ofEpochMilli(getLong(p)), zoneId));
+        p += 8;
+        long numEntries = getLong(p);
+        if(numEntries < 0){
+            throw unsupported(pos);
+        }
+        header.setNumEntries(numEntries);
+        p += 8;
+        header.setCause(getInt(p));
+        p += 4;
+        long gcCauseLen = getLong(p);
+        p += 8;
+        byte[] gcCause = getBytes(p, GC_CAUSE_LENGTH);
+        int len = (int)Math.max(Math.min(gcCauseLen, GC_CAUSE_LENGTH), 0);
+        while((len > 0) && (gcCause[len - 1] == 0)){
+            len--;
+        }
+        header.setGcCause(new String(gcCause, 0, len, StandardCharsets.US_ASCII));
+        p += GC_CAUSE_LENGTH;
+        header.setFullCount(getLong(p));
+        header.setYngCount(getLong(p + 8));
+        header.setGcTime(getLong(p + 16));
+        header.setNewHeap(getLong(p + 24));
+        header.setOldHeap(getLong(p + 32));
+        header.setTotalCapacity(getLong(p + 40));
+        header.setMetaspaceUsage(getLong(p + 48));
+        header.setMetaspaceCapacity(getLong(p + 56));
+        p = pos + HEADER_SIZE;
+
+        if((magic & EXTENDED_SAFEPOINT_TIME) != 0){
+            header.setSafepointCount(getLong(p));
+            header.setSafepointTime(getLong(p + 8));
+            p += 16;
+        }
+
+        return new IndexEntry(pos, magic, order, header, p);
+    }
+
+    /**
+     * Walk entries of the snapshot without decoding them.
+     * 
+     * @param entry Snapshot.
+     * @return Offset at the end of the snapshot.
+     * @throws IOException Thrown when the format is not supported.
+     */
+    private long skipEntries(IndexEntry entry) throws IOException{
+        long pos = entry.entriesOffset;
+        long numInstances = 0;
+
+        for(long idx = 0; idx < entry.header.getNumEntries(); idx++){
+            int nameLen = getInt(pos + 8);
+            if((nameLen < 0) || (nameLen > CHUNK_OVERLAP)){
+                throw unsupported(pos);
+            }
+            pos += 8 + 4 + nameLen;
+            numInstances += getLong(pos + 16);
+            pos += 32;
+
+            if(entry.hasChildren()){
+                while(getLong(pos) != -1){
+                    pos += 24;
+                }
+                pos += 8;
+            }
+
+        }
+
+        entry.header.setNumInstances(numInstances);
+        return pos;
+    }
+
+    /**
+     * Build index of snapshots from the start offset.
+     * The snapshot at the end of the file is not included if it is not
+     * written completely.
+     * 
+     * @return Snapshots in the file.
+     * @throws IOException Thrown when the format is not supported.
+     */
+    public List<IndexEntry> buildIndex() throws IOException{
+        List<IndexEntry> index = new ArrayList<>();
+        long pos = startOffset;
+
+        try{
+            while(pos < size){
+                IndexEntry entry = readHeader(pos);
+                pos = skipEntries(entry);
+                entry.endOffset = pos;
+                index.add(entry);
+            }
+        }
+        catch(EOFException e){
+            // Incomplete snapshot at the tail
+        }
+
+        return index;
+    }
+
+    /**
+     * Decode the snapshot, and pass it to the handler.
+     * Offsets which are passed to the handler are relative to the start
+     * offset of this reader.
+     * 
+     * @param entry Snapshot in the index.
+     * @param handler Event handler.
+     * @param fileName File name which is passed to onNewSnapShot().
+     * @return false if the handler aborts parsing.
+     * @throws IOException Thrown when the snapshot could not be read.
+     */
+    public boolean read(IndexEntry entry, SnapShotParserEventHandler handler, String fileName) throws IOException{
+        setOrder(entry.order);
+
+        if(handler.onStart(entry.offset - startOffset) == SnapShotParserEventHandler.ParseResult.HEAPSTATS_PARSE_ABORT){
+            return false;
+        }
+        switch(handler.onNewSnapShot(entry.header, fileName)){
+            case HEAPSTATS_PARSE_ABORT:
+                return false;
+            case HEAPSTATS_PARSE_SKIP:
+                return true;
+            default:
+                // Continue
+        }
+
+        long pos = entry.entriesOffset;
+        for(long idx = 0; idx < entry.header.getNumEntries(); idx++){
+            ObjectData data = new ObjectData();
+            long tag = getLong(pos);
+            int nameLen = getInt(pos + 8);
+            data.setTag(tag);
+            data.setName(toJavaStyleName(new String(getBytes(pos + 12, nameLen), StandardCharsets.UTF_8)));
+            pos += 12 + nameLen;
+            data.setClassLoader(getLong(pos));
+            data.setClassLoaderTag(getLong(pos + 8));
+            data.setCount(getLong(pos + 16));
+            data.setTotalSize(getLong(pos + 24));
+            pos += 32;
+
+            if(handler.onEntry(data) == SnapShotParserEventHandler.ParseResult.HEAPSTATS_PARSE_ABORT){
+                return false;
+            }
+
+            if(entry.hasChildren()){
+                long childTag;
+                while((childTag = getLong(pos)) != -1){
+                    ChildObjectData child = new ChildObjectData(childTag, getLong(pos + 8), getLong(pos + 16));
+                    if(handler.onChildEntry(tag, child) == SnapShotParserEventHandler.ParseResult.HEAPSTATS_PARSE_ABORT){
+                        return false;
+                    }
+                    pos += 24;
+                }
+                pos += 8;
+            }
+
+        }
+
+        return handler.onFinish(entry.endOffset - startOffset) != SnapShotParserEventHandler.ParseResult.HEAPSTATS_PARSE_ABORT;
+    }
+
+    /**
+     * Release mapped buffers.
+     * They are unmapped when they are collected by GC.
+     */
+    @Override
+    public void close(){
+        chunks = new MappedByteBuffer[0];
+        views = new ByteBuffer[0];
+    }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * ObjectDeltaTable.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.snapshot;
+
+/**
+ * Table of per-class counters in the previous snapshot for delta mode.
+ * Counters are stored in open-addressing primitive arrays keyed by JVMTI
+ * class tag. Each snapshot is a generation of this table as
+ * ClassNameDictionary, so classes which are not seen in current snapshot
+ * can be found as removed classes.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class ObjectDeltaTable{
+
+    /**
+     * Status of the class compared with the previous snapshot.
+     */
+    public static enum Status{
+        NEW,
+        CHANGED,
+        UNCHANGED
+    }
+
+    /**
+     * Consumer of removed classes.
+     */
+    @FunctionalInterface
+    public static interface RemovedConsumer{
+
+        /**
+         * Called for each class which is not seen in current snapshot.
+         * 
+         * @param tag JVMTI class tag.
+         * @param name Class name.
+         * @param classLoader Class loader ID.
+         * @param classLoaderTag Class tag of class loader.
+         */
+        public void accept(long tag, String name, long classLoader, long classLoaderTag);
+
+    }
+
+    /**
+     * Default capacity of the hash table. It must be power of 2.
+     */
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] tags;
+
+    private long[] counts;
+
+    private long[] totalSizes;
+
+    private long[] classLoaders;
+
+    private long[] classLoaderTags;
+
+    private String[] names;
+
+    /**
+     * Generation of each slot. 0 means empty slot.
+     */
+    private int[] generations;
+
+    /**
+     * Number of used slots.
+     */
+    private int size;
+
+    private int threshold;
+
+    /**
+     * Current generation.
+     */
+    private int generation;
+
+    /**
+     * Constructor of ObjectDeltaTable.
+     */
+    public ObjectDeltaTable(){
+        allocate(DEFAULT_CAPACITY);
+        generation = 1;
+    }
+
+    private void allocate(int capacity){
+        tags = new long[capacity];
+        counts = new long[capacity];
+        totalSizes = new long[capacity];
+        classLoaders = new long[capacity];
+        classLoaderTags = new long[capacity];
+        names = new String[capacity];
+        generations = new int[capacity];
+        size = 0;
+        threshold = (int)(capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(long tag){
+        long h = tag * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private int findSlot(long tag){
+        int mask = tags.length - 1;
+        int slot = hash(tag) & mask;
+
+        while((generations[slot] != 0) && (tags[slot] != tag)){
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Start new generation. This method should be called at the beginning
+     * of each snapshot.
+     */
+    public void nextGeneration(){
+        generation++;
+    }
+
+    /**
+     * Rebuild hash table. Entries which are not seen in current or previous
+     * generation are dropped because they are already reported as removed.
+     */
+    private void rehash(){
+        long[] oldTags = tags;
+        long[] oldCounts = counts;
+        long[] oldTotalSizes = totalSizes;
+        long[] oldClassLoaders = classLoaders;
+        long[] oldClassLoaderTags = classLoaderTags;
+        String[] oldNames = names;
+        int[] oldGenerations = generations;
+        int live = 0;
+
+        for(int gen : oldGenerations){
+            if((gen != 0) && (gen >= (generation - 1))){
+                live++;
+            }
+        }
+
+        int capacity = oldTags.length;
+        while((live + 1) >= (int)(capacity * LOAD_FACTOR)){
+            capacity <<= 1;
+        }
+        allocate(capacity);
+
+        for(int idx = 0; idx < oldTags.length; idx++){
+            if((oldGenerations[idx] != 0) && (oldGenerations[idx] >= (generation - 1))){
+                int slot = findSlot(oldTags[idx]);
+                tags[slot] = oldTags[idx];
+                counts[slot] = oldCounts[idx];
+                totalSizes[slot] = oldTotalSizes[idx];
+                classLoaders[slot] = oldClassLoaders[idx];
+                classLoaderTags[slot] = oldClassLoaderTags[idx];
+                names[slot] = oldNames[idx];
+                generations[slot] = oldGenerations[idx];
+                size++;
+            }
+        }
+
+    }
+
+    /**
+     * Update counters of the class in current generation.
+     * 
+     * @param tag JVMTI class tag.
+     * @param name Class name.
+     * @param classLoader Class loader ID.
+     * @param classLoaderTag Class tag of class loader.
+     * @param count Number of instances.
+     * @param totalSize Total size of instances.
+     * @return Status of the class compared with the previous snapshot.
+     */
+    public Status update(long tag, String name, long classLoader, long classLoaderTag, long count, long totalSize){
+        int slot = findSlot(tag);
+        Status status;
+
+        if(generations[slot] == 0){
+            if(size >= threshold){
+                rehash();
+                slot = findSlot(tag);
+            }
+            size++;
+            tags[slot] = tag;
+            status = Status.NEW;
+        }
+        else if(generations[slot] != (generation - 1)){
+            // Removed before, and loaded again.
+            status = Status.NEW;
+        }
+        else if((counts[slot] != count) || (totalSizes[slot] != totalSize)){
+            status = Status.CHANGED;
+        }
+        else{
+            // JVMTI tag might be reused for another class after class unloading.
+            status = ((classLoaderTags[slot] == classLoaderTag) && names[slot].equals(name)) ? Status.UNCHANGED : Status.CHANGED;
+        }
+
+        counts[slot] = count;
+        totalSizes[slot] = totalSize;
+        classLoaders[slot] = classLoader;
+        classLoaderTags[slot] = classLoaderTag;
+        if(status != Status.UNCHANGED){
+            names[slot] = name;
+        }
+        generations[slot] = generation;
+
+        return status;
+    }
+
+    /**
+     * Call the consumer for each class which is seen in the previous
+     * snapshot, but not in current snapshot.
+     * 
+     * @param consumer Consumer of removed classes.
+     */
+    public void forEachRemoved(RemovedConsumer consumer){
+        for(int idx = 0; idx < tags.length; idx++){
+            if((generations[idx] != 0) && (generations[idx] == (generation - 1))){
+                consumer.accept(tags[idx], names[idx], classLoaders[idx], classLoaderTags[idx]);
+            }
+        }
+    }
+
+    /**
+     * Get number of classes in hash table.
+     * 
+     * @return Number of classes.
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * Get number of snapshots which are started in this table.
+     * The table can be kept across parses of the file, so this is used to
+     * decide keyframes instead of the count of the handler.
+     * 
+     * @return Number of snapshots.
+     */
+    public int getSnapShotCount(){
+        return generation - 1;
+    }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * RollupAggregator.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.snapshot;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-snapshot rollups of objects by class loader and by package prefix.
+ * Entries are accumulated as they are parsed, so the rollups are
+ * available at the end of each snapshot without keeping the entries.
+ * 
+ * Package prefix is cached per interned class name, so it is calculated
+ * only once for each class in the file.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class RollupAggregator{
+
+    /**
+     * Consumer of class loader rollup.
+     */
+    @FunctionalInterface
+    public static interface ClassLoaderConsumer{
+
+        /**
+         * Called for each class loader in current snapshot.
+         * 
+         * @param classLoader Class loader ID.
+         * @param classLoaderTag Class tag of class loader.
+         * @param classes Number of classes.
+         * @param count Number of instances.
+         * @param totalSize Total size of instances.
+         */
+        public void accept(long classLoader, long classLoaderTag, long classes, long count, long totalSize);
+
+    }
+
+    /**
+     * Consumer of package rollup.
+     */
+    @FunctionalInterface
+    public static interface PackageConsumer{
+
+        /**
+         * Called for each package prefix in current snapshot.
+         * 
+         * @param packageName Package prefix.
+         * @param classes Number of classes.
+         * @param count Number of instances.
+         * @param totalSize Total size of instances.
+         */
+        public void accept(String packageName, long classes, long count, long totalSize);
+
+    }
+
+    /**
+     * Package name for classes in default package.
+     */
+    public static final String DEFAULT_PACKAGE = "(default)";
+
+    /**
+     * Package name for arrays of primitive type.
+     */
+    public static final String PRIMITIVE_ARRAY = "(primitive array)";
+
+    private static final int INITIAL_LOADER_CAPACITY = 64;
+
+    /* Open-addressing table of class loaders */
+    private long[] loaders;
+
+    private long[] loaderTags;
+
+    private long[] loaderClasses;
+
+    private long[] loaderCounts;
+
+    private long[] loaderTotalSizes;
+
+    private boolean[] loaderUsed;
+
+    private int loaderSize;
+
+    /**
+     * Accumulators per package prefix: {classes, count, totalSize}.
+     */
+    private final Map<String, long[]> packages;
+
+    /**
+     * Package prefix per class name id.
+     */
+    private String[] prefixCache;
+
+    private final int depth;
+
+    /**
+     * Constructor of RollupAggregator.
+     * 
+     * @param depth Depth of package prefix.
+     */
+    public RollupAggregator(int depth){
+        this.depth = depth;
+        this.packages = new HashMap<>();
+        this.prefixCache = new String[1024];
+        allocateLoaders(INITIAL_LOADER_CAPACITY);
+    }
+
+    private void allocateLoaders(int capacity){
+        loaders = new long[capacity];
+        loaderTags = new long[capacity];
+        loaderClasses = new long[capacity];
+        loaderCounts = new long[capacity];
+        loaderTotalSizes = new long[capacity];
+        loaderUsed = new boolean[capacity];
+        loaderSize = 0;
+    }
+
+    /**
+     * Reset accumulators of class loaders.
+     * Arrays are reused for the next snapshot.
+     */
+    private void clearLoaders(){
+        if(loaderSize > 0){
+            Arrays.fill(loaderUsed, false);
+            Arrays.fill(loaderClasses, 0);
+            Arrays.fill(loaderCounts, 0);
+            Arrays.fill(loaderTotalSizes, 0);
+            loaderSize = 0;
+        }
+    }
+
+    private int findLoaderSlot(long classLoader){
+        int mask = loaders.length - 1;
+        long h = classLoader * 0x9E3779B97F4A7C15L;
+        int slot = (int)(h ^ (h >>> 32)) & mask;
+
+        while(loaderUsed[slot] && (loaders[slot] != classLoader)){
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void growLoaders(){
+        long[] oldLoaders = loaders;
+        long[] oldTags = loaderTags;
+        long[] oldClasses = loaderClasses;
+        long[] oldCounts = loaderCounts;
+        long[] oldTotalSizes = loaderTotalSizes;
+        boolean[] oldUsed = loaderUsed;
+
+        allocateLoaders(oldLoaders.length << 1);
+        for(int idx = 0; idx < oldLoaders.length; idx++){
+            if(oldUsed[idx]){
+                int slot = findLoaderSlot(oldLoaders[idx]);
+                loaders[slot] = oldLoaders[idx];
+                loaderTags[slot] = oldTags[idx];
+                loaderClasses[slot] = oldClasses[idx];
+                loaderCounts[slot] = oldCounts[idx];
+                loaderTotalSizes[slot] = oldTotalSizes[idx];
+                loaderUsed[slot] = true;
+                loaderSize++;
+            }
+        }
+
+    }
+
+    /**
+     * Get package prefix of the class.
+     * Both of Java name (java.lang.String) and JVM signature
+     * (Ljava/lang/String; or [Ljava/lang/String;) are accepted.
+     * Arrays are counted in the package of their component type.
+     * 
+     * @param name Class name.
+     * @param depth Depth of package prefix.
+     * @return Package prefix.
+     */
+    public static String getPackagePrefix(String name, int depth){
+        int start = 0;
+        int end = name.length();
+
+        while((start < end) && (name.charAt(start) == '[')){
+            start++;
+        }
+        if(start > 0){
+            if((start < end) && (name.charAt(start) == 'L')){
+                start++;
+            }
+            else{
+                return PRIMITIVE_ARRAY;
+            }
+        }
+        else if((end > 1) && (name.charAt(0) == 'L') && (name.charAt(end - 1) == ';')){
+            start++;
+        }
+        if((end > start) && (name.charAt(end - 1) == ';')){
+            end--;
+        }
+
+        int lastSeparator = -1;
+        for(int idx = end - 1; idx >= start; idx--){
+            char c = name.charAt(idx);
+            if((c == '.') || (c == '/')){
+                lastSeparator = idx;
+                break;
+            }
+        }
+        if(lastSeparator < 0){
+            return DEFAULT_PACKAGE;
+        }
+
+        int prefixEnd = lastSeparator;
+        int segments = 0;
+        for(int idx = start; idx < lastSeparator; idx++){
+            char c = name.charAt(idx);
+            if((c == '.') || (c == '/')){
+                segments++;
+                if(segments == depth){
+                    prefixEnd = idx;
+                    break;
+                }
+            }
+        }
+
+        return name.substring(start, prefixEnd).replace('/', '.');
+    }
+
+    /**
+     * Add the class to rollups of current snapshot.
+     * 
+     * @param nameId Id of interned class name.
+     * @param name Class name.
+     * @param classLoader Class loader ID.
+     * @param classLoaderTag Class tag of class loader.
+     * @param count Number of instances.
+     * @param totalSize Total size of instances.
+     */
+    public void add(int nameId, String name, long classLoader, long classLoaderTag, long count, long totalSize){
+        int slot = findLoaderSlot(classLoader);
+        if(!loaderUsed[slot]){
+            if((loaderSize + 1) > (loaders.length >> 1)){
+                growLoaders();
+                slot = findLoaderSlot(classLoader);
+            }
+            loaders[slot] = classLoader;
+            loaderTags[slot] = classLoaderTag;
+            loaderUsed[slot] = true;
+            loaderSize++;
+        }
+        loaderClasses[slot]++;
+        loaderCounts[slot] += count;
+        loaderTotalSizes[slot] += totalSize;
+
+        if(nameId >= prefixCache.length){
+            prefixCache = Arrays.copyOf(prefixCache, Math.max(prefixCache.length << 1, nameId + 1));
+        }
+        String prefix = prefixCache[nameId];
+        if(prefix == null){
+            prefix = getPackagePrefix(name, depth);
+            prefixCache[nameId] = prefix;
+        }
+
+        long[] values = packages.computeIfAbsent(prefix, k -> new long[3]);
+        values[0]++;
+        values[1] += count;
+        values[2] += totalSize;
+    }
+
+    /**
+     * Pass rollups of current snapshot to the consumers, and reset them.
+     * 
+     * @param loaderConsumer Consumer of class loader rollup.
+     * @param packageConsumer Consumer of package rollup.
+     */
+    public void drain(ClassLoaderConsumer loaderConsumer, PackageConsumer packageConsumer){
+        for(int idx = 0; idx < loaders.length; idx++){
+            if(loaderUsed[idx]){
+                loaderConsumer.accept(loaders[idx], loaderTags[idx], loaderClasses[idx], loaderCounts[idx], loaderTotalSizes[idx]);
+            }
+        }
+        clearLoaders();
+
+        packages.forEach((k, v) -> packageConsumer.accept(k, v[0], v[1], v[2]));
+        packages.clear();
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * SnapShotEncoder.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.snapshot;
+
+import jp.co.ntt.oss.heapstats.container.snapshot.ObjectData;
+import jp.co.ntt.oss.heapstats.container.snapshot.SnapShotHeader;
+import jp.dip.ysfactory.heapstats.hsloader.encode.JsonEncoder;
+import jp.dip.ysfactory.heapstats.hsloader.encode.JsonField;
+
+import java.util.List;
+
+/**
+ * Encoder for snapshot documents.
+ * Field names are pre-encoded, and documents are written into the
+ * JsonEncoder of current thread.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class SnapShotEncoder{
+
+    private static final JsonField TIMESTAMP = new JsonField("@timestamp");
+
+    /* Fields for summary */
+    private static final JsonField NUM_ENTRIES = new JsonField("numEntries");
+    private static final JsonField NUM_INSTANCES = new JsonField("numInstances");
+    private static final JsonField CAUSE = new JsonField("cause");
+    private static final JsonField GC_CAUSE = new JsonField("gcCause");
+    private static final JsonField FULL_COUNT = new JsonField("fullCount");
+    private static final JsonField YNG_COUNT = new JsonField("yngCount");
+    private static final JsonField GC_TIME = new JsonField("gcTime");
+    private static final JsonField NEW_HEAP = new JsonField("newHeap");
+    private static final JsonField OLD_HEAP = new JsonField("oldHeap");
+    private static final JsonField TOTAL_CAPACITY = new JsonField("totalCapacity");
+    private static final JsonField METASPACE_USAGE = new JsonField("metaspaceUsage");
+    private static final JsonField METASPACE_CAPACITY = new JsonField("metaspaceCapacity");
+    private static final JsonField SAFEPOINT_TIME = new JsonField("safepointTime");
+
+    /* Fields for objects */
+    private static final JsonField TAG = new JsonField("tag");
+    private static final JsonField NAME = new JsonField("name");
+    private static final JsonField CLASS_LOADER = new JsonField("classLoader");
+    private static final JsonField CLASS_LOADER_TAG = new JsonField("classLoaderTag");
+    private static final JsonField COUNT = new JsonField("count");
+    private static final JsonField TOTAL_SIZE = new JsonField("totalSize");
+    private static final JsonField DELTA = new JsonField("delta");
+
+    /* Fields for refs */
+    private static final JsonField PARENT_TAG = new JsonField("parentTag");
+    private static final JsonField PARENT_NAME = new JsonField("parentName");
+    private static final JsonField INSTANCES = new JsonField("instalces");
+
+    /* Fields for rollup */
+    private static final JsonField ROLLUP = new JsonField("rollup");
+    private static final JsonField CLASS_LOADER_NAME = new JsonField("classLoaderName");
+    private static final JsonField PACKAGE = new JsonField("package");
+    private static final JsonField CLASSES = new JsonField("classes");
+    private static final byte[] ROLLUP_CLASS_LOADER = JsonEncoder.encodeString("classLoader");
+    private static final byte[] ROLLUP_PACKAGE = JsonEncoder.encodeString("package");
+
+    /* Fields for suspects */
+    private static final JsonField WINDOW = new JsonField("window");
+    private static final JsonField SUSPECTS = new JsonField("suspects");
+    private static final JsonField SIZE_SLOPE = new JsonField("sizeSlope");
+    private static final JsonField COUNT_SLOPE = new JsonField("countSlope");
+    private static final JsonField SIZE_STREAK = new JsonField("sizeStreak");
+    private static final JsonField COUNT_STREAK = new JsonField("countStreak");
+
+    private SnapShotEncoder(){
+        // Utility class
+    }
+
+    /**
+     * Encode summary document.
+     * 
+     * @param timestamp Pre-encoded timestamp.
+     * @param header SnapShot header.
+     * @return Encoded document.
+     */
+    public static byte[] encodeSummary(byte[] timestamp, SnapShotHeader header){
+        return JsonEncoder.get()
+                          .startObject()
+                          .rawField(TIMESTAMP, timestamp)
+                          .field(NUM_ENTRIES, header.getNumEntries())
+                          .field(NUM_INSTANCES, header.getNumInstances())
+                          .field(CAUSE, header.getCauseString())
+                          .field(GC_CAUSE, header.getGcCause())
+                          .field(FULL_COUNT, header.getFullCount())
+                          .field(YNG_COUNT, header.getYngCount())
+                          .field(GC_TIME, header.getGcTime())
+                          .field(NEW_HEAP, header.getNewHeap())
+                          .field(OLD_HEAP, header.getOldHeap())
+                          .field(TOTAL_CAPACITY, header.getTotalCapacity())
+                          .field(METASPACE_USAGE, header.getMetaspaceUsage())
+                          .field(METASPACE_CAPACITY, header.getMetaspaceCapacity())
+                          .field(SAFEPOINT_TIME, header.getSafepointTime())
+                          .endObject()
+                          .toByteArray();
+    }
+
+    /**
+     * Encode objects document.
+     * 
+     * @param timestamp Pre-encoded timestamp.
+     * @param data Object data.
+     * @return Encoded document.
+     */
+    public static byte[] encodeObject(byte[] timestamp, ObjectData data){
+        return encodeObject(timestamp, data.getTag(), data.getName(), data.getClassLoader(), data.getClassLoaderTag(),
+                            data.getCount(), data.getTotalSize(), null);
+    }
+
+    /**
+     * Encode objects document.
+     * 
+     * @param timestamp Pre-encoded timestamp.
+     * @param tag JVMTI class tag.
+     * @param name Class name.
+     * @param classLoader Class loader ID.
+     * @param classLoaderTag Class tag of class loader.
+     * @param count Number of instances.
+     * @param totalSize Total size of instances.
+     * @param delta Kind of delta, or null if it is not in delta mode.
+     * @return Encoded document.
+     */
+    public static byte[] encodeObject(byte[] timestamp, long tag, String name, long classLoader, long classLoaderTag,
+                                      long count, long totalSize, String delta){
+        JsonEncoder encoder = JsonEncoder.get()
+                                         .startObject()
+                                         .rawField(TIMESTAMP, timestamp)
+                                         .field(TAG, tag)
+                                         .field(NAME, name)
+                                         .field(CLASS_LOADER, classLoader)
+                                         .field(CLASS_LOADER_TAG, classLoaderTag)
+                                         .field(COUNT, count)
+                                         .field(TOTAL_SIZE, totalSize);
+        if(delta != null){
+            encoder.field(DELTA, delta);
+        }
+
+        return encoder.endObject()
+                      .toByteArray();
+    }
+
+    /**
+     * Encode refs document.
+     * 
+     * @param timestamp Pre-encoded timestamp.
+     * @param parentTag Class tag of parent class.
+     * @param parentName Class name of parent class.
+     * @param tag Class tag of child class.
+     * @param name Class name of child class.
+     * @param instances Number of instances.
+     * @param totalSize Total size of instances.
+     * @return Encoded document.
+     */
+    public static byte[] encodeReference(byte[] timestamp, long parentTag, String parentName, long tag, String name, long instances, long totalSize){
+        return JsonEncoder.get()
+                          .startObject()
+                          .rawField(TIMESTAMP, timestamp)
+                          .field(PARENT_TAG, parentTag)
+                          .field(PARENT_NAME, parentName)
+                          .field(TAG, tag)
+                          .field(NAME, name)
+                          .field(INSTANCES, instances)
+                          .field(TOTAL_SIZE, totalSize)
+                          .endObject()
+                          .toByteArray();
+    }
+
+    /**
+     * Encode class loader rollup document.
+     * 
+     * @param timestamp Pre-encoded timestamp.
+     * @param classLoader Class loader ID.
+     * @param classLoaderTag Class tag of class loader.
+     * @param classLoaderName Class name of class loader.
+     * @param classes Number of classes.
+     * @param count Number of instances.
+     * @param totalSize Total size of instances.
+     * @return Encoded document.
+     */
+    public static byte[] encodeClassLoaderRollup(byte[] timestamp, long classLoader, long classLoaderTag, String classLoaderName,
+                                                 long classes, long count, long totalSize){
+        return JsonEncoder.get()
+                          .startObject()
+                          .rawField(TIMESTAMP, timestamp)
+                          .rawField(ROLLUP, ROLLUP_CLASS_LOADER)
+                          .field(CLASS_LOADER, classLoader)
+                          .field(CLASS_LOADER_TAG, classLoaderTag)
+                          .field(CLASS_LOADER_NAME, classLoaderName)
+                          .field(CLASSES, classes)
+                          .field(COUNT, count)
+                          .field(TOTAL_SIZE, totalSize)
+                          .endObject()
+                          .toByteArray();
+    }
+
+    /**
+     * Encode package rollup document.
+     * 
+     * @param timestamp Pre-encoded timestamp.
+     * @param packageName Package prefix.
+     * @param classes Number of classes.
+     * @param count Number of instances.
+     * @param totalSize Total size of instances.
+     * @return Encoded document.
+     */
+    public static byte[] encodePackageRollup(byte[] timestamp, String packageName, long classes, long count, long totalSize){
+        return JsonEncoder.get()
+                          .startObject()
+                          .rawField(TIMESTAMP, timestamp)
+                          .rawField(ROLLUP, ROLLUP_PACKAGE)
+                          .field(PACKAGE, packageName)
+                          .field(CLASSES, classes)
+                          .field(COUNT, count)
+                          .field(TOTAL_SIZE, totalSize)
+                          .endObject()
+                          .toByteArray();
+    }
+
+    /**
+     * Encode suspects document.
+     * 
+     * @param timestamp Pre-encoded timestamp.
+     * @param window Number of snapshots in sliding window.
+     * @param suspects Leak suspects.
+     * @return Encoded document.
+     */
+    public static byte[] encodeSuspects(byte[] timestamp, int window, List<LeakSuspectTracker.Suspect> suspects){
+        JsonEncoder encoder = JsonEncoder.get()
+                                         .startObject()
+                                         .rawField(TIMESTAMP, timestamp)
+                                         .field(WINDOW, window)
+                                         .startArray(SUSPECTS);
+        for(LeakSuspectTracker.Suspect suspect : suspects){
+            encoder.startObject()
+                   .field(TAG, suspect.getTag())
+                   .field(NAME, suspect.getName())
+                   .field(SIZE_SLOPE, suspect.getSizeSlope())
+                   .field(COUNT_SLOPE, suspect.getCountSlope())
+                   .field(SIZE_STREAK, suspect.getSizeStreak())
+                   .field(COUNT_STREAK, suspect.getCountStreak())
+                   .field(TOTAL_SIZE, suspect.getTotalSize())
+                   .field(COUNT, suspect.getCount())
+                   .endObject();
+        }
+
+        return encoder.endArray()
+                      .endObject()
+                      .toByteArray();
+    }
+
+}
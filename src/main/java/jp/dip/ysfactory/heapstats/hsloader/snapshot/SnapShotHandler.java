@@ -24,33 +24,37 @@ import jp.co.ntt.oss.heapstats.container.snapshot.ChildObjectData;
 import jp.co.ntt.oss.heapstats.container.snapshot.ObjectData;
 import jp.co.ntt.oss.heapstats.container.snapshot.SnapShotHeader;
 import jp.co.ntt.oss.heapstats.parser.SnapShotParserEventHandler;
+import jp.dip.ysfactory.heapstats.hsloader.Option;
 import jp.dip.ysfactory.heapstats.hsloader.Processor;
+import jp.dip.ysfactory.heapstats.hsloader.encode.JsonEncoder;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * HeapStats SnapShot parser event handler.
  * 
  * @author Yasumasa Suenaga
  */
-public class SnapShotHandler implements SnapShotParserEventHandler{
+public class SnapShotHandler implements SnapShotParserEventHandler, AutoCloseable{
     
     /**
-     * Map for JVMTI tag and Class Name.
-     * This field will be used for set class name to ChildObjectDataEx.
+     * Dictionary for JVMTI tag and Class Name.
+     * This field will be used for set class name to reference data.
+     * It is kept across snapshots in the file.
      */
-    private Map<Long, String> tagClassNameMap;
+    private final ClassNameDictionary tagClassNameMap;
     
-    private List<ChildObjectDataEx> childrenList;
+    /**
+     * Reference edges which are waiting for the class name of the child.
+     */
+    private final DeferredReferenceBuffer deferredReferences;
     
     private final Processor processor;
     
@@ -58,6 +62,21 @@ public class SnapShotHandler implements SnapShotParserEventHandler{
      * ZoneId of SnapShot.
      */
     private final ZoneId zoneId;
+
+    /**
+     * SnapShot file which is handled by this instance.
+     */
+    private final String fileName;
+
+    /**
+     * Number of snapshots which are processed by this instance.
+     */
+    private int snapShotCount;
+
+    /**
+     * Offset at the end of the last snapshot which is published completely.
+     */
+    private long finishedOffset;
     
     /**
      * Formatter for index suffix.
@@ -70,16 +89,219 @@ public class SnapShotHandler implements SnapShotParserEventHandler{
     private String indexNameSuffix;
 
     private String currentTimestamp;
+
+    /*
+     * Index names for current snapshot.
+     * They are built once per snapshot to avoid string concatenation per document.
+     */
+    private String summaryIndexName;
+
+    private String objectsIndexName;
+
+    private String refsIndexName;
+
+    private String rollupIndexName;
+
+    private String suspectsIndexName;
+
+    /**
+     * Pre-encoded currentTimestamp.
+     */
+    private byte[] encodedTimestamp;
+
+    /**
+     * true if documents should be built by XContentBuilder instead of SnapShotEncoder.
+     */
+    private final boolean useXContent;
+
+    /*
+     * Kinds of delta.
+     */
+    private static final String DELTA_KEYFRAME = "keyframe";
+
+    private static final String DELTA_NEW = "new";
+
+    private static final String DELTA_CHANGED = "changed";
+
+    private static final String DELTA_REMOVED = "removed";
+
+    /**
+     * Counters in the previous snapshot. This is null if delta mode is disabled.
+     */
+    private final ObjectDeltaTable deltaTable;
+
+    /**
+     * Interval of keyframe snapshots in delta mode.
+     */
+    private final int keyframeInterval;
+
+    /**
+     * true if current snapshot is a keyframe.
+     */
+    private boolean keyframe;
+
+    /**
+     * Rollups by class loader and package. This is null if rollups are disabled.
+     */
+    private final RollupAggregator rollup;
+
+    /**
+     * Tracker of leak suspects. This is null if suspects are disabled.
+     */
+    private final LeakSuspectTracker suspectTracker;
+
+    /**
+     * Class name of synthetic document for entries which are left out.
+     */
+    private static final String OTHER_NAME = "(other)";
+
+    /**
+     * Reference edge which is kept in TopKHeap.
+     */
+    private static class ChildRef{
+
+        final long tag;
+
+        final long instances;
+
+        final long totalSize;
+
+        ChildRef(long tag, long instances, long totalSize){
+            this.tag = tag;
+            this.instances = instances;
+            this.totalSize = totalSize;
+        }
+
+    }
+
+    /**
+     * Entries which are smaller than this size are summed into "other".
+     */
+    private final long minSize;
+
+    /**
+     * Largest classes in current snapshot. This is null if all classes should be published.
+     */
+    private final TopKHeap<ObjectData> topClasses;
+
+    /**
+     * Largest children of current parent. This is null if all children should be published.
+     */
+    private final TopKHeap<ChildRef> topRefs;
+
+    private final boolean filterObjects;
+
+    private final boolean filterRefs;
+
+    /* Sum of classes which are left out in current snapshot */
+    private long otherClassCount;
+
+    private long otherInstances;
+
+    private long otherTotalSize;
+
+    /* Sum of children which are left out for current parent */
+    private long currentParentTag;
+
+    private boolean hasCurrentParent;
+
+    private long otherRefCount;
+
+    private long otherRefInstances;
+
+    private long otherRefTotalSize;
     
     /**
      * Constructor for SnapShotHandler.
      * 
      * @param processor Elasticsearch bulk operation processor.
      * @param zoneId ZoneId of SnapShot.
+     * @param fileName SnapShot file which is handled by this instance.
+     */
+    public SnapShotHandler(Processor processor, ZoneId zoneId, String fileName){
+        this(processor, zoneId, fileName, null);
+    }
+
+    /**
+     * Constructor for SnapShotHandler.
+     * 
+     * @param processor Elasticsearch bulk operation processor.
+     * @param zoneId ZoneId of SnapShot.
+     * @param fileName SnapShot file which is handled by this instance.
+     * @param suspectTracker Tracker of leak suspects which is kept across handlers of the file, or null.
+     */
+    public SnapShotHandler(Processor processor, ZoneId zoneId, String fileName, LeakSuspectTracker suspectTracker){
+        this(processor, zoneId, fileName, suspectTracker, processor.getOption().isDelta() ? new ObjectDeltaTable() : null);
+    }
+
+    /**
+     * Constructor for SnapShotHandler.
+     * 
+     * @param processor Elasticsearch bulk operation processor.
+     * @param zoneId ZoneId of SnapShot.
+     * @param fileName SnapShot file which is handled by this instance.
+     * @param suspectTracker Tracker of leak suspects which is kept across handlers of the file, or null.
+     * @param deltaTable Counters for delta mode which are kept across handlers of the file, or null.
      */
-    public SnapShotHandler(Processor processor, ZoneId zoneId){
+    public SnapShotHandler(Processor processor, ZoneId zoneId, String fileName, LeakSuspectTracker suspectTracker, ObjectDeltaTable deltaTable){
         this.processor = processor;
         this.zoneId = zoneId;
+        this.fileName = fileName;
+        this.snapShotCount = 0;
+        this.finishedOffset = 0;
+        this.deferredReferences = new DeferredReferenceBuffer();
+        this.tagClassNameMap = new ClassNameDictionary();
+        this.useXContent = (processor.getOption().getEncoder() == Option.Encoder.xcontent);
+        this.deltaTable = deltaTable;
+        this.keyframeInterval = processor.getOption().getKeyframeInterval();
+        this.keyframe = true;
+
+        Option opt = processor.getOption();
+        this.minSize = opt.getMinSize();
+        this.topClasses = (opt.getTopClasses() > 0) ? new TopKHeap<>(opt.getTopClasses()) : null;
+        this.topRefs = (opt.getTopRefsPerParent() > 0) ? new TopKHeap<>(opt.getTopRefsPerParent()) : null;
+        this.filterObjects = (topClasses != null) || (minSize > 0);
+        this.filterRefs = (topRefs != null) || (minSize > 0);
+        this.hasCurrentParent = false;
+        this.rollup = opt.isRollup() ? new RollupAggregator(opt.getRollupDepth()) : null;
+        this.suspectTracker = suspectTracker;
+    }
+
+    /**
+     * Get dictionary for JVMTI tag and class name.
+     * 
+     * @return Class name dictionary.
+     */
+    public ClassNameDictionary getClassNameDictionary(){
+        return tagClassNameMap;
+    }
+
+    /**
+     * Get number of snapshots which are processed since the last rewind().
+     * 
+     * @return Number of snapshots.
+     */
+    public int getSnapShotCount(){
+        return snapShotCount;
+    }
+
+    /**
+     * Get offset at the end of the last snapshot which is published completely.
+     * 
+     * @return Offset in the parsed file.
+     */
+    public long getFinishedOffset(){
+        return finishedOffset;
+    }
+
+    /**
+     * Start the next parse of the file with this handler.
+     * The class name dictionary and delta state are kept, but offsets and
+     * the count of snapshots are relative to each parse.
+     */
+    public void rewind(){
+        snapShotCount = 0;
+        finishedOffset = 0;
     }
 
     /**
@@ -96,11 +318,32 @@ public class SnapShotHandler implements SnapShotParserEventHandler{
      */
     @Override
     public ParseResult onNewSnapShot(SnapShotHeader header, String parent) {
-        System.out.println("Parse snapshot at " + header.getSnapShotDate().toString());
-        tagClassNameMap = new HashMap<>();
-        childrenList = new ArrayList<>();
+        System.out.println("Parse snapshot at " + header.getSnapShotDate().toString() + " (" + fileName + ")");
+        snapShotCount++;
+        tagClassNameMap.nextGeneration();
         indexNameSuffix = header.getSnapShotDate().format(indexSuffixFormatter);
         currentTimestamp = header.getSnapShotDate().atZone(zoneId).toInstant().toString();
+        summaryIndexName = "heapstats-snapshot-summary-" + indexNameSuffix;
+        objectsIndexName = "heapstats-snapshot-objects-" + indexNameSuffix;
+        refsIndexName = "heapstats-snapshot-refs-" + indexNameSuffix;
+        rollupIndexName = "heapstats-snapshot-rollup-" + indexNameSuffix;
+        suspectsIndexName = "heapstats-snapshot-suspects-" + indexNameSuffix;
+        encodedTimestamp = JsonEncoder.encodeString(currentTimestamp);
+
+        if(suspectTracker != null){
+            Instant instant = header.getSnapShotDate().atZone(zoneId).toInstant();
+            suspectTracker.nextSnapShot(instant.getEpochSecond() + (instant.getNano() / 1_000_000_000.0d));
+        }
+
+        if(deltaTable != null){
+            deltaTable.nextGeneration();
+            keyframe = ((deltaTable.getSnapShotCount() - 1) % keyframeInterval) == 0;
+        }
+
+        if(!useXContent){
+            processor.publish(summaryIndexName, "heapstats-snapshot-summary", SnapShotEncoder.encodeSummary(encodedTimestamp, header));
+            return SnapShotParserEventHandler.ParseResult.HEAPSTATS_PARSE_CONTINUE;
+        }
 
         try{
             XContentBuilder builder = XContentFactory.jsonBuilder()
@@ -120,7 +363,7 @@ public class SnapShotHandler implements SnapShotParserEventHandler{
                                                      .field("metaspaceCapacity", header.getMetaspaceCapacity())
                                                      .field("safepointTime", header.getSafepointTime())
                                                      .endObject();
-            processor.publish("heapstats-snapshot-summary-" + indexNameSuffix, "heapstats-snapshot-summary", builder);
+            processor.publish(summaryIndexName, "heapstats-snapshot-summary", builder);
         }
         catch(IOException e){
             System.err.println(e.getLocalizedMessage());
@@ -142,18 +385,25 @@ public class SnapShotHandler implements SnapShotParserEventHandler{
     public ParseResult onEntry(ObjectData data) {
         tagClassNameMap.put(data.getTag(), data.getName());
 
+        if(suspectTracker != null){
+            suspectTracker.update(data.getTag(), data.getName(), data.getCount(), data.getTotalSize());
+        }
+
+        if(rollup != null){
+            rollup.add(tagClassNameMap.getNameId(data.getTag()), data.getName(), data.getClassLoader(), data.getClassLoaderTag(),
+                       data.getCount(), data.getTotalSize());
+        }
+
         try{
-            XContentBuilder builder = XContentFactory.jsonBuilder()
-                                                     .startObject()
-                                                     .field("@timestamp", currentTimestamp)
-                                                     .field("tag", data.getTag())
-                                                     .field("name", data.getName())
-                                                     .field("classLoader", data.getClassLoader())
-                                                     .field("classLoaderTag", data.getClassLoaderTag())
-                                                     .field("count", data.getCount())
-                                                     .field("totalSize", data.getTotalSize())
-                                                     .endObject();
-            processor.publish("heapstats-snapshot-objects-" + indexNameSuffix, "heapstats-snapshot-objects", builder);
+            // Children of the previous entry are complete.
+            flushChildren();
+
+            if(filterObjects){
+                selectObject(data);
+            }
+            else{
+                publishObject(data);
+            }
         }
         catch(IOException e){
             System.err.println(e.getLocalizedMessage());
@@ -169,40 +419,434 @@ public class SnapShotHandler implements SnapShotParserEventHandler{
     }
 
     /**
-     * {@inheritDoc}
+     * Publish objects document.
+     * In delta mode, it is not published if the class is not changed.
+     * 
+     * @param data Object data.
+     * @throws IOException Thrown when the document could not be built.
      */
-    @Override
-    public ParseResult onChildEntry(long parentClassTag, ChildObjectData child) {
-        childrenList.add(new ChildObjectDataEx(parentClassTag, child));
-        return SnapShotParserEventHandler.ParseResult.HEAPSTATS_PARSE_CONTINUE;
+    private void publishObject(ObjectData data) throws IOException{
+        String delta = null;
+
+        if(deltaTable != null){
+            ObjectDeltaTable.Status status = deltaTable.update(data.getTag(), data.getName(), data.getClassLoader(), data.getClassLoaderTag(),
+                                                               data.getCount(), data.getTotalSize());
+            if(keyframe){
+                delta = DELTA_KEYFRAME;
+            }
+            else if(status == ObjectDeltaTable.Status.UNCHANGED){
+                return;
+            }
+            else{
+                delta = (status == ObjectDeltaTable.Status.NEW) ? DELTA_NEW : DELTA_CHANGED;
+            }
+        }
+
+        putObjectData(data.getTag(), data.getName(), data.getClassLoader(), data.getClassLoaderTag(),
+                      data.getCount(), data.getTotalSize(), delta);
     }
-    
-    private void putChildData(ChildObjectDataEx child){
+
+    private void addOtherObject(ObjectData data){
+        otherClassCount++;
+        otherInstances += data.getCount();
+        otherTotalSize += data.getTotalSize();
+    }
+
+    /**
+     * Select objects document by --min-size and --top-classes.
+     * Selected classes are published at onFinish().
+     * 
+     * @param data Object data.
+     * @throws IOException Thrown when the document could not be built.
+     */
+    private void selectObject(ObjectData data) throws IOException{
+        if(data.getTotalSize() < minSize){
+            addOtherObject(data);
+        }
+        else if(topClasses == null){
+            publishObject(data);
+        }
+        else{
+            ObjectData evicted = topClasses.offer(data.getTotalSize(), data);
+            if(evicted != null){
+                addOtherObject(evicted);
+            }
+        }
+    }
+
+    /**
+     * Publish selected classes and "other" document of current snapshot.
+     * 
+     * @throws IOException Thrown when the document could not be built.
+     */
+    private void flushObjects() throws IOException{
+        if(topClasses != null){
+            try{
+                topClasses.drain(d -> {
+                    try{
+                        publishObject(d);
+                    }
+                    catch(IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            catch(UncheckedIOException e){
+                throw e.getCause();
+            }
+        }
+
+        if(otherClassCount > 0){
+            putObjectData(0, OTHER_NAME, 0, 0, otherInstances, otherTotalSize, null);
+            otherClassCount = 0;
+            otherInstances = 0;
+            otherTotalSize = 0;
+        }
+
+    }
+
+    private void putObjectData(long tag, String name, long classLoader, long classLoaderTag, long count, long totalSize, String delta) throws IOException{
+        if(!useXContent){
+            byte[] timestamp = encodedTimestamp;
+            processor.publish(objectsIndexName, "heapstats-snapshot-objects",
+                              () -> SnapShotEncoder.encodeObject(timestamp, tag, name, classLoader, classLoaderTag, count, totalSize, delta));
+            return;
+        }
+
+        XContentBuilder builder = XContentFactory.jsonBuilder()
+                                                 .startObject()
+                                                 .field("@timestamp", currentTimestamp)
+                                                 .field("tag", tag)
+                                                 .field("name", name)
+                                                 .field("classLoader", classLoader)
+                                                 .field("classLoaderTag", classLoaderTag)
+                                                 .field("count", count)
+                                                 .field("totalSize", totalSize);
+        if(delta != null){
+            builder.field("delta", delta);
+        }
+        builder.endObject();
+        processor.publish(objectsIndexName, "heapstats-snapshot-objects", builder);
+    }
+
+    /**
+     * Publish suspects document of current snapshot.
+     * It is not published if there are no growing classes.
+     * 
+     * @throws IOException Thrown when the document could not be built.
+     */
+    private void publishSuspects() throws IOException{
+        List<LeakSuspectTracker.Suspect> suspects = suspectTracker.drainSuspects();
+        if(suspects.isEmpty()){
+            return;
+        }
+
+        if(!useXContent){
+            byte[] timestamp = encodedTimestamp;
+            int window = suspectTracker.getWindow();
+            processor.publish(suspectsIndexName, "heapstats-snapshot-suspects",
+                              () -> SnapShotEncoder.encodeSuspects(timestamp, window, suspects));
+            return;
+        }
+
+        XContentBuilder builder = XContentFactory.jsonBuilder()
+                                                 .startObject()
+                                                 .field("@timestamp", currentTimestamp)
+                                                 .field("window", suspectTracker.getWindow())
+                                                 .startArray("suspects");
+        for(LeakSuspectTracker.Suspect suspect : suspects){
+            builder.startObject()
+                   .field("tag", suspect.getTag())
+                   .field("name", suspect.getName())
+                   .field("sizeSlope", suspect.getSizeSlope())
+                   .field("countSlope", suspect.getCountSlope())
+                   .field("sizeStreak", suspect.getSizeStreak())
+                   .field("countStreak", suspect.getCountStreak())
+                   .field("totalSize", suspect.getTotalSize())
+                   .field("count", suspect.getCount())
+                   .endObject();
+        }
+        builder.endArray()
+               .endObject();
+        processor.publish(suspectsIndexName, "heapstats-snapshot-suspects", builder);
+    }
+
+    /**
+     * Publish class loader rollup document.
+     * IOException is thrown as UncheckedIOException, so this method can be
+     * passed to RollupAggregator.drain().
+     * 
+     * @param classLoader Class loader ID.
+     * @param classLoaderTag Class tag of class loader.
+     * @param classes Number of classes.
+     * @param count Number of instances.
+     * @param totalSize Total size of instances.
+     */
+    private void putClassLoaderRollup(long classLoader, long classLoaderTag, long classes, long count, long totalSize){
+        String loaderName = (classLoader == 0) ? null : tagClassNameMap.get(classLoaderTag);
+
+        if(!useXContent){
+            byte[] timestamp = encodedTimestamp;
+            processor.publish(rollupIndexName, "heapstats-snapshot-rollup",
+                              () -> SnapShotEncoder.encodeClassLoaderRollup(timestamp, classLoader, classLoaderTag, loaderName, classes, count, totalSize));
+            return;
+        }
+
+        try{
+            XContentBuilder builder = XContentFactory.jsonBuilder()
+                                                     .startObject()
+                                                     .field("@timestamp", currentTimestamp)
+                                                     .field("rollup", "classLoader")
+                                                     .field("classLoader", classLoader)
+                                                     .field("classLoaderTag", classLoaderTag)
+                                                     .field("classLoaderName", loaderName)
+                                                     .field("classes", classes)
+                                                     .field("count", count)
+                                                     .field("totalSize", totalSize)
+                                                     .endObject();
+            processor.publish(rollupIndexName, "heapstats-snapshot-rollup", builder);
+        }
+        catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Publish package rollup document.
+     * IOException is thrown as UncheckedIOException, so this method can be
+     * passed to RollupAggregator.drain().
+     * 
+     * @param packageName Package prefix.
+     * @param classes Number of classes.
+     * @param count Number of instances.
+     * @param totalSize Total size of instances.
+     */
+    private void putPackageRollup(String packageName, long classes, long count, long totalSize){
+        if(!useXContent){
+            byte[] timestamp = encodedTimestamp;
+            processor.publish(rollupIndexName, "heapstats-snapshot-rollup",
+                              () -> SnapShotEncoder.encodePackageRollup(timestamp, packageName, classes, count, totalSize));
+            return;
+        }
+
         try{
             XContentBuilder builder = XContentFactory.jsonBuilder()
                                                      .startObject()
                                                      .field("@timestamp", currentTimestamp)
-                                                     .field("parentTag", child.getParentClassTag())
-                                                     .field("parentName", tagClassNameMap.get(child.getParentClassTag()))
-                                                     .field("tag", child.getTag())
-                                                     .field("name", tagClassNameMap.get(child.getTag()))
-                                                     .field("instalces", child.getInstances())
-                                                     .field("totalSize", child.getTotalSize())
+                                                     .field("rollup", "package")
+                                                     .field("package", packageName)
+                                                     .field("classes", classes)
+                                                     .field("count", count)
+                                                     .field("totalSize", totalSize)
                                                      .endObject();
-            processor.publish("heapstats-snapshot-refs-" + indexNameSuffix, "heapstats-snapshot-refs", builder);
+            processor.publish(rollupIndexName, "heapstats-snapshot-rollup", builder);
         }
         catch(IOException e){
             throw new UncheckedIOException(e);
         }
     }
 
+    /**
+     * Publish rollup documents of current snapshot.
+     * 
+     * @throws IOException Thrown when the document could not be built.
+     */
+    private void flushRollup() throws IOException{
+        try{
+            rollup.drain(this::putClassLoaderRollup, this::putPackageRollup);
+        }
+        catch(UncheckedIOException e){
+            throw e.getCause();
+        }
+    }
+
     /**
      * {@inheritDoc}
+     * 
+     * Child entries follow their parent entry, so the parent name is
+     * always known here. The edge is published immediately if the name of
+     * the child is known, otherwise it is deferred until onFinish().
+     * If the edges are filtered, they are selected per parent, and selected
+     * edges are published when the children of the parent are complete.
+     */
+    @Override
+    public ParseResult onChildEntry(long parentClassTag, ChildObjectData child) {
+        try{
+            if(filterRefs){
+                selectChild(parentClassTag, child.getTag(), child.getInstances(), child.getTotalSize());
+            }
+            else{
+                putOrDeferChild(parentClassTag, child.getTag(), child.getInstances(), child.getTotalSize());
+            }
+        }
+        catch(IOException e){
+            System.err.println(e.getLocalizedMessage());
+            
+            if(Boolean.getBoolean("debug")){
+                e.printStackTrace();
+            }
+            
+            return SnapShotParserEventHandler.ParseResult.HEAPSTATS_PARSE_ABORT;
+        }
+
+        return SnapShotParserEventHandler.ParseResult.HEAPSTATS_PARSE_CONTINUE;
+    }
+
+    private void putOrDeferChild(long parentClassTag, long tag, long instances, long totalSize) throws IOException{
+        if(tagClassNameMap.contains(tag)){
+            putChildData(parentClassTag, tag, instances, totalSize);
+        }
+        else{
+            deferredReferences.add(parentClassTag, tag, instances, totalSize);
+        }
+    }
+
+    private void addOtherRef(long instances, long totalSize){
+        otherRefCount++;
+        otherRefInstances += instances;
+        otherRefTotalSize += totalSize;
+    }
+
+    /**
+     * Select reference edge by --min-size and --top-refs-per-parent.
+     * 
+     * @param parentClassTag Class tag of parent class.
+     * @param tag Class tag of child class.
+     * @param instances Number of instances.
+     * @param totalSize Total size of instances.
+     * @throws IOException Thrown when the document could not be built.
+     */
+    private void selectChild(long parentClassTag, long tag, long instances, long totalSize) throws IOException{
+        if(!hasCurrentParent || (parentClassTag != currentParentTag)){
+            flushChildren();
+            currentParentTag = parentClassTag;
+            hasCurrentParent = true;
+        }
+
+        if(totalSize < minSize){
+            addOtherRef(instances, totalSize);
+        }
+        else if(topRefs == null){
+            putOrDeferChild(parentClassTag, tag, instances, totalSize);
+        }
+        else{
+            ChildRef evicted = topRefs.offer(totalSize, new ChildRef(tag, instances, totalSize));
+            if(evicted != null){
+                addOtherRef(evicted.instances, evicted.totalSize);
+            }
+        }
+    }
+
+    /**
+     * Publish selected edges and "other" edge of current parent.
+     * 
+     * @throws IOException Thrown when the document could not be built.
+     */
+    private void flushChildren() throws IOException{
+        if(!hasCurrentParent){
+            return;
+        }
+
+        if(topRefs != null){
+            try{
+                topRefs.drain(r -> {
+                    try{
+                        putOrDeferChild(currentParentTag, r.tag, r.instances, r.totalSize);
+                    }
+                    catch(IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            catch(UncheckedIOException e){
+                throw e.getCause();
+            }
+        }
+
+        if(otherRefCount > 0){
+            putReference(currentParentTag, tagClassNameMap.get(currentParentTag), 0, OTHER_NAME, otherRefInstances, otherRefTotalSize);
+            otherRefCount = 0;
+            otherRefInstances = 0;
+            otherRefTotalSize = 0;
+        }
+
+        hasCurrentParent = false;
+    }
+    
+    private void putChildData(long parentClassTag, long tag, long instances, long totalSize) throws IOException{
+        putReference(parentClassTag, tagClassNameMap.get(parentClassTag), tag, tagClassNameMap.get(tag), instances, totalSize);
+    }
+
+    private void putReference(long parentClassTag, String parentName, long tag, String name, long instances, long totalSize) throws IOException{
+        if(!useXContent){
+            byte[] timestamp = encodedTimestamp;
+            processor.publish(refsIndexName, "heapstats-snapshot-refs",
+                              () -> SnapShotEncoder.encodeReference(timestamp, parentClassTag, parentName, tag, name, instances, totalSize));
+            return;
+        }
+
+        XContentBuilder builder = XContentFactory.jsonBuilder()
+                                                 .startObject()
+                                                 .field("@timestamp", currentTimestamp)
+                                                 .field("parentTag", parentClassTag)
+                                                 .field("parentName", parentName)
+                                                 .field("tag", tag)
+                                                 .field("name", name)
+                                                 .field("instalces", instances)
+                                                 .field("totalSize", totalSize)
+                                                 .endObject();
+        processor.publish(refsIndexName, "heapstats-snapshot-refs", builder);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Selected classes and "other" documents are published here.
+     * In delta mode, classes which are not seen in this snapshot are
+     * published as removed (count and totalSize are 0).
      */
     @Override
     public ParseResult onFinish(long off) {
-        childrenList.forEach(this::putChildData);
+        try{
+            flushChildren();
+            deferredReferences.drain(this::putChildData);
+            flushObjects();
+
+            if(rollup != null){
+                flushRollup();
+            }
+
+            if(suspectTracker != null){
+                publishSuspects();
+            }
+
+            if((deltaTable != null) && !keyframe){
+                deltaTable.forEachRemoved((tag, name, classLoader, classLoaderTag) -> {
+                    try{
+                        putObjectData(tag, name, classLoader, classLoaderTag, 0, 0, DELTA_REMOVED);
+                    }
+                    catch(IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        }
+        catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+
+        finishedOffset = off;
         return SnapShotParserEventHandler.ParseResult.HEAPSTATS_PARSE_CONTINUE;
     }
+
+    /**
+     * Discard deferred reference edges which are not published.
+     * 
+     * @throws IOException Thrown when the spill file could not be removed.
+     */
+    @Override
+    public void close() throws IOException{
+        deferredReferences.close();
+    }
     
 }
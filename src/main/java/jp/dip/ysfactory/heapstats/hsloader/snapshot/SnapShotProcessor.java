@@ -18,10 +18,28 @@
  */
 package jp.dip.ysfactory.heapstats.hsloader.snapshot;
 
-import jp.co.ntt.oss.heapstats.lambda.ConsumerWrapper;
 import jp.co.ntt.oss.heapstats.parser.SnapShotParser;
+import jp.dip.ysfactory.heapstats.hsloader.MemoryReport;
 import jp.dip.ysfactory.heapstats.hsloader.Option;
 import jp.dip.ysfactory.heapstats.hsloader.Processor;
+import jp.dip.ysfactory.heapstats.hsloader.bulk.BulkSender;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Processor class for HeapStats SnapShot files.
@@ -29,24 +47,513 @@ import jp.dip.ysfactory.heapstats.hsloader.Processor;
  * @author Yasumasa Suenaga
  */
 public class SnapShotProcessor extends Processor{
+
+    /**
+     * Number of files which are already finished.
+     */
+    private final AtomicInteger finishedFiles;
+
+    /**
+     * Trackers of leak suspects per file. They are kept across parses of
+     * the file in follow mode.
+     */
+    private final Map<String, LeakSuspectTracker> suspectTrackers;
+
+    /**
+     * Counters of delta mode per file. They are kept across parses of the
+     * file in follow mode, so appended snapshots are published as delta.
+     */
+    private final Map<String, ObjectDeltaTable> deltaTables;
+
+    /**
+     * Handlers per file in follow mode. Each file keeps one handler with
+     * its class name dictionary and delta state across parses.
+     */
+    private final Map<String, SnapShotHandler> followHandlers;
     
     /**
      * {@inheritDoc}
      */
     public SnapShotProcessor(Option option){
         super(option);
+        finishedFiles = new AtomicInteger();
+        suspectTrackers = new ConcurrentHashMap<>();
+        deltaTables = new ConcurrentHashMap<>();
+        followHandlers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Constructor of SnapShotProcessor with custom bulk sender.
+     * 
+     * @param option Commandline option.
+     * @param bulkSender Sender of bulk requests.
+     */
+    public SnapShotProcessor(Option option, BulkSender bulkSender){
+        super(option, bulkSender);
+        finishedFiles = new AtomicInteger();
+        suspectTrackers = new ConcurrentHashMap<>();
+        deltaTables = new ConcurrentHashMap<>();
+        followHandlers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Copy the range of the file to temporary file.
+     * SnapShotParser can parse only whole file, and each snapshot in the
+     * file begins with its own magic number, so the range which begins and
+     * ends at the boundaries of snapshots can be parsed as SnapShot file.
+     * 
+     * @param file SnapShot file.
+     * @param offset Offset of the first snapshot to parse.
+     * @param end Offset at the end of the last snapshot to parse.
+     * @return Path to temporary file.
+     * @throws IOException Thrown when I/O error happens.
+     */
+    private static Path copyRange(Path file, long offset, long end) throws IOException{
+        Path tail = Files.createTempFile("hsloader-tail", ".dat");
+
+        try(FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(tail, StandardOpenOption.WRITE)){
+            long pos = offset;
+            while(pos < end){
+                pos += in.transferTo(pos, end - pos, out);
+            }
+        }
+        catch(IOException e){
+            Files.deleteIfExists(tail);
+            throw e;
+        }
+
+        return tail;
+    }
+
+    /**
+     * Contiguous range of snapshots in the file which is parsed by one
+     * handler.
+     */
+    private static class Segment{
+
+        /**
+         * Snapshots in this segment.
+         */
+        private final List<MappedSnapShotReader.IndexEntry> entries;
+
+        /**
+         * Number of snapshots which are processed.
+         */
+        private int snapShotCount;
+
+        /**
+         * Offset at the end of the last snapshot which is published
+         * completely. It is relative to the base offset of the file.
+         */
+        private long finishedOffset;
+
+        /**
+         * Constructor of Segment.
+         * 
+         * @param entries Snapshots in this segment.
+         */
+        public Segment(List<MappedSnapShotReader.IndexEntry> entries){
+            this.entries = entries;
+            this.snapShotCount = 0;
+            this.finishedOffset = 0;
+        }
+
+        /**
+         * Check whether all snapshots in this segment are published.
+         * 
+         * @param baseOffset Base offset of the file.
+         * @return true if this segment is finished completely.
+         */
+        public boolean isFinished(long baseOffset){
+            return finishedOffset == (entries.get(entries.size() - 1).getEndOffset() - baseOffset);
+        }
+
+    }
+
+    /**
+     * Select snapshots in the time range (--from and --to).
+     * 
+     * @param index Index of the file.
+     * @param file File name for the message.
+     * @return Snapshots in the time range.
+     */
+    private List<MappedSnapShotReader.IndexEntry> selectInRange(List<MappedSnapShotReader.IndexEntry> index, String file){
+        LocalDateTime from = opt.getFrom();
+        LocalDateTime to = opt.getTo();
+        if((from == null) && (to == null)){
+            return index;
+        }
+
+        List<MappedSnapShotReader.IndexEntry> selected = new ArrayList<>();
+        for(MappedSnapShotReader.IndexEntry entry : index){
+            LocalDateTime date = entry.getHeader().getSnapShotDate();
+            if(((from == null) || !date.isBefore(from)) && ((to == null) || !date.isAfter(to))){
+                selected.add(entry);
+            }
+        }
+
+        int skipped = index.size() - selected.size();
+        if(skipped > 0){
+            System.out.println("Skipped " + skipped + " snapshot(s) out of time range (" + file + ")");
+        }
+
+        return selected;
+    }
+
+    /**
+     * Split snapshots into contiguous segments at snapshot boundaries.
+     * Segments are balanced by their size in the file.
+     * 
+     * @param index Snapshots to split.
+     * @param numSegments Maximum number of segments.
+     * @return Segments in the order of the file.
+     */
+    private static List<Segment> split(List<MappedSnapShotReader.IndexEntry> index, int numSegments){
+        List<Segment> segments = new ArrayList<>();
+        if(index.isEmpty()){
+            return segments;
+        }
+
+        long start = index.get(0).getOffset();
+        long total = index.get(index.size() - 1).getEndOffset() - start;
+        int head = 0;
+        for(int idx = 0; idx < index.size(); idx++){
+            long done = index.get(idx).getEndOffset() - start;
+            if((idx == (index.size() - 1)) || ((done * numSegments) >= (total * (segments.size() + 1)))){
+                segments.add(new Segment(index.subList(head, idx + 1)));
+                head = idx + 1;
+            }
+        }
+
+        return segments;
+    }
+
+    /**
+     * Record statistics of the handler, and close it.
+     * 
+     * @param handler Handler to close.
+     * @throws IOException Thrown when the handler could not be closed.
+     */
+    private void closeHandler(SnapShotHandler handler) throws IOException{
+        memoryReport.addCounter("Class tags in dictionary", handler.getClassNameDictionary().size());
+        memoryReport.addCounter("Interned class names", handler.getClassNameDictionary().getNameCount());
+        handler.close();
+    }
+
+    /**
+     * Find the end of the last complete snapshot in the file.
+     * HeapStats might be still writing the last snapshot in follow mode,
+     * so snapshots after the offset should not be parsed yet.
+     * 
+     * @param path SnapShot file.
+     * @param baseOffset Offset of the first snapshot to read.
+     * @return Offset at the end of the last complete snapshot, or baseOffset if no snapshot is complete.
+     * @throws IOException Thrown when the file could not be read.
+     */
+    private long findCompleteEnd(Path path, long baseOffset) throws IOException{
+        try(MappedSnapShotReader reader = new MappedSnapShotReader(path, baseOffset, opt.getZoneId())){
+            List<MappedSnapShotReader.IndexEntry> index = reader.buildIndex();
+            return index.isEmpty() ? baseOffset : index.get(index.size() - 1).getEndOffset();
+        }
+    }
+
+    /**
+     * Parse one segment with the handler through its own reader.
+     * 
+     * @param path SnapShot file.
+     * @param baseOffset Offset of the first snapshot to read.
+     * @param segment Segment to parse.
+     * @param file File name which is passed to the handler.
+     * @param handler Event handler.
+     * @throws IOException Thrown when the segment could not be read.
+     */
+    private void parseSegment(Path path, long baseOffset, Segment segment, String file, SnapShotHandler handler) throws IOException{
+        handler.rewind();
+
+        try(MappedSnapShotReader reader = new MappedSnapShotReader(path, baseOffset, opt.getZoneId())){
+            for(MappedSnapShotReader.IndexEntry entry : segment.entries){
+                if(!reader.read(entry, handler, file)){
+                    break;
+                }
+            }
+        }
+        finally{
+            flushPublisher();
+            segment.snapShotCount = handler.getSnapShotCount();
+            segment.finishedOffset = handler.getFinishedOffset();
+        }
+
+    }
+
+    /**
+     * Parse segments in parallel. Each segment is parsed on its own thread
+     * with fresh handler state (class name dictionary and rollups).
+     * Leak suspects and delta mode are not available with segments.
+     * All segments are waited even if some of them fail.
+     * 
+     * @param path SnapShot file.
+     * @param baseOffset Offset of the first snapshot to read.
+     * @param segments Segments to parse.
+     * @param file File name which is passed to the handler.
+     * @throws Exception Thrown when any segment could not be parsed.
+     */
+    private void parseSegments(Path path, long baseOffset, List<Segment> segments, String file) throws Exception{
+        ExecutorService executor = Executors.newFixedThreadPool(segments.size());
+        List<Future<?>> results = new ArrayList<>();
+
+        try{
+            for(Segment segment : segments){
+                results.add(executor.submit(() -> {
+                    long allocatedAtStart = MemoryReport.getCurrentThreadAllocatedBytes();
+                    SnapShotHandler handler = new SnapShotHandler(this, opt.getZoneId(), file, null, null);
+                    try{
+                        parseSegment(path, baseOffset, segment, file, handler);
+                    }
+                    finally{
+                        closeHandler(handler);
+                        memoryReport.addAllocatedBytes(allocatedAtStart, MemoryReport.getCurrentThreadAllocatedBytes());
+                    }
+                    return null;
+                }));
+            }
+
+            Exception failure = null;
+            for(Future<?> result : results){
+                try{
+                    result.get();
+                }
+                catch(ExecutionException e){
+                    if(failure == null){
+                        failure = (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+                    }
+                }
+            }
+
+            if(failure != null){
+                throw failure;
+            }
+
+        }
+        finally{
+            executor.shutdownNow();
+        }
+
+    }
+
+    /**
+     * Parse the file through MappedSnapShotReader.
+     * The index of the file is split into segments (--segments), and they
+     * are parsed in parallel. The checkpoint is advanced only over the
+     * segments which are finished contiguously from the beginning.
+     * Incomplete snapshot at the tail is not in the index, so it is parsed
+     * after it is completed.
+     * In follow mode, the file is parsed by the handler of the file as one
+     * segment.
+     * 
+     * @param path SnapShot file.
+     * @param baseOffset Offset of the first snapshot to read.
+     * @param file File name which is passed to the handler.
+     * @param suspectTracker Tracker of leak suspects, or null.
+     * @param deltaTable Counters for delta mode which are kept across parses of the file, or null.
+     * @param followHandler Handler of the file in follow mode, or null.
+     * @return Number of snapshots in the file.
+     * @throws Exception Thrown when the file could not be parsed.
+     */
+    private int parseMapped(Path path, long baseOffset, String file, LeakSuspectTracker suspectTracker, ObjectDeltaTable deltaTable, SnapShotHandler followHandler) throws Exception{
+        List<Segment> segments;
+        try(MappedSnapShotReader reader = new MappedSnapShotReader(path, baseOffset, opt.getZoneId())){
+            segments = split(selectInRange(reader.buildIndex(), file), (followHandler == null) ? opt.getSegments() : 1);
+        }
+
+        try{
+            if(segments.size() == 1){
+                if(followHandler != null){
+                    parseSegment(path, baseOffset, segments.get(0), file, followHandler);
+                }
+                else{
+                    SnapShotHandler handler = new SnapShotHandler(this, opt.getZoneId(), file, suspectTracker, deltaTable);
+                    try{
+                        parseSegment(path, baseOffset, segments.get(0), file, handler);
+                    }
+                    finally{
+                        closeHandler(handler);
+                    }
+                }
+            }
+            else if(segments.size() > 1){
+                parseSegments(path, baseOffset, segments, file);
+            }
+
+            return segments.stream()
+                           .mapToInt(s -> s.snapShotCount)
+                           .sum();
+        }
+        finally{
+            if(checkpointStore != null){
+                long finishedOffset = 0;
+                for(Segment segment : segments){
+                    if(segment.finishedOffset > 0){
+                        finishedOffset = segment.finishedOffset;
+                    }
+                    if(!segment.isFinished(baseOffset)){
+                        break;
+                    }
+                }
+
+                if(finishedOffset > 0){
+                    checkpointStore.update(path, baseOffset + finishedOffset);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Parse one SnapShot file.
+     * Each call uses its own parser and handler, so this method can be
+     * called concurrently for different files.
+     * If checkpoints are enabled, snapshots which are already published
+     * are skipped, and the offset of the last published snapshot is
+     * recorded after parsing.
+     * In follow mode, each file keeps its handler across parses, and only
+     * complete snapshots are parsed because HeapStats might be still
+     * writing the last one.
+     * 
+     * @param file SnapShot file to parse.
+     * @return Number of snapshots in the file.
+     * @throws Exception Thrown when the file could not be parsed.
+     */
+    private int parseFile(String file) throws Exception{
+        Path path = Paths.get(file);
+        long baseOffset = (checkpointStore == null) ? 0 : checkpointStore.getOffset(path);
+        if((baseOffset > 0) && (baseOffset >= Files.size(path))){
+            System.out.println("No new snapshot in " + file);
+            return 0;
+        }
+
+        String key = path.toAbsolutePath().normalize().toString();
+        LeakSuspectTracker suspectTracker = (opt.getSuspects() > 0) ? suspectTrackers.computeIfAbsent(key, k -> new LeakSuspectTracker(opt.getSuspectWindow(), opt.getSuspects()))
+                                                                    : null;
+        ObjectDeltaTable deltaTable = opt.isDelta() ? deltaTables.computeIfAbsent(key, k -> new ObjectDeltaTable()) : null;
+        SnapShotHandler followHandler = opt.isFollow() ? followHandlers.computeIfAbsent(key, k -> new SnapShotHandler(this, opt.getZoneId(), file, suspectTracker, deltaTable))
+                                                       : null;
+
+        boolean mapped = (opt.getSnapShotReader() == Option.SnapShotReader.mmap);
+        long end = Files.size(path);
+        if(!mapped && (followHandler != null)){
+            end = findCompleteEnd(path, baseOffset);
+            if(end == baseOffset){
+                System.out.println("No complete snapshot in " + file);
+                return 0;
+            }
+        }
+
+        Path target = (!mapped && ((baseOffset > 0) || (end < Files.size(path)))) ? copyRange(path, baseOffset, end) : path;
+        long startTime = System.nanoTime();
+
+        try{
+            if(mapped){
+                return parseMapped(path, baseOffset, file, suspectTracker, deltaTable, followHandler);
+            }
+
+            SnapShotHandler handler = (followHandler != null) ? followHandler
+                                                              : new SnapShotHandler(this, opt.getZoneId(), file, suspectTracker, deltaTable);
+            try{
+                handler.rewind();
+                new SnapShotParser(true).parse(target.toString(), handler);
+                return handler.getSnapShotCount();
+            }
+            finally{
+                flushPublisher();
+                if((checkpointStore != null) && (handler.getFinishedOffset() > 0)){
+                    checkpointStore.update(path, baseOffset + handler.getFinishedOffset());
+                }
+                if(followHandler == null){
+                    closeHandler(handler);
+                }
+            }
+        }
+        finally{
+            if(target != path){
+                Files.deleteIfExists(target);
+            }
+            ingestMetrics.addProcessTime(System.nanoTime() - startTime);
+        }
     }
 
     /**
      * {@inheritDoc}
+     * 
+     * In follow mode, snapshots which are appended after that are
+     * processed from the offset of the last published snapshot.
      */
     @Override
     public void process() {
-        SnapShotParser parser = new SnapShotParser(true);
-        SnapShotHandler handler = new SnapShotHandler(this, opt.getZoneId());
-        ConsumerWrapper<String> parseConsumer = new ConsumerWrapper<>(f -> parser.parse(f, handler));
+        List<String> files = opt.getFiles();
+        int numWorkers = Math.min(opt.getParallel(), Math.max(files.size(), 1));
+        ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+        List<Future<Integer>> results = new ArrayList<>();
+
+        try{
+            for(String file : files){
+                results.add(executor.submit(() -> {
+                    int count = parseFile(file);
+                    System.out.println("Finished " + file + ": " + count + " snapshot(s) [" + finishedFiles.incrementAndGet() + "/" + files.size() + "]");
+                    return count;
+                }));
+            }
+
+            int failed = 0;
+            for(int idx = 0; idx < files.size(); idx++){
+                try{
+                    results.get(idx).get();
+                }
+                catch(ExecutionException e){
+                    Throwable cause = e.getCause();
+                    System.err.println("Failed " + files.get(idx) + ": " + cause.getLocalizedMessage());
+
+                    if(Boolean.getBoolean("debug")){
+                        cause.printStackTrace();
+                    }
+
+                    failed++;
+                }
+            }
+
+            if(failed > 0){
+                System.err.println(failed + " of " + files.size() + " file(s) could not be processed.");
+                markFailed();
+            }
+
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            markFailed();
+        }
+        finally{
+            executor.shutdownNow();
+        }
+
+        if(opt.isFollow()){
+            follow(file -> {
+                               int count = parseFile(file.toString());
+                               if(count > 0){
+                                   System.out.println("Finished " + file + ": " + count + " new snapshot(s)");
+                               }
+                           });
+
+            for(SnapShotHandler handler : followHandlers.values()){
+                try{
+                    closeHandler(handler);
+                }
+                catch(IOException e){
+                    System.err.println(e.getLocalizedMessage());
+                }
+            }
+            followHandlers.clear();
+        }
 
-        opt.getFiles().forEach(parseConsumer);
     }
     
 }
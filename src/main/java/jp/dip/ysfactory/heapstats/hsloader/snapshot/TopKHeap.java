@@ -0,0 +1,153 @@
+/*
+ * TopKHeap.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.snapshot;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Bounded min-heap which keeps K items with the largest weights.
+ * The heap is allocated once, and it is reused across snapshots.
+ * 
+ * @param <T> Type of item.
+ * @author Yasumasa Suenaga
+ */
+public class TopKHeap<T>{
+
+    private final long[] weights;
+
+    private final Object[] items;
+
+    private int size;
+
+    /**
+     * Constructor of TopKHeap.
+     * 
+     * @param k Number of items to keep.
+     */
+    public TopKHeap(int k){
+        this.weights = new long[k];
+        this.items = new Object[k];
+        this.size = 0;
+    }
+
+    private void swap(int i, int j){
+        long w = weights[i];
+        weights[i] = weights[j];
+        weights[j] = w;
+
+        Object item = items[i];
+        items[i] = items[j];
+        items[j] = item;
+    }
+
+    private void siftUp(int idx){
+        while(idx > 0){
+            int parent = (idx - 1) >>> 1;
+            if(weights[parent] <= weights[idx]){
+                break;
+            }
+            swap(idx, parent);
+            idx = parent;
+        }
+    }
+
+    private void siftDown(int idx){
+        while(true){
+            int child = (idx << 1) + 1;
+            if(child >= size){
+                break;
+            }
+            if(((child + 1) < size) && (weights[child + 1] < weights[child])){
+                child++;
+            }
+            if(weights[idx] <= weights[child]){
+                break;
+            }
+            swap(idx, child);
+            idx = child;
+        }
+    }
+
+    /**
+     * Offer the item to this heap.
+     * 
+     * @param weight Weight of the item.
+     * @param item Item.
+     * @return Item which is left out from this heap (the offered item or
+     *         the item with the smallest weight), or null if no item is left out.
+     */
+    @SuppressWarnings("unchecked")
+    public T offer(long weight, T item){
+        if(size < weights.length){
+            weights[size] = weight;
+            items[size] = item;
+            siftUp(size++);
+            return null;
+        }
+
+        if(weight <= weights[0]){
+            return item;
+        }
+
+        T evicted = (T)items[0];
+        weights[0] = weight;
+        items[0] = item;
+        siftDown(0);
+        return evicted;
+    }
+
+    /**
+     * Check whether the item with the weight would be kept by offer().
+     * This can be used to avoid building the item which is left out.
+     * 
+     * @param weight Weight of the item.
+     * @return true if the item would be kept.
+     */
+    public boolean accepts(long weight){
+        return (size < weights.length) || (weight > weights[0]);
+    }
+
+    /**
+     * Pass all items to the consumer, and clear this heap.
+     * Items are passed in no particular order.
+     * 
+     * @param consumer Consumer of items.
+     */
+    @SuppressWarnings("unchecked")
+    public void drain(Consumer<T> consumer){
+        for(int idx = 0; idx < size; idx++){
+            consumer.accept((T)items[idx]);
+        }
+        Arrays.fill(items, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Get number of items in this heap.
+     * 
+     * @return Number of items.
+     */
+    public int size(){
+        return size;
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * JsonEncoderTest.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.encode;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Test of JsonEncoder.
+ * Output of JsonEncoder should be the same as XContentBuilder (Jackson).
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class JsonEncoderTest{
+
+    private static final JsonField FIELD = new JsonField("f");
+
+    /**
+     * Strings which need special care: control characters, characters
+     * which are escaped, multi-byte characters in BMP, supplementary
+     * characters, and lone surrogates.
+     */
+    static final String[] STRINGS = {"",
+                                     "java.lang.String",
+                                     "\u0000\u0001\u001f\b\t\n\f\r\u007f",
+                                     "\"quoted\" back\\slash /slash",
+                                     "\u00e9\u07ff\u0800\u30af\u30e9\u30b9\uffff",
+                                     "jp.\ud835\udcb3.Class\ud83d\ude00[]",
+                                     "lone\ud800high",
+                                     "lone\udc00low",
+                                     "reversed\udc00\ud800pair",
+                                     "tail\ud83d"};
+
+    private static byte[] encode(String value){
+        return JsonEncoder.get()
+                          .startObject()
+                          .field(FIELD, value)
+                          .endObject()
+                          .toByteArray();
+    }
+
+    private static byte[] encode(double value){
+        return JsonEncoder.get()
+                          .startObject()
+                          .field(FIELD, value)
+                          .endObject()
+                          .toByteArray();
+    }
+
+    @Test
+    public void testString() throws IOException{
+        for(String value : STRINGS){
+            byte[] expected = BytesReference.toBytes(XContentFactory.jsonBuilder()
+                                                                    .startObject()
+                                                                    .field("f", value)
+                                                                    .endObject()
+                                                                    .bytes());
+            assertArrayEquals(value, expected, encode(value));
+        }
+
+    }
+
+    @Test
+    public void testEncodeString() throws IOException{
+        for(String value : STRINGS){
+            byte[] expected = BytesReference.toBytes(XContentFactory.jsonBuilder()
+                                                                    .startObject()
+                                                                    .field("f", value)
+                                                                    .endObject()
+                                                                    .bytes());
+            byte[] actual = JsonEncoder.get()
+                                       .startObject()
+                                       .rawField(FIELD, JsonEncoder.encodeString(value))
+                                       .endObject()
+                                       .toByteArray();
+            assertArrayEquals(value, expected, actual);
+        }
+
+    }
+
+    @Test
+    public void testDouble() throws IOException{
+        for(double value : new double[]{0.0, -0.0, 1.5, 1.0e-10, 1.0e20, Double.MAX_VALUE, Double.MIN_VALUE,
+                                        Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY}){
+            byte[] expected = BytesReference.toBytes(XContentFactory.jsonBuilder()
+                                                                    .startObject()
+                                                                    .field("f", value)
+                                                                    .endObject()
+                                                                    .bytes());
+            assertArrayEquals(Double.toString(value), expected, encode(value));
+        }
+
+    }
+
+}
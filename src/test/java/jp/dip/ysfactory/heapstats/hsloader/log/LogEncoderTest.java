@@ -0,0 +1,94 @@
+/*
+ * LogEncoderTest.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.log;
+
+import jp.co.ntt.oss.heapstats.container.log.DiffData;
+import jp.co.ntt.oss.heapstats.container.log.LogData;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Test of LogEncoder.
+ * Documents should be the same as the ones which are built through
+ * XContentBuilder by LogProcessor.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class LogEncoderTest{
+
+    private static final String TIMESTAMP = "2018-04-01T00:00:01Z";
+
+    /**
+     * Archive paths. Supplementary characters and lone surrogates should be
+     * encoded in the same way as Jackson.
+     */
+    private static final String[] ARCHIVE_PATHS = {null,
+                                                   "/var/log/heapstats/archive.zip",
+                                                   "/var/log/\u30ed\u30b0/\ud83d\ude00.zip",
+                                                   "/var/log/lone\ud800/\udc00.zip"};
+
+    private static LogData createLogData(long time, long base){
+        StringBuilder line = new StringBuilder();
+        line.append(time)
+            .append(",Interval,")
+            .append(base).append(',')
+            .append(base + 1).append(',')
+            .append(1_000_000_000L + base).append(',')
+            .append(500_000_000L + base);
+        for(int counter = 2; counter < 14; counter++){
+            line.append(',').append(base * counter);
+        }
+        line.append(',').append(50);
+
+        return LogRecordReader.parse(line.toString());
+    }
+
+    @Test
+    public void testLog() throws IOException{
+        LogData logData = createLogData(1522540801000L, 10);
+
+        for(String archivePath : ARCHIVE_PATHS){
+            for(boolean isReboot : new boolean[]{false, true}){
+                byte[] expected = BytesReference.toBytes(LogProcessor.buildLog(TIMESTAMP, logData, archivePath, isReboot).bytes());
+                assertArrayEquals(archivePath, expected, LogEncoder.encodeLog(TIMESTAMP, logData, archivePath, isReboot));
+            }
+        }
+
+    }
+
+    @Test
+    public void testDiff() throws IOException{
+        DiffData diffData = new DiffData(createLogData(1522540800000L, 10), createLogData(1522540801000L, 25));
+
+        for(String archivePath : ARCHIVE_PATHS){
+            for(boolean isReboot : new boolean[]{false, true}){
+                byte[] expected = BytesReference.toBytes(LogProcessor.buildDiff(TIMESTAMP, diffData, archivePath, isReboot).bytes());
+                assertArrayEquals(archivePath, expected, LogEncoder.encodeDiff(TIMESTAMP, diffData, archivePath, isReboot));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * LogMergeReaderTest.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.log;
+
+import jp.co.ntt.oss.heapstats.container.log.LogData;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of LogMergeReader.
+ * Records should be merged in order of date time. Records which have the
+ * same date time should be ordered by the order of files, and by the order
+ * in the file.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class LogMergeReaderTest{
+
+    private static final long BASE_TIME = 1522540800000L;
+
+    /**
+     * Record in the test file. Java VSZ is used as its ID.
+     */
+    private static class Record{
+
+        private final long time;
+
+        private final long id;
+
+        private Record(long time, long id){
+            this.time = time;
+            this.id = id;
+        }
+
+    }
+
+    private static String toCSV(Record record){
+        StringBuilder line = new StringBuilder();
+        line.append(record.time)
+            .append(",Interval,1,1,")
+            .append(record.id)
+            .append(",1");
+        for(int counter = 2; counter < 14; counter++){
+            line.append(",0");
+        }
+        line.append(",10");
+
+        return line.toString();
+    }
+
+    private static Path write(List<Record> records) throws IOException{
+        Path file = Files.createTempFile("hsloader-merge", ".csv");
+        try(BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)){
+            for(Record record : records){
+                writer.write(toCSV(record));
+                writer.newLine();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Create records of the file. Several records share the same time
+     * in the file and across files.
+     */
+    private static List<Record> createRecords(int fileIndex, int count, int step){
+        List<Record> records = new ArrayList<>();
+        for(int idx = 0; idx < count; idx++){
+            records.add(new Record(BASE_TIME + ((idx / step) * 1000L), (fileIndex * 1_000_000L) + idx));
+        }
+        return records;
+    }
+
+    @Test
+    public void testOrder() throws Exception{
+        int[] counts = {5000, 0, 1, 3000, LogMergeReader.BATCH_SIZE};
+        int[] steps = {3, 1, 1, 2, 1};
+        List<Record> expected = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+
+        try{
+            for(int idx = 0; idx < counts.length; idx++){
+                List<Record> records = createRecords(idx, counts[idx], steps[idx]);
+                expected.addAll(records);
+                files.add(write(records));
+            }
+            // Stable sort keeps the order of files and the order in the file.
+            expected.sort(Comparator.comparingLong(r -> r.time));
+
+            try(LogMergeReader reader = new LogMergeReader(files, 2)){
+                for(Record record : expected){
+                    LogData data = reader.next();
+                    assertEquals("ID at " + record.time, record.id, data.getJavaVSSize());
+                }
+                assertNull(reader.next());
+            }
+        }
+        finally{
+            for(Path file : files){
+                Files.deleteIfExists(file);
+            }
+        }
+
+    }
+
+    @Test
+    public void testBoundedBatches() throws Exception{
+        int count = LogMergeReader.BATCH_SIZE * LogMergeReader.MAX_BATCHES * 10;
+        Path file = write(createRecords(0, count, 1));
+
+        try(LogMergeReader reader = new LogMergeReader(List.of(file), 1)){
+            reader.next();
+            // Give workers a chance to parse ahead as far as they can.
+            Thread.sleep(500);
+
+            // Batches in the queue, the batch in progress, and the current one.
+            long limit = (long)(LogMergeReader.MAX_BATCHES + 2) * LogMergeReader.BATCH_SIZE;
+            long read = reader.getReaders().get(0).getLineNumber();
+            assertTrue("Lines read ahead: " + read, read <= limit);
+
+            for(int idx = 1; idx < count; idx++){
+                assertEquals(idx, reader.next().getJavaVSSize());
+            }
+            assertNull(reader.next());
+        }
+        finally{
+            Files.deleteIfExists(file);
+        }
+
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * LeakSuspectTrackerTest.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.snapshot;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of LeakSuspectTracker.
+ * Slopes which are updated incrementally should be the same as the ones
+ * which are computed by least squares over all samples in the window.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class LeakSuspectTrackerTest{
+
+    private static final int WINDOW = 5;
+
+    private static final double DELTA = 1e-6;
+
+    /**
+     * Sample of the class in one snapshot: time, total size and count.
+     */
+    private static class Sample{
+
+        private final double x;
+
+        private final double size;
+
+        private final double count;
+
+        private Sample(double x, double size, double count){
+            this.x = x;
+            this.size = size;
+            this.count = count;
+        }
+
+    }
+
+    /**
+     * Expected samples of the class. Samples are cleared when the class is
+     * not seen in the previous snapshot.
+     */
+    private static class History{
+
+        private final Deque<Sample> samples = new ArrayDeque<>();
+
+        private int lastSnapShot;
+
+    }
+
+    private static double slope(Deque<Sample> samples, boolean size){
+        int n = samples.size();
+        double meanX = samples.stream().mapToDouble(s -> s.x).sum() / n;
+        double meanY = samples.stream().mapToDouble(s -> size ? s.size : s.count).sum() / n;
+        double sxy = 0.0d;
+        double sxx = 0.0d;
+
+        for(Sample s : samples){
+            double dx = s.x - meanX;
+            sxx += dx * dx;
+            sxy += dx * ((size ? s.size : s.count) - meanY);
+        }
+
+        return (sxx == 0.0d) ? 0.0d : sxy / sxx;
+    }
+
+    private static void verify(LeakSuspectTracker tracker, Map<Long, History> histories){
+        List<LeakSuspectTracker.Suspect> suspects = tracker.drainSuspects();
+        Map<Long, LeakSuspectTracker.Suspect> actual = new HashMap<>();
+        suspects.forEach(s -> actual.put(s.getTag(), s));
+
+        for(Map.Entry<Long, History> entry : histories.entrySet()){
+            Deque<Sample> samples = entry.getValue().samples;
+            if(samples.size() < LeakSuspectTracker.MIN_SAMPLES){
+                continue;
+            }
+
+            double sizeSlope = slope(samples, true);
+            if(Math.abs(sizeSlope) <= DELTA){
+                // Sign of slope around 0 depends on rounding errors.
+                actual.remove(entry.getKey());
+                continue;
+            }
+            if(sizeSlope < 0.0d){
+                continue;
+            }
+
+            LeakSuspectTracker.Suspect suspect = actual.remove(entry.getKey());
+            assertNotNull("Suspect is not reported: " + entry.getKey(), suspect);
+            assertEquals("Slope of size: " + entry.getKey(), sizeSlope, suspect.getSizeSlope(), DELTA * Math.max(1.0d, Math.abs(sizeSlope)));
+            assertEquals("Slope of count: " + entry.getKey(), slope(samples, false), suspect.getCountSlope(), DELTA * Math.max(1.0d, Math.abs(slope(samples, false))));
+        }
+
+        assertTrue("Unexpected suspects: " + actual.keySet(), actual.isEmpty());
+    }
+
+    private static void run(int classes, int snapshots, double presence, long seed){
+        LeakSuspectTracker tracker = new LeakSuspectTracker(WINDOW, classes);
+        Map<Long, History> histories = new HashMap<>();
+        Random random = new Random(seed);
+        double time = 1522540800.0d;
+
+        for(int snapShot = 1; snapShot <= snapshots; snapShot++){
+            time += 1.0d + random.nextInt(600);
+            tracker.nextSnapShot(time);
+
+            for(long tag = 1; tag <= classes; tag++){
+                if(random.nextDouble() >= presence){
+                    continue;
+                }
+
+                long count = 1 + random.nextInt(1000);
+                long size = count * 16 + random.nextInt(100000);
+                tracker.update(tag, "Class" + tag, count, size);
+
+                History history = histories.computeIfAbsent(tag, t -> new History());
+                if(history.lastSnapShot != (snapShot - 1)){
+                    history.samples.clear();
+                }
+                history.lastSnapShot = snapShot;
+                history.samples.addLast(new Sample(time, size, count));
+                if(history.samples.size() > WINDOW){
+                    history.samples.removeFirst();
+                }
+            }
+
+            // Classes which are not seen in this snapshot are not reported.
+            int current = snapShot;
+            histories.values().removeIf(h -> h.lastSnapShot != current);
+            verify(tracker, histories);
+        }
+
+    }
+
+    @Test
+    public void testSlope(){
+        run(20, 30, 1.0d, 1);
+    }
+
+    @Test
+    public void testMissingSnapShots(){
+        run(50, 40, 0.8d, 2);
+    }
+
+    @Test
+    public void testRehash(){
+        // More classes than the initial capacity of the hash table.
+        run(5000, 8, 0.9d, 3);
+    }
+
+}
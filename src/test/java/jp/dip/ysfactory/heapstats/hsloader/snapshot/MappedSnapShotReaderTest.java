@@ -0,0 +1,249 @@
+/*
+ * MappedSnapShotReaderTest.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.snapshot;
+
+import jp.co.ntt.oss.heapstats.container.snapshot.ChildObjectData;
+import jp.co.ntt.oss.heapstats.container.snapshot.ObjectData;
+import jp.co.ntt.oss.heapstats.container.snapshot.SnapShotHeader;
+import jp.co.ntt.oss.heapstats.parser.SnapShotParser;
+import jp.co.ntt.oss.heapstats.parser.SnapShotParserEventHandler;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Conformance test of MappedSnapShotReader.
+ * The same files are parsed by SnapShotParser of heapstats-core and
+ * MappedSnapShotReader, and events which are passed to the handler are
+ * compared.
+ * Real snapshot files can be passed through the system property
+ * "hsloader.conformance.snapshots" (separated by path separator).
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class MappedSnapShotReaderTest{
+
+    private static final String SNAPSHOTS_PROPERTY = "hsloader.conformance.snapshots";
+
+    private static final int GC_CAUSE_LENGTH = 80;
+
+    /**
+     * Event handler which records all events as strings.
+     */
+    private static class RecordingHandler implements SnapShotParserEventHandler{
+
+        private final List<String> events = new ArrayList<>();
+
+        private SnapShotHeader header;
+
+        @Override
+        public ParseResult onStart(long off){
+            events.add("start " + off);
+            return ParseResult.HEAPSTATS_PARSE_CONTINUE;
+        }
+
+        @Override
+        public ParseResult onNewSnapShot(SnapShotHeader header, String parent){
+            this.header = header;
+            return ParseResult.HEAPSTATS_PARSE_CONTINUE;
+        }
+
+        @Override
+        public ParseResult onEntry(ObjectData data){
+            events.add("entry " + data.getTag() + " " + data.getName() + " " + data.getClassLoader() + " " + data.getClassLoaderTag() +
+                       " " + data.getCount() + " " + data.getTotalSize());
+            return ParseResult.HEAPSTATS_PARSE_CONTINUE;
+        }
+
+        @Override
+        public ParseResult onChildEntry(long parentClassTag, ChildObjectData child){
+            events.add("child " + parentClassTag + " " + child.getTag() + " " + child.getInstances() + " " + child.getTotalSize());
+            return ParseResult.HEAPSTATS_PARSE_CONTINUE;
+        }
+
+        /**
+         * Header is recorded at the end of the snapshot, because number of
+         * instances might be summed up while entries are parsed.
+         */
+        @Override
+        public ParseResult onFinish(long off){
+            events.add("header " + header.getSnapShotDate() + " " + header.getNumEntries() + " " + header.getNumInstances() +
+                       " " + header.getCauseString() + " " + header.getGcCause() + " " + header.getFullCount() + " " + header.getYngCount() +
+                       " " + header.getGcTime() + " " + header.getNewHeap() + " " + header.getOldHeap() + " " + header.getTotalCapacity() +
+                       " " + header.getMetaspaceUsage() + " " + header.getMetaspaceCapacity() + " " + header.getSafepointTime());
+            events.add("finish " + off);
+            return ParseResult.HEAPSTATS_PARSE_CONTINUE;
+        }
+
+    }
+
+    private static List<String> parseByStream(Path file) throws IOException{
+        RecordingHandler handler = new RecordingHandler();
+        new SnapShotParser(true).parse(file.toString(), handler);
+        return handler.events;
+    }
+
+    private static List<String> parseByMmap(Path file) throws IOException{
+        RecordingHandler handler = new RecordingHandler();
+        try(MappedSnapShotReader reader = new MappedSnapShotReader(file, 0, ZoneId.systemDefault())){
+            for(MappedSnapShotReader.IndexEntry entry : reader.buildIndex()){
+                assertTrue(reader.read(entry, handler, file.toString()));
+            }
+        }
+        return handler.events;
+    }
+
+    private static void assertConformance(Path file) throws IOException{
+        List<String> expected = parseByStream(file);
+        assertFalse("No snapshot in " + file, expected.isEmpty());
+        assertEquals(file.toString(), expected, parseByMmap(file));
+    }
+
+    /**
+     * Write the header of a snapshot.
+     */
+    private static void putHeader(ByteBuffer buf, int magic, long time, long numEntries, String gcCause, boolean safepoint){
+        byte[] cause = gcCause.getBytes(StandardCharsets.US_ASCII);
+        buf.put((byte)magic)
+           .put((byte)((buf.order() == ByteOrder.LITTLE_ENDIAN) ? 'L' : 'B'))
+           .putLong(time)
+           .putLong(numEntries)
+           .putInt(1)
+           .putLong(cause.length)
+           .put(Arrays.copyOf(cause, GC_CAUSE_LENGTH));
+        for(long value = 1; value <= 8; value++){
+            buf.putLong(value * 1024);
+        }
+        if(safepoint){
+            buf.putLong(100).putLong(200);
+        }
+    }
+
+    private static void putEntry(ByteBuffer buf, long tag, String signature, long count, long size){
+        byte[] name = signature.getBytes(StandardCharsets.UTF_8);
+        buf.putLong(tag)
+           .putInt(name.length)
+           .put(name)
+           .putLong(0x1000 + tag)
+           .putLong(tag % 2)
+           .putLong(count)
+           .putLong(size);
+    }
+
+    private static Path write(ByteBuffer... snapshots) throws IOException{
+        Path file = Files.createTempFile("hsloader-test", ".dat");
+        for(ByteBuffer buf : snapshots){
+            buf.flip();
+            Files.write(file, Arrays.copyOf(buf.array(), buf.limit()), StandardOpenOption.APPEND);
+        }
+        return file;
+    }
+
+    /**
+     * Synthetic snapshots in both byte orders, with and without reference
+     * tree and safepoint fields, should be read in the same way as
+     * SnapShotParser.
+     */
+    @Test
+    public void testSyntheticConformance() throws IOException{
+        ByteBuffer big = ByteBuffer.allocate(4096).order(ByteOrder.BIG_ENDIAN);
+        putHeader(big, 51, 1522540800000L, 3, "Allocation Failure", false);
+        putEntry(big, 1, "Ljava/lang/String;", 10, 240);
+        putEntry(big, 2, "[I", 3, 4096);
+        putEntry(big, 3, "[[Ljava/util/Map;", 1, 32);
+
+        ByteBuffer little = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        putHeader(little, 51 | 0x80 | 0x40, 1522540860000L, 2, "System.gc()", true);
+        putEntry(little, 1, "Ljp/例/クラス;", 5, 80);
+        little.putLong(2).putLong(3).putLong(48)
+              .putLong(1).putLong(1).putLong(16)
+              .putLong(-1);
+        putEntry(little, 2, "[Z", 7, 112);
+        little.putLong(-1);
+
+        Path file = write(big, little);
+        try{
+            assertConformance(file);
+        }
+        finally{
+            Files.deleteIfExists(file);
+        }
+
+    }
+
+    /**
+     * Formats which are not verified by this test should be rejected.
+     */
+    @Test
+    public void testRejectUnverifiedFormat() throws IOException{
+        for(int magic : new int[]{49, 50, 49 | 0x80}){
+            ByteBuffer buf = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+            putHeader(buf, magic, 1522540800000L, 0, "Allocation Failure", false);
+
+            Path file = write(buf);
+            try(MappedSnapShotReader reader = new MappedSnapShotReader(file, 0, ZoneId.systemDefault())){
+                reader.buildIndex();
+                fail("Format " + magic + " should be rejected");
+            }
+            catch(IOException e){
+                assertTrue(e.getMessage(), e.getMessage().contains("--reader stream"));
+            }
+            finally{
+                Files.deleteIfExists(file);
+            }
+        }
+
+    }
+
+    /**
+     * Real snapshot files should be read in the same way as SnapShotParser.
+     * This test is skipped when no file is passed.
+     */
+    @Test
+    public void testRealFilesConformance() throws IOException{
+        String files = System.getProperty(SNAPSHOTS_PROPERTY);
+        assumeTrue(SNAPSHOTS_PROPERTY + " is not set", (files != null) && !files.isEmpty());
+
+        for(String file : files.split(File.pathSeparator)){
+            assertConformance(Paths.get(file));
+        }
+
+    }
+
+}
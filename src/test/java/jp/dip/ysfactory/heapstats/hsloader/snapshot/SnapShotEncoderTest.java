@@ -0,0 +1,167 @@
+/*
+ * SnapShotEncoderTest.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.snapshot;
+
+import jp.co.ntt.oss.heapstats.container.snapshot.ChildObjectData;
+import jp.co.ntt.oss.heapstats.container.snapshot.ObjectData;
+import jp.co.ntt.oss.heapstats.container.snapshot.SnapShotHeader;
+import jp.dip.ysfactory.heapstats.hsloader.Option;
+import jp.dip.ysfactory.heapstats.hsloader.Processor;
+import jp.dip.ysfactory.heapstats.hsloader.bulk.BulkSender;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Test of SnapShotEncoder.
+ * Documents which are published by SnapShotHandler with direct encoder
+ * should be the same as the ones with xcontent encoder.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class SnapShotEncoderTest{
+
+    /**
+     * Class names. Supplementary characters and lone surrogates should be
+     * encoded in the same way as Jackson.
+     */
+    private static final String[] NAMES = {"java.lang.String",
+                                           "int[]",
+                                           "jp.\u30af\u30e9\u30b9.\"Quoted\"\\Name",
+                                           "jp.\ud835\udcb3.Class\ud83d\ude00[]",
+                                           "jp.lone\ud800.High",
+                                           "jp.lone\udc00.Low"};
+
+    /**
+     * Processor which captures published documents.
+     */
+    private static class CapturingProcessor extends Processor{
+
+        public CapturingProcessor(Option opt, List<IndexRequest> requests){
+            super(opt, new BulkSender(){
+
+                @Override
+                public void add(IndexRequest request){
+                    requests.add(request);
+                }
+
+                @Override
+                public void flush(){
+                    // Do nothing
+                }
+
+                @Override
+                public void close(){
+                    // Do nothing
+                }
+
+            });
+        }
+
+        @Override
+        public void process(){
+            // Do nothing
+        }
+
+    }
+
+    private static List<IndexRequest> publish(String... args) throws Exception{
+        List<IndexRequest> requests = new ArrayList<>();
+
+        try(CapturingProcessor processor = new CapturingProcessor(new Option(args), requests);
+            SnapShotHandler handler = new SnapShotHandler(processor, ZoneId.of("UTC"), "test.dat")){
+            for(int snapshot = 0; snapshot < 2; snapshot++){
+                SnapShotHeader header = new SnapShotHeader();
+                header.setSnapShotDate(LocalDateTime.of(2018, 4, 1, 0, snapshot));
+                header.setNumEntries(NAMES.length);
+                header.setNumInstances(NAMES.length * 10);
+                header.setCause(1);
+                header.setGcCause("Allocation Failure");
+                header.setNewHeap(1024);
+                header.setOldHeap(2048);
+                header.setTotalCapacity(4096);
+
+                handler.onStart(snapshot * 1000);
+                handler.onNewSnapShot(header, "test.dat");
+                for(int idx = 0; idx < NAMES.length; idx++){
+                    ObjectData data = new ObjectData();
+                    data.setTag(idx + 1);
+                    data.setName(NAMES[idx]);
+                    data.setClassLoader(idx % 2);
+                    data.setClassLoaderTag(idx % 2);
+                    data.setCount(10 + snapshot);
+                    data.setTotalSize((idx + 1) * 100 + snapshot);
+                    handler.onEntry(data);
+                    handler.onChildEntry(idx + 1, new ChildObjectData(((idx + 1) % NAMES.length) + 1, 2, 32));
+                }
+                handler.onFinish((snapshot + 1) * 1000);
+            }
+        }
+
+        return requests;
+    }
+
+    private static void assertSameDocuments(String... args) throws Exception{
+        List<String> direct = new ArrayList<>();
+        List<String> xcontent = new ArrayList<>();
+        direct.add("--encoder");
+        direct.add("direct");
+        xcontent.add("--encoder");
+        xcontent.add("xcontent");
+        for(String arg : args){
+            direct.add(arg);
+            xcontent.add(arg);
+        }
+
+        List<IndexRequest> expected = publish(xcontent.toArray(new String[0]));
+        List<IndexRequest> actual = publish(direct.toArray(new String[0]));
+
+        assertFalse(expected.isEmpty());
+        assertEquals(expected.size(), actual.size());
+        for(int idx = 0; idx < expected.size(); idx++){
+            assertEquals(expected.get(idx).index(), actual.get(idx).index());
+            assertEquals(expected.get(idx).type(), actual.get(idx).type());
+            assertArrayEquals(expected.get(idx).index(), BytesReference.toBytes(expected.get(idx).source()),
+                                                         BytesReference.toBytes(actual.get(idx).source()));
+        }
+
+    }
+
+    @Test
+    public void testDefault() throws Exception{
+        assertSameDocuments();
+    }
+
+    @Test
+    public void testRollup() throws Exception{
+        assertSameDocuments("--rollup");
+    }
+
+}
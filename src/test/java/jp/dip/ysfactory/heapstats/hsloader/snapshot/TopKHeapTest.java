@@ -0,0 +1,166 @@
+/*
+ * TopKHeapTest.java
+ *
+ * Copyright (C) 2018 Yasumasa Suenaga
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package jp.dip.ysfactory.heapstats.hsloader.snapshot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of TopKHeap.
+ * Items are selected in the same way as SnapShotHandler: items which are
+ * left out are summed into "(other)". Selected items should be the top K,
+ * and selected items plus "(other)" should be the same as unfiltered sums.
+ * 
+ * @author Yasumasa Suenaga
+ */
+public class TopKHeapTest{
+
+    /**
+     * Class in the snapshot: number of instances and total size.
+     */
+    private static class Item{
+
+        private final long count;
+
+        private final long totalSize;
+
+        private Item(long count, long totalSize){
+            this.count = count;
+            this.totalSize = totalSize;
+        }
+
+    }
+
+    private static void select(int k, long minSize, List<Item> items){
+        TopKHeap<Item> heap = new TopKHeap<>(k);
+        long otherCount = 0;
+        long otherSize = 0;
+        long otherClasses = 0;
+
+        for(Item item : items){
+            Item other;
+            if(item.totalSize < minSize){
+                other = item;
+            }
+            else{
+                if(!heap.accepts(item.totalSize)){
+                    // offer() should leave out the item which is not accepted.
+                    assertSame(item, heap.offer(item.totalSize, item));
+                    other = item;
+                }
+                else{
+                    other = heap.offer(item.totalSize, item);
+                    assertNotSame(item, other);
+                }
+            }
+
+            if(other != null){
+                otherClasses++;
+                otherCount += other.count;
+                otherSize += other.totalSize;
+            }
+        }
+
+        List<Item> selected = new ArrayList<>();
+        heap.drain(selected::add);
+        assertEquals(0, heap.size());
+
+        // Unfiltered sums
+        long totalCount = items.stream().mapToLong(i -> i.count).sum();
+        long totalSize = items.stream().mapToLong(i -> i.totalSize).sum();
+        assertEquals("Classes", items.size(), selected.size() + otherClasses);
+        assertEquals("Instances", totalCount, selected.stream().mapToLong(i -> i.count).sum() + otherCount);
+        assertEquals("Total size", totalSize, selected.stream().mapToLong(i -> i.totalSize).sum() + otherSize);
+
+        // Selected items should be the top K of items which are not smaller than minSize.
+        List<Item> candidates = new ArrayList<>();
+        items.stream().filter(i -> i.totalSize >= minSize).forEach(candidates::add);
+        candidates.sort(Comparator.comparingLong((Item i) -> i.totalSize).reversed());
+        selected.sort(Comparator.comparingLong((Item i) -> i.totalSize).reversed());
+        assertEquals("Selected", Math.min(k, candidates.size()), selected.size());
+        for(int idx = 0; idx < selected.size(); idx++){
+            assertEquals("Size at " + idx, candidates.get(idx).totalSize, selected.get(idx).totalSize);
+        }
+
+    }
+
+    private static List<Item> createItems(int num, int maxSize, long seed){
+        Random random = new Random(seed);
+        List<Item> items = new ArrayList<>();
+        for(int idx = 0; idx < num; idx++){
+            // Many items have the same size.
+            long totalSize = random.nextInt(maxSize);
+            items.add(new Item(1 + (totalSize / 16), totalSize));
+        }
+        return items;
+    }
+
+    @Test
+    public void testTopK(){
+        for(int k : new int[]{1, 10, 100}){
+            select(k, 0, createItems(1000, 100000, k));
+            select(k, 0, createItems(1000, 50, k));
+        }
+    }
+
+    @Test
+    public void testMinSize(){
+        select(10, 50000, createItems(1000, 100000, 1));
+        select(2000, 50000, createItems(1000, 100000, 2));
+    }
+
+    @Test
+    public void testFewItems(){
+        select(10, 0, createItems(5, 100, 1));
+        select(10, 0, new ArrayList<>());
+    }
+
+    @Test
+    public void testReuse(){
+        TopKHeap<Item> heap = new TopKHeap<>(2);
+        Item small = new Item(1, 10);
+        Item large = new Item(1, 30);
+
+        assertNull(heap.offer(20, new Item(1, 20)));
+        assertNull(heap.offer(10, small));
+        assertSame(small, heap.offer(30, large));
+        heap.drain(i -> {});
+
+        // Drained heap accepts any items again.
+        assertTrue(heap.accepts(0));
+        assertNull(heap.offer(0, small));
+        List<Item> drained = new ArrayList<>();
+        heap.drain(drained::add);
+        assertEquals(1, drained.size());
+        assertSame(small, drained.get(0));
+    }
+
+}